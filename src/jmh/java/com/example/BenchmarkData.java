@@ -0,0 +1,93 @@
+package com.example;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * ベンチマーク用のデータを用意するユーティリティ
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * 指定された並びのIDを生成します。値は1以上{@code rows}以下です。
+     *
+     * @param distribution 値の並び
+     * @param rows         件数
+     * @param seed         シード
+     * @return ID
+     */
+    static long[] ids(FileGenerate.Distribution distribution, int rows, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] ids = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = distribution == FileGenerate.Distribution.RANDOM ? random.nextLong(rows) + 1 : i + 1;
+        }
+        if (distribution == FileGenerate.Distribution.SHUFFLED) {
+            for (int i = rows - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                long tmp = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tmp;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * IDを1行1件の{@code file.txt}形式で書き出します。
+     *
+     * @param file 出力先
+     * @param ids  ID
+     * @throws IOException 入出力例外
+     */
+    static void writeInput(Path file, long[] ids) throws IOException {
+        byte[] line = new byte[21];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1024 * 1024)) {
+            for (long id : ids) {
+                int end = JsonRecordEncoder.writeDecimal(id, line, 0);
+                line[end] = '\n';
+                out.write(line, 0, end + 1);
+            }
+        }
+    }
+
+    /**
+     * キーと値の組から実行時設定を作ります。
+     *
+     * @param keyValues {@code キー, 値, キー, 値, ...}
+     * @return 実行時設定
+     */
+    static RunConfig config(String... keyValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return RunConfig.from(properties);
+    }
+
+    /**
+     * ディレクトリを中身ごと削除します。
+     *
+     * @param dir 削除するディレクトリ
+     * @throws IOException 入出力例外
+     */
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || ! Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * ベンチマークの起動クラス
+ *
+ * <p>JMHのコマンドライン引数をそのまま受け付け、割り当て量を確認できるよう
+ * {@code -prof gc}を常に有効にして実行します。
+ *
+ * <pre>
+ * mvn -P benchmark package
+ * java -jar target/benchmarks.jar ParseBenchmark -p rows=10000000
+ * </pre>
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    /**
+     * ベンチマークを実行します。
+     *
+     * @param args JMHのコマンドライン引数
+     * @throws Exception 例外
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams()
+            || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cli);
+        if (! hasGcProfiler(cli)) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static boolean hasGcProfiler(CommandLineOptions cli) {
+        for (ProfilerConfig profiler : cli.getProfilers()) {
+            if (profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSONファイルの圧縮（{@link App#compressFile(String, java.util.concurrent.ExecutorService, CompressionCodec, int)}）のベンチマーク
+ *
+ * <p>{@code level=app}は{@link App#createCodec()}の既定の圧縮レベル、数値は{@code compress.level}に渡す圧縮レベルです。
+ * {@code bufferSize=auto}は{@link App#calculateOptimalBufferSize(long)}で決まるサイズを使います。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CompressBenchmark {
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"xz", "gzip"})
+    public String codec;
+
+    @Param({"app", "1", "6"})
+    public String level;
+
+    @Param({"auto", "524288", "8388608"})
+    public String bufferSize;
+
+    private Path             dir;
+    private Path             source;
+    private String           jsonFileName;
+    private App              app;
+    private CompressionCodec compressionCodec;
+    private int              buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("compress-bench-");
+        source = dir.resolve("source.json");
+        jsonFileName = dir.resolve("output_part1.json").toString();
+
+        long[] ids = BenchmarkData.ids(FileGenerate.Distribution.SEQUENTIAL, rows, 1);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(source), 1024 * 1024)) {
+            new JsonRecordEncoder(JsonRecordEncoder.Layout.PRETTY)
+                    .encode(ids, ids.length, SecretGenerator.create(SecretGenerator.Mode.SEEDED, 1, 1), out);
+        }
+
+        app = level.equals("app")
+              ? new App(BenchmarkData.config("compress.codec", codec))
+              : new App(BenchmarkData.config("compress.codec", codec, "compress.level", level));
+        compressionCodec = app.createCodec();
+        buffer = bufferSize.equals("auto")
+                 ? App.calculateOptimalBufferSize(Files.size(source))
+                 : Integer.parseInt(bufferSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void copySource() throws IOException {
+        // compressFileは元のJSONを削除するため、毎回コピーし直す
+        Files.copy(source, Path.of(jsonFileName), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        app.close();
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        app.compressFile(jsonFileName, null, compressionCodec, buffer);
+        return Files.size(Path.of(jsonFileName + compressionCodec.extension()));
+    }
+}
@@ -0,0 +1,112 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSONファイル出力のベンチマーク
+ *
+ * <p>メモリマップで書き込む{@link App#writeToJsonFile(LongChunkBuffer, int)}と、
+ * 同じエンコーダーで{@link BufferedOutputStream}に書き込む方式（以前の{@code writeToJsonFileWithoutMapping}）、
+ * {@code output.writer=async}で{@link WriteBehindOutputStream}に書き込む方式を比較します。
+ * 比較のため、バイナリ形式で書き込む{@link App#writeToBinaryFile(LongChunkBuffer, int)}も計測します
+ * （{@code layout}の影響は受けません）。
+ * 出力は作業ディレクトリの{@code output/}に書き込まれ、毎回削除されます。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonWriteBenchmark {
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"PRETTY", "COMPACT"})
+    public String layout;
+
+    @Param({"SECURE", "FAST"})
+    public String secretMode;
+
+    private App               app;
+    private App               asyncApp;
+    private JsonRecordEncoder encoder;
+    private LongChunkBuffer   buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        app = new App(BenchmarkData.config("json.layout", layout, "secret.mode", secretMode));
+        asyncApp = new App(BenchmarkData.config(
+                "json.layout", layout,
+                "secret.mode", secretMode,
+                "output.writer", "async"));
+        encoder = new JsonRecordEncoder(JsonRecordEncoder.Layout.valueOf(layout));
+        buffer = new LongChunkBuffer(rows);
+        for (long id : BenchmarkData.ids(FileGenerate.Distribution.SEQUENTIAL, rows, 1)) {
+            buffer.add(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        app.close();
+        asyncApp.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        Files.deleteIfExists(Path.of("output/output_part1.json"));
+        Files.deleteIfExists(Path.of("output/output_part1.bin"));
+    }
+
+    @Benchmark
+    public String mapped() throws IOException {
+        return app.writeToJsonFile(buffer, 1);
+    }
+
+    @Benchmark
+    public String writeBehind() throws IOException {
+        return asyncApp.writeToJsonFile(buffer, 1);
+    }
+
+    @Benchmark
+    public String binary() throws IOException {
+        return app.writeToBinaryFile(buffer, 1);
+    }
+
+    @Benchmark
+    public String buffered() throws IOException {
+        Files.createDirectories(Path.of("output"));
+        String jsonFileName = "output/output_part1.json";
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(jsonFileName), BUFFER_SIZE)) {
+            encoder.encode(
+                    buffer.array(),
+                    buffer.size(),
+                    SecretGenerator.create(SecretGenerator.Mode.valueOf(secretMode), 0, 1),
+                    out);
+        }
+        return jsonFileName;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MappedSegmentOutputStream}への書き込みのベンチマーク
+ *
+ * <p>1回の{@code write}の長さごとに、指定サイズのファイルを書き終えるまでの時間を計測します。
+ * 長さ1は{@link java.io.OutputStream#write(int)}を使います。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MappedOutputBenchmark {
+    @Param({"64", "512"})
+    public int sizeMb;
+
+    @Param({"1", "64", "65536"})
+    public int writeLength;
+
+    private Path   dir;
+    private Path   file;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mapped-bench-");
+        file = dir.resolve("out.bin");
+        chunk = new byte[writeLength];
+        Arrays.fill(chunk, (byte) '7');
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        long size = (long) sizeMb * 1024 * 1024;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                FileChannel channel = raf.getChannel()
+        ) {
+            raf.setLength(size);
+            try (MappedSegmentOutputStream out = new MappedSegmentOutputStream(channel, size)) {
+                long remaining = size;
+                if (writeLength == 1) {
+                    for (; remaining > 0; remaining--) {
+                        out.write('7');
+                    }
+                } else {
+                    while (remaining > 0) {
+                        int n = (int) Math.min(writeLength, remaining);
+                        out.write(chunk, 0, n);
+                        remaining -= n;
+                    }
+                }
+                out.checkComplete();
+            }
+        }
+        return size;
+    }
+}
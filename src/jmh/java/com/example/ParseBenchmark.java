@@ -0,0 +1,65 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code file.txt}の行解析（{@link App#readNumbers(Path, LongSink)}）のベンチマーク
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1000000", "10000000"})
+    public int rows;
+
+    @Param({"READER", "MAPPED"})
+    public String parser;
+
+    @Param({"SEQUENTIAL", "SHUFFLED"})
+    public String distribution;
+
+    private Path dir;
+    private Path input;
+    private App  app;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("parse-bench-");
+        input = dir.resolve("file.txt");
+        BenchmarkData.writeInput(input, BenchmarkData.ids(FileGenerate.Distribution.valueOf(distribution), rows, 1));
+        app = new App(BenchmarkData.config("input.parser", parser));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        app.close();
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        long[] sum = new long[1];
+        app.readNumbers(input, value -> sum[0] += value);
+        return sum[0];
+    }
+}
@@ -0,0 +1,82 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * チャンク内ソート（{@link LongChunkBuffer#sort()}）のベンチマーク
+ *
+ * <p>比較のため{@link Arrays#sort(long[], int, int)}と、{@code sort.mode=bitmap}の
+ * {@link IdBitmap}への追加と昇順の走査（重複は除かれます）も計測します。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"SEQUENTIAL", "SHUFFLED", "RANDOM"})
+    public String distribution;
+
+    private long[]          source;
+    private LongChunkBuffer buffer;
+    private long[]          array;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = BenchmarkData.ids(FileGenerate.Distribution.valueOf(distribution), rows, 1);
+        buffer = new LongChunkBuffer(rows);
+        array = new long[rows];
+    }
+
+    @Setup(Level.Invocation)
+    public void refill() {
+        buffer.clear();
+        for (long value : source) {
+            buffer.add(value);
+        }
+        System.arraycopy(source, 0, array, 0, rows);
+    }
+
+    @Benchmark
+    public long radixSort() {
+        buffer.sort();
+        return buffer.get(rows - 1);
+    }
+
+    @Benchmark
+    public long arraysSort() {
+        Arrays.sort(array, 0, rows);
+        return array[rows - 1];
+    }
+
+    @Benchmark
+    public long bitmap() throws IOException {
+        long[] last = new long[1];
+        try (IdBitmap bitmap = new IdBitmap(rows + 1, Long.MAX_VALUE)) {
+            for (long value : source) {
+                bitmap.add(value);
+            }
+            bitmap.forEach(bitmap.minId(), bitmap.maxId(), value -> last[0] = value);
+        }
+        return last[0];
+    }
+}
@@ -1,29 +1,70 @@
 package com.example;
 
-import com.fasterxml.jackson.core.JsonEncoding;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.tukaani.xz.LZMA2Options;
-import org.tukaani.xz.XZOutputStream;
+import org.tukaani.xz.UnsupportedOptionsException;
 
 import java.io.*;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-public class App {
+public class App implements AutoCloseable {
     private static final List<AutoCloseable> resources            = new ArrayList<>();
     private static final int                 BUFFER_SIZE          = 8 * 1024 * 1024; // 8MB buffer
-    private static final ObjectMapper        objectMapper         = new ObjectMapper();
     // 圧縮用のバッファ設定
     private static final int                 COMPRESS_BUFFER_SIZE = 64 * 1024;
+    // 1チャンク（1出力ファイル）あたりの行数の既定値（chunk.rows）
+    static final int                         CHUNK_SIZE           = 1_000_000;
+    // chunk.rows=autoでヒープの状況を確認する間隔（行数、2の累乗）
+    private static final int                 PRESSURE_CHECK_ROWS  = 4096;
+    // 書き込みスレッドに渡すオフヒープバッファのサイズ
+    private static final int                 IO_SEGMENT_SIZE      = 1024 * 1024;
+    // pipeline.mode=staged以外で使う書き込みスレッド
+    private static final ThreadFactory       WRITER_THREADS       = Thread.ofPlatform()
+                                                                          .name("write-behind-", 0)
+                                                                          .daemon()
+                                                                          .factory();
+
+    private final RunConfig         config;
+    private final JsonRecordEncoder jsonEncoder;
+    private final RecordEncoder     binaryEncoder = new BinaryRecordEncoder();
+    private final RunMetrics        metrics = new RunMetrics();
+    // 書き込み中のファイルごとにoutput.buffers個ずつ使い、パートをまたいで再利用する
+    private final SegmentPool       ioBuffers;
+    // compress.tune=autoで選ばれたXZの設定
+    private volatile LZMA2Options   tunedOptions;
+    // processFileの実行中だけ設定される
+    private volatile RunJournal     journal;
+    // pipeline.mode=stagedの実行中だけ設定される
+    private volatile StageScope     stageScope;
+    // chunk.rows=autoでprocessFileの実行中だけ設定される
+    private volatile ChunkSizer     chunkSizer;
+    // processFileの実行中だけ設定される
+    private volatile InputRange     inputRange;
+    // 処理した入力の行数（先頭からの累計）
+    private volatile long           processedRows;
+
+    /**
+     * 1回の実行で処理する入力の範囲
+     *
+     * @param startByte 開始位置（バイト、行頭）
+     * @param endByte   終了位置（バイト、この位置を含まない）
+     * @param startRow  開始位置より前の行数
+     * @param firstPart 最初に出力するパートの番号
+     */
+    private record InputRange(long startByte, long endByte, long startRow, int firstPart) {
+    }
 
     static {
         Runtime.getRuntime()
@@ -36,6 +77,26 @@ public class App {
                })));
     }
 
+    /**
+     * システムプロパティの設定で生成します。
+     */
+    public App() {
+        this(RunConfig.fromSystemProperties());
+    }
+
+    /**
+     * 指定された設定で生成します。
+     *
+     * @param config 実行時設定
+     */
+    public App(RunConfig config) {
+        this.config = config;
+        this.jsonEncoder = new JsonRecordEncoder(config.jsonLayout());
+        this.ioBuffers = new SegmentPool(
+                IO_SEGMENT_SIZE,
+                (Runtime.getRuntime().availableProcessors() + 1) * config.outputBuffers());
+    }
+
     /**
      * mainメソッド
      *
@@ -43,15 +104,22 @@ public class App {
      * @throws Exception 例外
      */
     public static void main(String[] args) throws Exception {
-        App app = new App();
-
         // 開始時刻を記録
         long startTime = System.currentTimeMillis();
 
-        if (! app.isFileComplete()) {
-            FileGenerate.generateFile();
+        try (App app = new App()) {
+            // 追記モードでは上流が追記した入力をそのまま使い、生成し直さない
+            boolean append = app.config.runMode() == RunConfig.RunMode.APPEND;
+            // シャードのワーカーは調整役が用意した入力の範囲だけを処理する
+            boolean keepInput = app.config.shardWorker() || (append && Files.exists(Path.of("file.txt")));
+            if (! keepInput && ! app.isFileComplete()) {
+                FileGenerate.generateFile();
+            }
+            app.processFile();
+            if (app.config.verifyEnabled()) {
+                app.verifyOutput();
+            }
         }
-        app.processFile();
 
         // 終了時刻を記録し、処理時間を計算
         long endTime = System.currentTimeMillis();
@@ -67,6 +135,14 @@ public class App {
                 minutes, seconds, milliseconds);
     }
 
+    /**
+     * 書き込みに使うオフヒープのバッファを解放します。以降はパートを書き込めません。
+     */
+    @Override
+    public void close() {
+        ioBuffers.close();
+    }
+
     /**
      * ファイルをJSONファイルに分割し、各ファイルを圧縮する
      *
@@ -75,489 +151,1958 @@ public class App {
      *
      * <p>このメソッドは、{@link #main(String[])}メソッドで呼び出されます。
      *
+     * <p>処理中は{@link RunConfig#metricsIntervalMillis()}ごとに進捗を表示し、
+     * 終了時に{@link RunConfig#metricsReport()}へ実行レポートを書き出します。
+     *
+     * <p>各パートの進行状況は{@link RunJournal}に記録されます。前回の実行が途中で終了していた場合は、
+     * 圧縮済みとして確定したパートを飛ばし、残りのパートだけを処理します。
+     *
      * <p>JVMオプション推奨設定:
      * -XX:+UseG1GC -XX:MaxGCPauseMillis=200 -Xmx4g
      *
+     * <p>{@code chunk.rows=auto}の場合は、1チャンクの行数を{@link ChunkSizer}が最大ヒープと同時に保持するチャンクの数から決め、
+     * GC後のヒープ使用量が上限に近づくと縮小して、集めかけのチャンクをその場でパートとして書き出します。
+     * そのため{@code -Xmx}を環境に合わせて変えるだけで、小さなコンテナから大きなノードまで同じ設定で動作します。
+     *
+     * <p>完了すると、処理した入力の位置と出力したパートを{@link AppendState}に記録します。
+     * {@code run.mode=append}では、記録された位置より後に追記された行だけを読み、既存のパートの次の番号から出力します。
+     *
+     * <p>{@code shard.workers}が指定された場合は、{@link ShardCoordinator}がワーカーJVMに処理させ、
+     * その出力を1つのパート番号の並びに統合します（{@link #processShards()}）。
+     *
      * @throws IOException 入出力例外
      */
     public void processFile() throws IOException {
-        int currentFileIndex = 1;
-        List<String> jsonFiles = new ArrayList<>();
-
-        // 方法1: より小さなバッファサイズを使用
-        try (BufferedReader reader = new BufferedReader(
-                new FileReader("file.txt"), BUFFER_SIZE)
-        ) {
-            // バッファサイズを10分の1に削減
-            ArrayList<Long> numberBuffer = new ArrayList<>(1_000_000);
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (! line.trim().isEmpty()) {
-                    numberBuffer.add(Long.parseLong(line.trim()));
-
-                    if (numberBuffer.size() >= 1_000_000) { // バッファサイズに合わせて条件も変更
-                        Collections.sort(numberBuffer);
-                        String jsonFile = writeToJsonFile(
-                                numberBuffer,
-                                currentFileIndex++);
-                        jsonFiles.add(jsonFile); // JSONファイル名を記録
-                        numberBuffer.clear();
-                    }
+        if (config.shardWorkers() > 0) {
+            processShards();
+            return;
+        }
+        Path outputDir = Path.of("output");
+        AppendState previous = AppendState.read(outputDir);
+        InputRange range = planInput(previous);
+        if (range.startByte() >= range.endByte() && config.runMode() == RunConfig.RunMode.APPEND) {
+            System.out.println("前回の処理以降に追記された行はありません");
+            return;
+        }
+        inputRange = range;
+        metrics.startReporter(config.metricsIntervalMillis());
+        try (RunJournal runJournal = RunJournal.open(Path.of("output"), runFingerprint(), config.resume());
+             ChunkSizer sizer = config.chunkAuto()
+                                ? new ChunkSizer(config.chunkMemoryBytes(), chunkCopiesInFlight())
+                                : null) {
+            journal = runJournal;
+            chunkSizer = sizer;
+            if (runJournal.resumed()) {
+                System.out.println("前回の実行を再開します: " + runJournal.committedCount()
+                                   + "個のパートは圧縮済みのため飛ばします");
+                metrics.detail("resumedParts", runJournal.committedCount());
+            }
+            if (sizer != null) {
+                System.out.printf("チャンクの行数: 自動 (初期 %,d行, メモリ予算: %dMB, 最大ヒープ: %dMB)%n",
+                        sizer.initialRows(),
+                        config.chunkMemoryBytes() / (1024 * 1024),
+                        Runtime.getRuntime().maxMemory() / (1024 * 1024));
+            }
+            processParts();
+            runJournal.complete();
+            int parts = writeAppendState(outputDir, previous, range);
+            if (config.runMode() == RunConfig.RunMode.FULL) {
+                deleteStaleParts(outputDir, parts);
+            } else {
+                if (previous != null) {
+                    // 行数とサイズが変わったため、次の実行が生成し直したり古い行数を使ったりしないように書き直す
+                    InputManifest.createAppended(Path.of("file.txt"), config.inputThreads());
                 }
+                Map<String, Object> detail = new LinkedHashMap<>();
+                detail.put("fromByte", range.startByte());
+                detail.put("toByte", range.endByte());
+                detail.put("rows", processedRows - range.startRow());
+                detail.put("firstPart", range.firstPart());
+                detail.put("lastPart", parts);
+                metrics.detail("append", detail);
             }
-
-            if (! numberBuffer.isEmpty()) {
-                String jsonFile = writeToJsonFile(
-                        numberBuffer,
-                        currentFileIndex);
-                jsonFiles.add(jsonFile); // 最後のJSONファイル名も記録
+            if (sizer != null) {
+                metrics.detail("chunkSizing", Map.of(
+                        "initialRows", sizer.initialRows(),
+                        "minRows", sizer.minRows(),
+                        "pressureEvents", sizer.pressureEvents()));
             }
+        } finally {
+            journal = null;
+            chunkSizer = null;
+            inputRange = null;
+            metrics.stopReporter();
+            writeRunReport();
         }
+    }
 
-        // 方法2: ストリーム処理を使用する場合は以下のコードを使用
-        // 注意: 上記のBufferedReaderを使用する方法と同時に使用しないこと
-        /*
-        Path filePath = Path.of("file.txt");
-        // グループごとの最大サイズ
-        final int GROUP_SIZE = 1_000_000;
-
-        // ファイルをストリーム処理し、GROUP_SIZEごとにグループ化
-        Map<Integer, List<Long>> groups = Files.lines(filePath)
-            .filter(line -> !line.trim().isEmpty())
-            .map(Long::parseLong)
-            .collect(Collectors.groupingBy(n -> (int)(n / GROUP_SIZE)));
-
-        // 各グループを処理
-        for (Map.Entry<Integer, List<Long>> entry : groups.entrySet()) {
-            ArrayList<Long> numberBuffer = new ArrayList<>(entry.getValue());
-            Collections.sort(numberBuffer);
-            String jsonFile = writeToJsonFile(numberBuffer, currentFileIndex++);
-            jsonFiles.add(jsonFile);
+    /**
+     * 出力したパートを{@link PartVerifier}で入力ファイルと突き合わせ、結果を表示します。
+     *
+     * @throws IOException 入出力例外、または不整合が見つかった場合
+     */
+    public void verifyOutput() throws IOException {
+        String suffix = config.outputFormat().extension() + config.compressCodec().extension();
+        List<Path> files = PartReader.partFiles(Path.of("output"), suffix);
+        // 状態ファイルには処理済みの範囲とパートごとの行オフセットが記録されている
+        AppendState state = AppendState.read(Path.of("output"));
+        PartVerifier.Report report = state != null
+                                     ? PartVerifier.verify(
+                                             files,
+                                             Path.of("file.txt"),
+                                             state.inputBytes(),
+                                             state.partOffsets(),
+                                             config.sortMode(),
+                                             config.inputThreads())
+                                     : PartVerifier.verify(
+                                             files,
+                                             Path.of("file.txt"),
+                                             config.chunkRows(),
+                                             config.sortMode(),
+                                             config.inputThreads());
+        report.print();
+        if (! report.ok()) {
+            throw new IOException("出力の検証に失敗しました: " + report.errors().get(0));
         }
-        */
-
-        // 全JSONファイルの圧縮（並行処理）
-        System.out.println("全JSONファイルの圧縮を開始します...");
-        int processors = Runtime.getRuntime().availableProcessors();
-        int threadCount = Math.max(1, processors - 3);
-        System.out.println("圧縮に使用するスレッド数: " + threadCount);
-
-        try (ExecutorService compressExecutor = Executors.newFixedThreadPool(
-                threadCount)
-        ) {
-
-            try {
-                // ファイルサイズを取得して、大きいファイルから処理するようにソート
-                List<File> sortedFiles = jsonFiles.stream()
-                                                  .map(File::new)
-                                                  .sorted((f1, f2) -> Long.compare(
-                                                          f2.length(),
-                                                          f1.length()))
-                                                  .collect(java.util.stream.Collectors.toList());
-
-                // バッチサイズを設定（一度に処理するファイル数）
-                int batchSize = Math.min(threadCount, sortedFiles.size());
-
-                // バッチごとに処理
-                for (int i = 0; i < sortedFiles.size(); i += batchSize) {
-                    int endIndex = Math.min(i + batchSize, sortedFiles.size());
-                    List<File> batch = sortedFiles.subList(i, endIndex);
-
-                    System.out.println("バッチ処理開始: " + (i / batchSize + 1) + "/" +
-                                       (int) Math.ceil((double) sortedFiles.size() / batchSize));
-
-                    List<Future<?>> batchTasks = new ArrayList<>();
-
-                    // バッチ内のファイルを並行処理
-                    for (File jsonFile : batch) {
-                        // 各タスク開始前に少し遅延を入れてI/O競合を減らす
-                        try {
-                            Thread.sleep(100); // 100ミリ秒の遅延
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-
-                        batchTasks.add(compressExecutor.submit(() -> {
-                            try {
-                                System.out.println("圧縮開始: " + jsonFile.getName() +
-                                                   " (サイズ: " + jsonFile.length() / 1024 / 1024 + "MB)");
-                                long startTime = System.currentTimeMillis();
-                                compressFile(jsonFile.getPath());
-                                long endTime = System.currentTimeMillis();
-                                System.out.println("圧縮完了: " + jsonFile.getName() +
-                                                   " (処理時間: " + (endTime - startTime) / 1000 + "秒)");
-                            } catch (IOException e) {
-                                throw new CompletionException(e);
-                            }
-                        }));
-                    }
-
-                    // バッチ処理後に少し待機してI/Oを安定させる
-                    try {
-                        Thread.sleep(1000); // 1秒待機
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+    }
 
-                    // バッチ内のすべてのタスクが完了するのを待機
-                    for (Future<?> task : batchTasks) {
-                        try {
-                            task.get();
-                        } catch (ExecutionException e) {
-                            // 元の例外を取得して処理
-                            Throwable cause = e.getCause();
-                            if (cause instanceof IOException) {
-                                throw (IOException) cause;
-                            } else {
-                                throw new IOException(
-                                        "圧縮処理中にエラーが発生しました: " + cause.getMessage(),
-                                        cause);
-                            }
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new IOException(
-                                    "圧縮処理が中断されました",
-                                    e);
-                        }
-                    }
+    /**
+     * 前回の実行の続きとして再開してよいかを判断するための実行条件を返します。
+     * 入力ファイルか、パートの内容や出力形式に影響する設定が異なれば再開しません。
+     *
+     * @return 実行条件
+     * @throws IOException 入力ファイルの属性を読めない場合
+     */
+    private Map<String, String> runFingerprint() throws IOException {
+        Path input = Path.of("file.txt");
+        Map<String, String> fingerprint = new LinkedHashMap<>();
+        fingerprint.put("inputBytes", String.valueOf(Files.size(input)));
+        fingerprint.put("inputModified", String.valueOf(Files.getLastModifiedTime(input).toMillis()));
+        fingerprint.put("chunkSize", config.chunkAuto() ? "auto" : String.valueOf(config.chunkRows()));
+        fingerprint.put("sortMode", config.sortMode().name());
+        fingerprint.put("jsonLayout", config.jsonLayout().name());
+        fingerprint.put("outputFormat", config.outputFormat().name());
+        fingerprint.put("secretMode", config.secretMode().name());
+        fingerprint.put("secretSeed", String.valueOf(config.secretSeed()));
+        fingerprint.put("compressCodec", config.compressCodec().name());
+        fingerprint.put("compressLevel", String.valueOf(config.compressLevel()));
+        fingerprint.put("compressTune", config.compressTune().name());
+        if (config.runMode() == RunConfig.RunMode.APPEND) {
+            InputRange range = inputRange;
+            fingerprint.put("appendFrom", String.valueOf(range.startByte()));
+            fingerprint.put("appendTo", String.valueOf(range.endByte()));
+        }
+        if (config.shardWorker()) {
+            fingerprint.put("shardFrom", String.valueOf(config.shardStartByte()));
+            fingerprint.put("shardTo", String.valueOf(config.shardEndByte()));
+        }
+        return fingerprint;
+    }
 
-                    // バッチ処理後にガベージコレクションを明示的に実行
-                    System.gc();
-                    System.out.println("バッチ処理完了: " + (i / batchSize + 1) + "/" +
-                                       (int) Math.ceil((double) sortedFiles.size() / batchSize));
+    /**
+     * 入力をシャードに分けてワーカーJVMで処理し、各ワーカーの出力を統合します。
+     *
+     * <p>シャードの順に、各ワーカーのパートを通し番号に名前を変えて出力ディレクトリに移し（インデックスも同様）、
+     * ワーカーが記録した行オフセットにシャードの開始行を足して、入力全体の{@link AppendState}を書き出します。
+     * そのため統合後の出力は、1つのJVMで処理した場合と同じく{@link PartVerifier}で検証でき、
+     * {@code run.mode=append}で追記を続けられます。ワーカーの計測値は実行レポートに合算し、
+     * シャードごとの結果を{@code shards}に記録します。
+     *
+     * <p>すべてのシャードが完了して統合できた場合だけ作業ディレクトリを削除します。
+     * 失敗した場合は残すため、同じ設定で起動し直すと各ワーカーは圧縮済みのパートを飛ばして再開します。
+     *
+     * @throws IOException 入出力例外、またはワーカーが失敗した場合
+     */
+    private void processShards() throws IOException {
+        Path outputDir = Path.of("output");
+        Path input = Path.of("file.txt");
+        ShardCoordinator coordinator = new ShardCoordinator(
+                config,
+                input,
+                outputDir.resolve(ShardCoordinator.WORK_DIR));
+        try {
+            List<ShardCoordinator.Result> results = coordinator.run();
+
+            String suffix = config.outputFormat().extension() + config.compressCodec().extension();
+            List<Long> partOffsets = new ArrayList<>();
+            List<Map<String, Object>> shards = new ArrayList<>();
+            long rowBase = 0;
+            for (ShardCoordinator.Result result : results) {
+                AppendState state = AppendState.read(result.outputDir());
+                List<Path> files = PartReader.partFiles(result.outputDir(), suffix);
+                if (state == null || files.size() != state.parts()) {
+                    throw new IOException("シャード" + result.shard().index() + "の出力が不完全です: "
+                                          + result.outputDir());
                 }
-            } finally {
-                compressExecutor.shutdown();
-                try {
-                    if (! compressExecutor.awaitTermination(
-                            60,
-                            TimeUnit.SECONDS)) {
-                        compressExecutor.shutdownNow();
+                int firstPart = partOffsets.size() + 1;
+                for (int i = 0; i < files.size(); i++) {
+                    Path source = files.get(i);
+                    Path target = Path.of(partFileName(partOffsets.size() + 1, config.outputFormat())
+                                          + config.compressCodec().extension());
+                    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    if (Files.exists(SparseIdIndex.sidecarFor(source))) {
+                        Files.move(
+                                SparseIdIndex.sidecarFor(source),
+                                SparseIdIndex.sidecarFor(target),
+                                StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.deleteIfExists(SparseIdIndex.sidecarFor(target));
                     }
-                } catch (InterruptedException e) {
-                    compressExecutor.shutdownNow();
-                    Thread.currentThread().interrupt();
+                    partOffsets.add(rowBase + state.partOffsets()[i]);
                 }
+                addWorkerMetrics(result.report());
+
+                Map<String, Object> detail = new LinkedHashMap<>();
+                detail.put("shard", result.shard().index());
+                detail.put("fromByte", result.shard().startByte());
+                detail.put("toByte", result.shard().endByte());
+                detail.put("rows", state.inputRows());
+                detail.put("firstPart", firstPart);
+                detail.put("lastPart", partOffsets.size());
+                detail.put("attempts", result.attempts());
+                detail.put("elapsedMillis", result.elapsedMillis());
+                shards.add(detail);
+                rowBase += state.inputRows();
             }
+            metrics.detail("shards", shards);
+
+            // 改行で終わっていない最後の行はシャードに含めていないため、最後のシャードの終わりまでを処理済みとする
+            long inputBytes = results.isEmpty() ? 0 : results.getLast().shard().endByte();
+            try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+                new AppendState(
+                        inputBytes,
+                        rowBase,
+                        AppendState.tailChecksum(channel, inputBytes),
+                        appendSettings(),
+                        partOffsets.stream().mapToLong(Long::longValue).toArray()).write(outputDir, syncMetadata());
+            }
+            deleteStaleParts(outputDir, partOffsets.size());
+            // 統合した出力はジャーナルに記録されていないため、以前の実行のジャーナルで再開しないようにする
+            Files.deleteIfExists(outputDir.resolve(RunJournal.FILE_NAME));
+            coordinator.deleteWorkDir();
+            System.out.printf("%d個のシャードの出力を統合しました: %dパート, %,d行%n",
+                    results.size(), partOffsets.size(), rowBase);
+        } finally {
+            writeRunReport();
         }
-
     }
 
     /**
-     * 並列処理でJSONファイルを生成
-     *
-     * <p>このメソッドは、{@link #processFile()}メソッドで呼び出されます。
+     * ワーカーの実行レポートの段階ごとの件数とバイト数を、この実行の計測値に加えます。
      *
-     * @param numberBuffer 並列処理の対象となる数値データのバッファー
-     * @param fileIndex    生成するJSONファイル名に使用するインデックス
-     * @return 生成されたJSONファイル名
-     * @throws IOException 入出力例外
+     * @param report ワーカーの実行レポート
      */
-    private String writeToJsonFile(ArrayList<Long> numberBuffer, int fileIndex)
-            throws IOException {
-        Path outputDir = Path.of("output");
-        if (! Files.exists(outputDir)) {
-            Files.createDirectory(outputDir);
+    private void addWorkerMetrics(Map<String, Object> report) {
+        if (! (report.get("stages") instanceof Map<?, ?> stages)) {
+            return;
         }
-
-        String jsonFileName = String.format(
-                "output/output_part%d.json",
-                fileIndex);
-
-        try (RandomAccessFile raf = new RandomAccessFile(
-                jsonFileName,
-                "rw"); FileChannel channel = raf.getChannel()
-        ) {
-            // バッファオーバーフローを防ぐために、十分なサイズ見積もりに戻す
-            // UUIDなどのデータも考慮して大きめに見積もる
-            long estimatedSize = numberBuffer.size() * 150L + 50_000L;
-            System.out.println("ファイルサイズ見積もり: " + (estimatedSize / (1024 * 1024)) + "MB");
-
-            // 大きなファイルの場合はメモリマッピングを分割
-            final long MAX_MAPPING_SIZE = 1024 * 1024 * 1024L; // 1GB
-            MappedByteBuffer buffer;
-
-            if (estimatedSize > MAX_MAPPING_SIZE) {
-                // 大きなファイルの場合は最大マッピングサイズに制限
-                System.out.println("大きなファイルのため、メモリマッピングを" + MAX_MAPPING_SIZE / (1024*1024) + "MBに制限します");
-
-                // ファイルサイズが大きい場合は、通常のファイル出力に切り替える
-                System.out.println("メモリマッピングの代わりに通常のファイル出力を使用します");
-                return writeToJsonFileWithoutMapping(numberBuffer, fileIndex);
-            } else {
-                buffer = channel.map(
-                        FileChannel.MapMode.READ_WRITE,
-                        0,
-                        estimatedSize);
+        for (RunMetrics.Stage stage : RunMetrics.Stage.values()) {
+            if (stages.get(stage.name().toLowerCase(Locale.ROOT)) instanceof Map<?, ?> values
+                && values.get("items") instanceof Number items
+                && values.get("bytes") instanceof Number bytes) {
+                metrics.add(stage, items.longValue(), bytes.longValue());
             }
+        }
+    }
 
-            // オフヒープメモリを活用したバッファの使用
-            ByteBuffer directBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-
-            try (OutputStream outputStream = new MappedByteBufferOutputStream(
-                    buffer);
-                    JsonGenerator generator = objectMapper.getFactory()
-                                                          .createGenerator(
-                                                                  outputStream,
-                                                                  JsonEncoding.UTF8)
-            ) {
-                generator.useDefaultPrettyPrinter();
-                generator.writeStartObject();
-                generator.writeArrayFieldStart("items");
-
-                // バッチ処理で1000件ずつ処理 - メモリ効率を向上
-                final int WRITE_BATCH_SIZE = 1000;
-                List<Long> batch = new ArrayList<>(WRITE_BATCH_SIZE);
-                Iterator<Long> iterator = numberBuffer.iterator();
-
-                // 処理済みの数を追跡
-                long processedCount = 0;
-                long totalCount = numberBuffer.size();
-
-                while (iterator.hasNext()) {
-                    batch.clear();
-                    while (iterator.hasNext() && batch.size() < WRITE_BATCH_SIZE) {
-                        batch.add(iterator.next());
-                    }
-
-                    for (Long number : batch) {
-                        generator.writeStartObject();
-                        generator.writeNumberField("id", number);
-                        generator.writeStringField(
-                                "secret",
-                                UUID.randomUUID()
-                                    .toString());
-                        generator.writeEndObject();
-                    }
+    /**
+     * パートのファイル名と内容に影響し、追記の前後で一致している必要がある設定を返します。
+     *
+     * @return 設定
+     */
+    private Map<String, String> appendSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("sortMode", config.sortMode().name());
+        settings.put("outputFormat", config.outputFormat().name());
+        settings.put("compressCodec", config.compressCodec().name());
+        settings.put("jsonLayout", config.jsonLayout().name());
+        settings.put("secretMode", config.secretMode().name());
+        return settings;
+    }
 
-                    // 進捗状況を更新
-                    processedCount += batch.size();
-                    if (processedCount % 100000 == 0 || processedCount == totalCount) {
-                        System.out.printf("JSONデータ生成進捗: %.1f%% (%d/%d)%n",
-                            (double)processedCount/totalCount*100, processedCount, totalCount);
-                    }
+    /**
+     * 今回の実行で処理する入力の範囲を決めます。
+     *
+     * <p>{@code run.mode=full}では入力の先頭から、{@code run.mode=append}では前回記録された位置から、
+     * 入力の最後の改行までです。改行で終わっていない最後の行は書き込み中とみなし、次の追記に回します。
+     * {@code full}でも含めないのは、その行が後から書き足されたときに、次の追記で途中までの値と重複させないためです。
+     *
+     * @param previous 前回の実行の状態。ない場合は{@code null}
+     * @return 処理する範囲
+     * @throws IOException 入出力例外、または前回の状態から追記できない場合
+     */
+    private InputRange planInput(AppendState previous) throws IOException {
+        Path input = Path.of("file.txt");
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (config.shardWorker()) {
+                return new InputRange(config.shardStartByte(), Math.min(size, config.shardEndByte()), 0, 1);
+            }
+            if (config.runMode() == RunConfig.RunMode.FULL || previous == null) {
+                if (config.runMode() == RunConfig.RunMode.APPEND) {
+                    System.out.println("状態ファイルがないため、入力の先頭から処理します");
                 }
-
-                generator.writeEndArray();
-                generator.writeEndObject();
+                long end = AppendState.lastLineEnd(channel, 0, size);
+                if (end < size) {
+                    System.out.printf("改行で終わっていない最後の行（%,dバイト）は次の追記で処理します%n", size - end);
+                }
+                return new InputRange(0, end, 0, 1);
             }
-            channel.truncate(buffer.position());
-        } catch (IOException e) {
-            Files.deleteIfExists(Path.of(jsonFileName));
-            throw e;
+            Map<String, String> settings = appendSettings();
+            if (! settings.equals(previous.settings())) {
+                throw new IOException("前回の出力と設定が異なるため追記できません: 前回 " + previous.settings()
+                                      + " / 今回 " + settings);
+            }
+            previous.checkInput(channel);
+            long end = AppendState.lastLineEnd(channel, previous.inputBytes(), size);
+            System.out.printf("追記モード: %,dバイト目（%,d行目）から%,dバイト目までを処理します。パート%dから出力します%n",
+                    previous.inputBytes(), previous.inputRows(), end, previous.parts() + 1);
+            return new InputRange(previous.inputBytes(), end, previous.inputRows(), previous.parts() + 1);
         }
+    }
 
-        System.out.println(jsonFileName + "の生成が完了しました。");
-        return jsonFileName;
+    /**
+     * 処理した範囲と出力したパートを状態ファイルに記録します。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @param previous  前回の実行の状態。ない場合は{@code null}
+     * @param range     今回処理した範囲
+     * @return 出力されているパートの数
+     * @throws IOException 入出力例外
+     */
+    private int writeAppendState(Path outputDir, AppendState previous, InputRange range) throws IOException {
+        // 今回のパートの行オフセットはジャーナルから、それより前のパートは前回の状態から引き継ぐ
+        long[] journalOffsets = RunJournal.readPartOffsets(outputDir);
+        int kept = range.firstPart() - 1;
+        long[] partOffsets = new long[Math.max(kept, journalOffsets != null ? journalOffsets.length : 0)];
+        if (kept > 0) {
+            System.arraycopy(previous.partOffsets(), 0, partOffsets, 0, kept);
+        }
+        if (journalOffsets != null && journalOffsets.length > kept) {
+            System.arraycopy(journalOffsets, kept, partOffsets, kept, journalOffsets.length - kept);
+        }
+        try (FileChannel channel = FileChannel.open(Path.of("file.txt"), StandardOpenOption.READ)) {
+            new AppendState(
+                    range.endByte(),
+                    processedRows,
+                    AppendState.tailChecksum(channel, range.endByte()),
+                    appendSettings(),
+                    partOffsets).write(outputDir, syncMetadata());
+        }
+        return partOffsets.length;
     }
 
     /**
-     * 並列処理でJSONファイルをXZ圧縮
+     * 入力全体を処理し直した後に、今回のパート数より大きな番号のパート（以前の追記で出力したもの）を削除します。
      *
-     * <p>このメソッドは、{@link #processFile()}メソッドで呼び出されます。
+     * @param outputDir 出力ディレクトリ
+     * @param parts     今回出力したパートの数
+     * @throws IOException 入出力例外
+     */
+    private static void deleteStaleParts(Path outputDir, int parts) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(outputDir, "output_part*")) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(SparseIdIndex.SUFFIX)) {
+                    name = name.substring(0, name.length() - SparseIdIndex.SUFFIX.length());
+                }
+                if (PartReader.partIndex(Path.of(name)) > parts) {
+                    Files.delete(entry);
+                    System.out.println("以前の実行で出力した" + entry + "を削除しました");
+                }
+            }
+        }
+    }
+
+    /**
+     * 設定された方式で入力をパートに分け、JSONの生成と圧縮を行います。
      *
-     * @param jsonFileName XZ圧縮するJSONファイル名
      * @throws IOException 入出力例外
      */
-    private void compressFile(String jsonFileName) throws IOException {
-        String xzFileName = jsonFileName + ".xz";
-        File jsonFile = new File(jsonFileName);
-        long fileSize = jsonFile.length();
+    private void processParts() throws IOException {
+        tuneCompression();
 
-        // LZMA2の圧縮設定を最適化
-        LZMA2Options options = new LZMA2Options();
-        options.setPreset(4); // 圧縮レベルを4に下げてI/O負荷を軽減
-        options.setDictSize(32 * 1024 * 1024);
-        options.setLc(3);
-        options.setLp(0);
-        options.setPb(2);
-        options.setMode(LZMA2Options.MODE_FAST);
+        if (config.pipelineMode() == RunConfig.PipelineMode.STREAMING) {
+            processFileStreaming();
+            return;
+        }
+        if (config.pipelineMode() == RunConfig.PipelineMode.STAGED) {
+            processFileStaged();
+            return;
+        }
 
-        // ファイルサイズに基づいてバッファサイズを調整
-        int optimalBufferSize = calculateOptimalBufferSize(fileSize);
-        System.out.println("圧縮用バッファサイズ: " + (optimalBufferSize / 1024) + "KB");
+        if (config.compressMode() == RunConfig.CompressMode.BLOCK) {
+            List<String> jsonFiles = writeParts(this::writePartFile);
+            compressFilesBlockParallel(jsonFiles);
+            return;
+        }
 
-        // ディスクI/Oを最適化するためのバッファリング
-        try (InputStream input = new java.io.BufferedInputStream(
-                new FileInputStream(jsonFileName), optimalBufferSize);
-                OutputStream output = new java.io.BufferedOutputStream(
-                        new FileOutputStream(xzFileName), optimalBufferSize);
-                XZOutputStream xzOut = new XZOutputStream(output, options)
+        // JSONファイルが書き出されるたびに圧縮を投入し、生成と圧縮を重ねる
+        int threadCount = compressionThreadCount();
+        System.out.println("圧縮に使用するスレッド数: " + threadCount +
+                           " (メモリ予算: " + config.compressMemoryBytes() / (1024 * 1024) + "MB)");
+
+        List<Future<CompressionScheduler.TaskTiming>> tasks = new ArrayList<>();
+        try (CompressionScheduler scheduler = new CompressionScheduler(
+                threadCount,
+                config.compressMemoryBytes())
         ) {
-            // DirectByteBufferを使用してオフヒープメモリを活用
-            ByteBuffer directBuffer = ByteBuffer.allocateDirect(COMPRESS_BUFFER_SIZE);
-            byte[] buffer = new byte[COMPRESS_BUFFER_SIZE];
-            int n;
-            long totalBytesRead = 0;
-
-            while ((n = input.read(buffer)) != -1) {
-                // DirectByteBufferにデータをコピー
-                directBuffer.clear();
-                directBuffer.put(buffer, 0, n);
-                directBuffer.flip();
-
-                // バッファからデータを読み取って圧縮
-                xzOut.write(buffer, 0, n);
-
-                // 進捗状況を更新
-                totalBytesRead += n;
-                if (totalBytesRead % (10 * 1024 * 1024) == 0 || totalBytesRead == fileSize) { // 10MBごとに報告
-                    System.out.printf("圧縮進捗: %.1f%% (%d/%d バイト)%n",
-                        (double)totalBytesRead/fileSize*100, totalBytesRead, fileSize);
-                }
+            writeParts((numberBuffer, fileIndex) -> {
+                String jsonFile = writePartFile(numberBuffer, fileIndex);
+                tasks.add(scheduleCompression(scheduler, new File(jsonFile)));
+                return jsonFile;
+            });
+
+            for (Future<?> task : tasks) {
+                awaitCompression(task);
             }
+            reportCompressionTimings(scheduler.timings());
         }
-
-        // 元のJSONファイルを削除
-        Files.delete(Path.of(jsonFileName));
-        System.out.println(xzFileName + "の生成が完了しました。");
     }
 
     /**
-     * ファイルサイズに基づいて最適なバッファサイズを計算
+     * {@link RunConfig#compressTune()}が{@code AUTO}の場合に、最初のパートのサンプルを候補の設定で圧縮し、
+     * 目標に合うXZの設定を選びます。選んだ設定は以降の{@link #createCompressionOptions()}が返します。
      *
-     * @param fileSize ファイルサイズ（バイト）
-     * @return 最適なバッファサイズ（バイト）
+     * <p>サンプルは今回処理する範囲の先頭の1チャンク分の行をソートし、先頭から{@link RunConfig#compressTuneSampleBytes()}バイト分を
+     * JSONにしたものです。全体のサイズはそのチャンクの1行あたりのサイズと範囲の行数から見積もります。
+     * 範囲が入力の先頭からの場合、行数は{@link InputManifest}から、マニフェストがなければ入力を走査して求めます。
+     * {@code run.mode=append}で途中からの場合は、範囲のバイト数をサンプルの1行あたりのバイト数で割って見積もります。
+     * ワーカー数は選ばれたパイプラインで圧縮に使うスレッド数です。
+     * 候補の圧縮は{@link #xzCodec(LZMA2Options)}で本番と同じブロックの区切りと辞書サイズの上限で行います。
+     *
+     * @throws IOException 入出力例外
      */
-    private int calculateOptimalBufferSize(long fileSize) {
-        // 小さなファイル: 512KB、中サイズファイル: 2MB、大きなファイル: 8MB
-        if (fileSize < 10 * 1024 * 1024) { // 10MB未満
-            return 512 * 1024;
-        } else if (fileSize < 100 * 1024 * 1024) { // 100MB未満
-            return 2 * 1024 * 1024;
+    private void tuneCompression() throws IOException {
+        if (config.compressTune() != RunConfig.CompressTune.AUTO) {
+            return;
+        }
+        if (config.compressCodec() != CompressionCodec.Type.XZ) {
+            System.out.println("圧縮形式がxzではないため、圧縮設定の自動調整は行いません");
+            return;
+        }
+
+        Path input = Path.of("file.txt");
+        InputRange range = inputRange;
+        int chunkRows = initialChunkRows();
+        Head sampled = readHead(input, range, chunkRows);
+        LongChunkBuffer head = sampled.ids();
+        if (head.isEmpty()) {
+            return;
+        }
+        int rows = head.size();
+        long chunkBytes = partEncoder().encodedSize(head.array(), rows);
+        int sampleBytes = config.compressTuneSampleBytes();
+        int sampleRows = (int) Math.min(rows, sampleBytes / Math.max(1, chunkBytes / rows) + 1);
+
+        ByteArrayOutputStream sample = new ByteArrayOutputStream(sampleBytes + COMPRESS_BUFFER_SIZE);
+        partEncoder().encode(head.array(), sampleRows, secretGenerator(1), sample);
+        byte[] sampleData = sample.toByteArray();
+
+        long totalRows;
+        if (range.startByte() > 0) {
+            totalRows = (long) ((double) (range.endByte() - range.startByte()) / Math.max(1, sampled.bytes()) * rows);
         } else {
-            return BUFFER_SIZE; // 8MB
+            InputManifest manifest = InputManifest.read(input);
+            totalRows = manifest != null
+                        ? manifest.rows()
+                        : InputManifest.scan(input, config.inputThreads()).lines();
         }
+        totalRows = Math.max(rows, totalRows);
+        long totalBytes = (long) ((double) chunkBytes / rows * totalRows);
+        long parts = (totalRows + chunkRows - 1) / chunkRows;
+        int threads = config.pipelineMode() == RunConfig.PipelineMode.STAGED
+                      ? stagedCpuThreadCount()
+                      : compressionThreadCount();
+        int workers = blockCompression()
+                      ? threads
+                      : (int) Math.min(threads, parts);
+
+        System.out.printf("圧縮設定の自動調整: サンプル %dKB, 見積もり全体 %dMB, ワーカー数 %d%n",
+                Math.min(sampleData.length, sampleBytes) / 1024, totalBytes / (1024 * 1024), workers);
+        CompressionTuner.Result result = new CompressionTuner(
+                CompressionTuner.DEFAULT_CANDIDATES,
+                config.compressMemoryBytes(),
+                workers,
+                this::xzCodec)
+                .tune(
+                        sampleData,
+                        Math.min(sampleData.length, sampleBytes),
+                        totalBytes,
+                        config.compressTuneSeconds(),
+                        config.compressTuneRatio());
+
+        for (CompressionTuner.Probe probe : result.probes()) {
+            System.out.printf("  %s: 圧縮率 %.2f, %.1fMB/秒, 見積もり %.0f秒, メモリ %dMB x %d%s%n",
+                    probe.name(),
+                    probe.ratio(),
+                    probe.bytesPerSecond() / (1024 * 1024),
+                    probe.estimatedSeconds(),
+                    probe.memoryBytes() / (1024 * 1024),
+                    workers,
+                    probe.fitsMemory() ? "" : " (予算超過)");
+        }
+        System.out.println("選択: " + result.chosen().name() + " (" + result.reason() + ")");
+        tunedOptions = result.options();
+        metrics.detail("compressionTuning", result.toReport());
     }
 
     /**
-     * {@code file.txt}が完全に生成されているかどうかを確認します。
+     * 最初のチャンクの行数を返します。
      *
-     * <p>このメソッドは、{@link #main(String[])}メソッドで呼び出されます。
+     * @return {@code chunk.rows=auto}の場合は{@link ChunkSizer}が決めた最初の行数、それ以外は{@code chunk.rows}
+     */
+    private int initialChunkRows() {
+        ChunkSizer sizer = chunkSizer;
+        return sizer != null ? sizer.initialRows() : config.chunkRows();
+    }
+
+    /**
+     * {@link ChunkSizer}の見積もりに使う、エンコードや圧縮を待つ間に同時に保持されるチャンクの複製の数を返します。
      *
-     * @return {@code file.txt}が完全に生成されている場合は{@code true}を返し、そうでない場合は{@code false}を返します。
+     * @return 複製の数
+     * @throws UnsupportedOptionsException XZの設定値が不正な場合
      */
-    private boolean isFileComplete() {
-        // file.txtが存在すれば、行数をカウント
-        // 存在しなければfalseを返す
-        try (Stream<String> lines = Files.lines(Path.of("file.txt"))) {
-            return lines.count() == 10_000_000;
-        } catch (IOException e) {
-            return false;
-        }
+    private int chunkCopiesInFlight() throws UnsupportedOptionsException {
+        return switch (config.pipelineMode()) {
+            // パートを書き出し終えてから次のチャンクを集める
+            case FILES -> 0;
+            // 圧縮待ちのスレッド数分と、投入を待つ1つ
+            case STREAMING -> compressionThreadCount() + 1;
+            // 処理中のパートと、セマフォを待つ1つ
+            case STAGED -> stagedCpuThreadCount() + 2;
+        };
     }
 
+    /**
+     * 範囲の先頭から読み取った行
+     *
+     * @param ids   ソート済みの数値
+     * @param bytes 読み取った行のバイト数（改行を含む）
+     */
+    private record Head(LongChunkBuffer ids, long bytes) {
+    }
 
     /**
-     * メモリマッピングを使用せずにJSONファイルを生成する代替メソッド
-     * 大きなファイルの場合に使用される
+     * 入力ファイルの範囲の先頭から最大{@code rows}行を読み取り、ソートして返します。
      *
-     * @param numberBuffer 数値データのバッファー
-     * @param fileIndex 生成するJSONファイル名に使用するインデックス
-     * @return 生成されたJSONファイル名
+     * @param input 入力ファイル
+     * @param range 読み取る範囲
+     * @param rows  読み取る最大行数
+     * @return ソート済みの数値と、読み取った行のバイト数
      * @throws IOException 入出力例外
      */
-    private String writeToJsonFileWithoutMapping(ArrayList<Long> numberBuffer, int fileIndex)
-            throws IOException {
-        Path outputDir = Path.of("output");
-        if (! Files.exists(outputDir)) {
-            Files.createDirectory(outputDir);
-        }
-
-        String jsonFileName = String.format(
-                "output/output_part%d.json",
-                fileIndex);
-
-        try (BufferedOutputStream bos = new BufferedOutputStream(
-                new FileOutputStream(jsonFileName), BUFFER_SIZE);
-             JsonGenerator generator = objectMapper.getFactory()
-                     .createGenerator(bos, JsonEncoding.UTF8)
-        ) {
-            generator.useDefaultPrettyPrinter();
-            generator.writeStartObject();
-            generator.writeArrayFieldStart("items");
-
-            // バッチ処理で1000件ずつ処理 - メモリ効率を向上
-            final int WRITE_BATCH_SIZE = 1000;
-            List<Long> batch = new ArrayList<>(WRITE_BATCH_SIZE);
-            Iterator<Long> iterator = numberBuffer.iterator();
-
-            // 処理済みの数を追跡
-            long processedCount = 0;
-            long totalCount = numberBuffer.size();
-
-            while (iterator.hasNext()) {
-                batch.clear();
-                while (iterator.hasNext() && batch.size() < WRITE_BATCH_SIZE) {
-                    batch.add(iterator.next());
-                }
-
-                for (Long number : batch) {
-                    generator.writeStartObject();
-                    generator.writeNumberField("id", number);
-                    generator.writeStringField(
-                            "secret",
-                            UUID.randomUUID()
-                                .toString());
-                    generator.writeEndObject();
-                }
-
-                // 進捗状況を更新
-                processedCount += batch.size();
-                if (processedCount % 100000 == 0 || processedCount == totalCount) {
-                    System.out.printf("JSONデータ生成進捗: %.1f%% (%d/%d)%n",
-                        (double)processedCount/totalCount*100, processedCount, totalCount);
+    private static Head readHead(Path input, InputRange range, int rows) throws IOException {
+        LongChunkBuffer head = new LongChunkBuffer(rows);
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            channel.position(range.startByte());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new RangeInputStream(
+                    Channels.newInputStream(channel),
+                    range.endByte() - range.startByte())));
+            String line;
+            while (head.size() < rows && (line = reader.readLine()) != null) {
+                // 数字だけの行のため、文字数がそのままバイト数になる。改行は1バイトとして数える
+                bytes += line.length() + 1;
+                if (! line.trim().isEmpty()) {
+                    head.add(Long.parseLong(line.trim()));
                 }
             }
-
-            generator.writeEndArray();
-            generator.writeEndObject();
-        } catch (IOException e) {
-            Files.deleteIfExists(Path.of(jsonFileName));
-            throw e;
         }
-
-        System.out.println(jsonFileName + "の生成が完了しました。");
-        return jsonFileName;
+        head.sort();
+        return new Head(head, bytes);
     }
 
-    private static class MappedByteBufferOutputStream extends OutputStream {
-        private final MappedByteBuffer buffer;
-
-        public MappedByteBufferOutputStream(MappedByteBuffer buffer) {
-            this.buffer = buffer;
+    /**
+     * 実行レポートを書き出します。書き出しに失敗しても処理自体の結果には影響させません。
+     */
+    private void writeRunReport() {
+        Map<String, Object> extra = new LinkedHashMap<>();
+        extra.put("sortMode", config.sortMode().name().toLowerCase(Locale.ROOT));
+        extra.put("pipelineMode", config.pipelineMode().name().toLowerCase(Locale.ROOT));
+        extra.put("compressMode", config.compressMode().name().toLowerCase(Locale.ROOT));
+        extra.put("compressCodec", config.compressCodec().name().toLowerCase(Locale.ROOT));
+        extra.put("compressLevel", config.compressLevel());
+        extra.put("inputParser", config.inputParser().name().toLowerCase(Locale.ROOT));
+        extra.put("jsonLayout", config.jsonLayout().name().toLowerCase(Locale.ROOT));
+        extra.put("outputFormat", config.outputFormat().name().toLowerCase(Locale.ROOT));
+        try {
+            metrics.writeReport(config.metricsReport(), extra);
+            System.out.println("実行レポート: " + config.metricsReport());
+        } catch (IOException e) {
+            System.err.println("実行レポートの書き出しに失敗しました: " + e.getMessage());
         }
+    }
 
+    /**
+     * JSONファイルの圧縮をスケジューラーに投入します。
+     *
+     * <p>メモリ見積もりは圧縮ストリームの使用量と入出力バッファの合計です。
+     *
+     * @param scheduler 圧縮スケジューラー
+     * @param jsonFile  圧縮するJSONファイル
+     * @return 圧縮タスクの{@link Future}
+     * @throws IOException 圧縮設定が不正な場合
+     */
+    private Future<CompressionScheduler.TaskTiming> scheduleCompression(
+            CompressionScheduler scheduler,
+            File jsonFile) throws IOException {
+        long fileSize = jsonFile.length();
+        long memoryBytes = createCodec().encoderMemoryBytes()
+                           + 2L * calculateOptimalBufferSize(fileSize);
+
+        return scheduler.submit(jsonFile.getName(), fileSize, memoryBytes, () -> {
+            System.out.println("圧縮開始: " + jsonFile.getName() +
+                               " (サイズ: " + fileSize / 1024 / 1024 + "MB)");
+            long startTime = System.currentTimeMillis();
+            compressFile(jsonFile.getPath());
+            long endTime = System.currentTimeMillis();
+            System.out.println("圧縮完了: " + jsonFile.getName() +
+                               " (処理時間: " + (endTime - startTime) / 1000 + "秒)");
+        });
+    }
 
-        /**
-         * {@inheritDoc}
-         *
-         * <p>この実装は、指定された1バイトをバッファに書き込みます。
-         *
-         * @param b 1バイトの値
-         */
-        @Override
-        public void write(int b) {
-            try {
-                buffer.put((byte) b);
-            } catch (BufferOverflowException e) {
-                throw new RuntimeException("バッファオーバーフロー: バッファサイズが不足しています", e);
+    /**
+     * 圧縮タスクごとの待ち時間と実行時間を出力します。
+     *
+     * @param timings 圧縮タスクの計測結果
+     */
+    private void reportCompressionTimings(List<CompressionScheduler.TaskTiming> timings) {
+        System.out.println("圧縮タスクの計測結果:");
+        for (CompressionScheduler.TaskTiming timing : timings) {
+            if (timing.waitMillis() > 0) {
+                metrics.recordLatency(RunMetrics.Stage.QUEUE_WAIT, TimeUnit.MILLISECONDS.toNanos(timing.waitMillis()));
             }
+            System.out.printf("  %s: 入力 %dMB, メモリ見積もり %dMB, 待ち %.1f秒, 実行 %.1f秒%n",
+                    timing.name(),
+                    timing.inputBytes() / (1024 * 1024),
+                    timing.memoryBytes() / (1024 * 1024),
+                    timing.waitMillis() / 1000.0,
+                    timing.runMillis() / 1000.0);
+        }
+    }
+
+    /**
+     * 各JSONファイルをブロック単位の並列圧縮で1つずつ圧縮します。
+     *
+     * <p>ファイル単位ではなくブロック単位で並列化するため、
+     * ファイル数がスレッド数より少なくても全スレッドが圧縮に使われます。
+     *
+     * @param jsonFiles 圧縮するJSONファイル名のリスト
+     * @throws IOException 入出力例外
+     */
+    private void compressFilesBlockParallel(List<String> jsonFiles) throws IOException {
+        int threadCount = compressionThreadCount();
+        System.out.println("全JSONファイルのブロック並列圧縮を開始します... (スレッド数: " + threadCount +
+                           ", ブロックサイズ: " + config.compressBlockSize() / (1024 * 1024) + "MB" +
+                           ", 圧縮形式: " + config.compressCodec().name().toLowerCase(Locale.ROOT) + ")");
+
+        try (ExecutorService blockExecutor = Executors.newFixedThreadPool(threadCount)) {
+            for (String jsonFile : jsonFiles) {
+                System.out.println("圧縮開始: " + jsonFile +
+                                   " (サイズ: " + new File(jsonFile).length() / 1024 / 1024 + "MB)");
+                long startTime = System.currentTimeMillis();
+                compressFile(jsonFile, blockExecutor);
+                long endTime = System.currentTimeMillis();
+                System.out.println("圧縮完了: " + jsonFile +
+                                   " (処理時間: " + (endTime - startTime) / 1000 + "秒)");
+            }
+        }
+    }
+
+    /**
+     * JSONの生成とXZ圧縮をパイプラインで同時に行います。
+     *
+     * <p>各チャンクのJSONは有界キューを通して直接圧縮ストリームに渡され、
+     * 非圧縮の{@code output_partN.json}は書き出されません。
+     * ディスクI/Oと一時領域を大幅に削減できます。
+     *
+     * @throws IOException 入出力例外
+     */
+    private void processFileStreaming() throws IOException {
+        int threadCount = compressionThreadCount();
+        CompressionCodec codec = createCodec();
+        System.out.println("パイプライン圧縮モード (スレッド数: " + threadCount
+                           + ", 圧縮形式: " + codec.type().name().toLowerCase(Locale.ROOT) + ")");
+        createOutputDirectory();
+
+        List<Future<String>> tasks = new ArrayList<>();
+        try (StreamingPartCompressor compressor = new StreamingPartCompressor(
+                this::encodeStreamingPart,
+                codec,
+                threadCount,
+                metrics,
+                this::recordCompressed,
+                this::openWriteBehind,
+                forceOnCommit())
+        ) {
+            writeParts((numberBuffer, fileIndex) -> {
+                String outputFileName = partFileName(fileIndex, config.outputFormat()) + codec.extension();
+                tasks.add(compressor.submit(numberBuffer.array(), numberBuffer.size(), fileIndex, outputFileName));
+                return outputFileName;
+            });
+
+            for (Future<String> task : tasks) {
+                awaitCompression(task);
+            }
+        }
+    }
+
+    /**
+     * 入出力を待つ段階を仮想スレッドで、エンコードと圧縮をプラットフォームスレッドのプールで実行します。
+     *
+     * <p>パートごとに1つの仮想スレッドが、エンコード（CPU）、一時ファイルの名前の変更（入出力）、
+     * 圧縮（CPU）、圧縮ファイルの反映と確定、JSONファイルの削除（入出力）を順に進めます。
+     * CPUを使う段階は{@link StageScope#cpu(Callable)}で{@link #stagedCpuThreadCount()}個のスレッドのプールに渡し、
+     * 仮想スレッドはその完了を待つだけです。ファイルへの書き出しも仮想スレッドの{@link WriteBehindOutputStream}が行うため、
+     * プールのスレッドはシステムコールで止まらずにエンコードと圧縮を続けられます。
+     *
+     * <p>いずれかのパートが失敗すると、処理中の他のパートは取り消され、入力の解析もその時点で止まります。
+     * 同時に処理するパートはプールのスレッド数+1までで、超えると解析が待機します。
+     *
+     * @throws IOException 入出力例外
+     */
+    private void processFileStaged() throws IOException {
+        int cpuThreads = stagedCpuThreadCount();
+        CompressionCodec codec = createCodec();
+        RecordEncoder encoder = partEncoder();
+        System.out.println("段階別実行モード (CPUスレッド数: " + cpuThreads + ", 入出力: 仮想スレッド"
+                           + ", 圧縮形式: " + codec.type().name().toLowerCase(Locale.ROOT) + ")");
+        if (config.outputWriter() != RunConfig.OutputWriter.ASYNC) {
+            System.out.println("段階別実行モードでは、パートをoutput.writer=asyncで書き込みます");
+        }
+        createOutputDirectory();
+
+        Semaphore inFlight = new Semaphore(cpuThreads + 1);
+        try (StageScope scope = new StageScope(cpuThreads)) {
+            stageScope = scope;
+            writeParts((numberBuffer, fileIndex) -> {
+                String jsonFileName = partFileName(fileIndex, encoder.format());
+                LongChunkBuffer ids = numberBuffer.copy();
+                if (! inFlight.tryAcquire()) {
+                    long waitStart = System.nanoTime();
+                    try {
+                        inFlight.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("パートの処理待ちで中断されました");
+                    }
+                    metrics.recordLatency(RunMetrics.Stage.QUEUE_WAIT, System.nanoTime() - waitStart);
+                }
+                try {
+                    scope.fork(() -> {
+                        try {
+                            processPartStaged(scope, ids, fileIndex, jsonFileName, encoder, codec);
+                        } finally {
+                            inFlight.release();
+                        }
+                        return null;
+                    });
+                } catch (IOException | RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                return jsonFileName;
+            });
+            scope.join();
+        } finally {
+            stageScope = null;
+        }
+    }
+
+    /**
+     * 1パートのエンコードから圧縮ファイルの確定までを、パートの仮想スレッドで順に進めます。
+     */
+    private void processPartStaged(
+            StageScope scope,
+            LongChunkBuffer ids,
+            int fileIndex,
+            String jsonFileName,
+            RecordEncoder encoder,
+            CompressionCodec codec) throws IOException {
+        Path tempFile = RunJournal.tempFor(Path.of(jsonFileName));
+        scope.cpu(() -> {
+            encodePart(ids, fileIndex, encoder, tempFile);
+            return null;
+        });
+        commitPart(fileIndex, tempFile, jsonFileName);
+
+        long fileSize = Files.size(Path.of(jsonFileName));
+        CompressedPart compressed = scope.cpu(() -> compressToTemp(
+                jsonFileName,
+                null,
+                codec,
+                calculateOptimalBufferSize(fileSize)));
+        if (compressed != null) {
+            commitCompressed(compressed);
+        }
+    }
+
+    /**
+     * パートの圧縮ファイルを確定したことをジャーナルに記録します。
+     */
+    private void recordCompressed(int partIndex, Path file) throws IOException {
+        RunJournal runJournal = journal;
+        if (runJournal != null) {
+            runJournal.recordCompressed(partIndex, file);
+        }
+    }
+
+    /**
+     * パートの圧縮後のファイルに対する{@link SparseIdIndex}を書き出します。
+     *
+     * <p>XZのブロックは、ブロック並列圧縮では{@link RunConfig#compressBlockSize()}、
+     * それ以外では{@link RunConfig#indexBlockSize()}ごとに区切られます。
+     *
+     * @param numberBuffer ソート済みの数値データのバッファー
+     * @param fileIndex    パート番号
+     * @throws IOException 入出力例外
+     */
+    private void writeIdIndex(LongChunkBuffer numberBuffer, int fileIndex) throws IOException {
+        CompressionCodec codec = createCodec();
+        long blockBytes = 0;
+        if (codec.type() == CompressionCodec.Type.XZ) {
+            blockBytes = blockCompression() ? config.compressBlockSize() : config.indexBlockSize();
+        }
+        SparseIdIndex.write(
+                Path.of(partFileName(fileIndex, config.outputFormat()) + codec.extension()),
+                partEncoder(),
+                codec.type(),
+                blockBytes,
+                numberBuffer.array(),
+                numberBuffer.size(),
+                syncMetadata());
+    }
+
+    /**
+     * パートのファイル名を返します。
+     *
+     * @param fileIndex パート番号
+     * @param format    ファイル形式
+     * @return {@code output/output_partN.json}などのファイル名
+     */
+    private static String partFileName(int fileIndex, RecordEncoder.Format format) {
+        return String.format(
+                "output/output_part%d",
+                fileIndex) + format.extension();
+    }
+
+    /**
+     * {@link RunConfig#outputFormat()}に応じたエンコーダーを返します。
+     */
+    private RecordEncoder partEncoder() {
+        return config.outputFormat() == RecordEncoder.Format.BINARY ? binaryEncoder : jsonEncoder;
+    }
+
+    /**
+     * パイプライン圧縮の1パートをJSONとしてエンコードします。
+     */
+    private void encodeStreamingPart(long[] ids, int count, int partIndex, OutputStream out) throws IOException {
+        long startTime = System.nanoTime();
+        RecordEncoder encoder = partEncoder();
+        encoder.encode(ids, count, secretGenerator(partIndex), out);
+        metrics.recordLatency(RunMetrics.Stage.ENCODE, System.nanoTime() - startTime);
+        metrics.add(RunMetrics.Stage.ENCODE, count, encoder.encodedSize(ids, count));
+    }
+
+    /**
+     * 設定されたソート方式で入力をパートに分け、各パートを出力します。
+     *
+     * @param writer パートの出力方法
+     * @return 出力されたファイル名のリスト
+     * @throws IOException 入出力例外
+     */
+    private List<String> writeParts(PartWriter writer) throws IOException {
+        return switch (config.sortMode()) {
+            case CHUNK -> writeChunkSortedParts(writer);
+            case EXTERNAL -> writeExternallySortedParts(writer);
+            case BITMAP -> writeBitmapSortedParts(writer);
+        };
+    }
+
+    /**
+     * 入力を1,000,000行ごとのチャンクに分け、チャンク内でソートして出力します。
+     *
+     * <p>各パートはチャンク内でのみソートされるため、パート間のID範囲は重なることがあります。
+     *
+     * @param writer パートの出力方法
+     * @return 出力されたファイル名のリスト
+     * @throws IOException 入出力例外
+     */
+    private List<String> writeChunkSortedParts(PartWriter writer) throws IOException {
+        PartCollector collector = new PartCollector(writer, false);
+        readNumbers(collector);
+        return collector.finish();
+    }
+
+    /**
+     * 入力全体を外部マージソートし、連続したID範囲ごとに出力します。
+     *
+     * <p>ソートに使うメモリは{@link RunConfig#sortMemoryBytes()}に制限され、
+     * 超過分はランとしてディスクに書き出されます。そのためヒープより大きな入力も処理できます。
+     *
+     * @param writer パートの出力方法
+     * @return 出力されたファイル名のリスト
+     * @throws IOException 入出力例外
+     */
+    private List<String> writeExternallySortedParts(PartWriter writer) throws IOException {
+        System.out.printf("外部ソートモード (メモリ予算: %dMB)%n", config.sortMemoryBytes() / (1024 * 1024));
+        try (ExternalSorter sorter = new ExternalSorter(config.sortMemoryBytes(), config.sortTempDir())) {
+            long parseStart = System.nanoTime();
+            ChunkSizer sizer = chunkSizer;
+            if (sizer == null) {
+                readNumbers(sorter::add);
+            } else {
+                // ヒープが不足しそうなら、予算に達する前にランを書き出す
+                readNumbers(value -> {
+                    sorter.add(value);
+                    if ((sorter.count() & (PRESSURE_CHECK_ROWS - 1)) == 0
+                        && sorter.bufferedCount() >= ChunkSizer.MIN_ROWS
+                        && sizer.takePressure()) {
+                        sorter.relieveMemory();
+                    }
+                });
+            }
+            metrics.recordLatency(RunMetrics.Stage.PARSE, System.nanoTime() - parseStart);
+            metrics.add(RunMetrics.Stage.PARSE, sorter.count(), 0);
+
+            PartCollector collector = new PartCollector(writer, true);
+            sorter.merge(collector);
+            return collector.finish();
+        }
+    }
+
+    /**
+     * 入力のIDをビットマップに立て、重複を除いて昇順に出力します。
+     *
+     * <p>解析中は1行あたり1ビットを立てるだけで、ソートはビットマップの先頭からの走査（計数ソート）で済みます。
+     * 2回目以降に現れたIDは出力せず、別のビットマップに記録して、欠番とあわせて{@code output/id-report.json}に書き出します。
+     * 2つのビットマップはそれぞれ{@link RunConfig#sortMemoryBytes()}の半分までに制限され、
+     * IDの範囲がそれを超える場合は{@link IOException}になります。
+     *
+     * @param writer パートの出力方法
+     * @return 出力されたファイル名のリスト
+     * @throws IOException 入出力例外
+     */
+    private List<String> writeBitmapSortedParts(PartWriter writer) throws IOException {
+        Path input = Path.of("file.txt");
+        InputManifest manifest = InputManifest.read(input);
+        long maxBytes = config.sortMemoryBytes() / 2;
+        System.out.printf("ビットマップモード (上限: %dMB x 2)%n", maxBytes / (1024 * 1024));
+        try (IdBitmap ids = new IdBitmap(manifest != null ? manifest.rows() + 1 : 1L << 26, maxBytes);
+             IdBitmap duplicates = new IdBitmap(0, maxBytes)) {
+            // [0]: 行数, [1]: 重複して除いた行数
+            long[] rows = new long[2];
+            long parseStart = System.nanoTime();
+            // 改行で終わっていない最後の行を除くため、他のソート方式と同じく今回の範囲だけを読む
+            readNumbers(id -> {
+                rows[0]++;
+                if (! ids.add(id)) {
+                    duplicates.add(id);
+                    rows[1]++;
+                }
+            });
+            metrics.recordLatency(RunMetrics.Stage.PARSE, System.nanoTime() - parseStart);
+            metrics.add(RunMetrics.Stage.PARSE, rows[0], 0);
+
+            PartCollector collector = new PartCollector(writer, true);
+            ids.forEach(ids.minId(), ids.maxId(), collector);
+            List<String> files = collector.finish();
+            // パートに出力したのは重複を除いた行のため、入力の行数で置き換える
+            processedRows = rows[0];
+
+            DenseIdReport report = DenseIdReport.create(
+                    ids,
+                    duplicates,
+                    rows[0],
+                    rows[1],
+                    manifest != null ? 1 : ids.minId(),
+                    manifest != null ? manifest.rows() : ids.maxId());
+            Path reportPath = Path.of("output", "id-report.json");
+            report.write(reportPath, syncMetadata());
+            System.out.printf("ID: %,d行, 重複を除いて%,d件 (重複 %,d行 / %,d件, 欠番 %,d件, 範囲外 %,d件, ビットマップ %,dKB) -> %s%n",
+                    report.rows(),
+                    report.distinctIds(),
+                    report.duplicateRows(),
+                    report.duplicateIds(),
+                    report.missingIds(),
+                    report.outOfRangeIds(),
+                    (ids.sizeBytes() + duplicates.sizeBytes()) / 1024,
+                    reportPath);
+            Map<String, Object> detail = new LinkedHashMap<>();
+            detail.put("distinctIds", report.distinctIds());
+            detail.put("duplicateRows", report.duplicateRows());
+            detail.put("missingIds", report.missingIds());
+            detail.put("bitmapBytes", ids.sizeBytes() + duplicates.sizeBytes());
+            metrics.detail("idReport", detail);
+            return files;
+        }
+    }
+
+    /**
+     * {@code file.txt}の空行以外の各行を数値として読み取り、出力先に渡します。
+     *
+     * <p>{@link RunConfig#inputParser()}が{@code MAPPED}の場合はファイルをメモリマップして並列に解析します。
+     * どちらの方式でも、数値はファイル内の順序どおりに渡されます。
+     *
+     * @param sink 読み取った数値の出力先
+     * @throws IOException 入出力例外
+     */
+    private void readNumbers(LongSink sink) throws IOException {
+        InputRange range = inputRange;
+        readNumbers(Path.of("file.txt"), range.startByte(), range.endByte(), sink);
+    }
+
+    /**
+     * 指定されたファイルの空行以外の各行を数値として読み取り、出力先に渡します。
+     *
+     * @param input 入力ファイル
+     * @param sink  読み取った数値の出力先
+     * @throws IOException 入出力例外
+     */
+    void readNumbers(Path input, LongSink sink) throws IOException {
+        readNumbers(input, 0, Files.size(input), sink);
+    }
+
+    /**
+     * 指定されたファイルの範囲内の空行以外の各行を数値として読み取り、出力先に渡します。
+     *
+     * @param input 入力ファイル
+     * @param start 開始位置（バイト、行頭）
+     * @param end   終了位置（バイト、この位置を含まない行頭）
+     * @param sink  読み取った数値の出力先
+     * @throws IOException 入出力例外
+     */
+    private void readNumbers(Path input, long start, long end, LongSink sink) throws IOException {
+        if (config.inputParser() == RunConfig.InputParser.MAPPED) {
+            readNumbersMapped(input, start, end, sink);
+        } else {
+            readNumbersBuffered(input, start, end, sink);
+        }
+        metrics.add(RunMetrics.Stage.PARSE, 0, end - start);
+    }
+
+    /**
+     * 入力ファイルを{@link BufferedReader}で1行ずつ読み取ります。
+     *
+     * @param input 入力ファイル
+     * @param start 開始位置（バイト、行頭）
+     * @param end   終了位置（バイト、この位置を含まない行頭）
+     * @param sink  読み取った数値の出力先
+     * @throws IOException 入出力例外
+     */
+    private void readNumbersBuffered(Path input, long start, long end, LongSink sink) throws IOException {
+
+        // 方法1: より小さなバッファサイズを使用
+        try (FileInputStream in = new FileInputStream(input.toFile())) {
+            in.getChannel().position(start);
+            // 改行コードによらず範囲の終わりで止まるように、読み取るバイト数で区切る
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new RangeInputStream(in, end - start)),
+                    BUFFER_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (! line.trim().isEmpty()) {
+                    sink.accept(Long.parseLong(line.trim()));
+                }
+            }
+        }
+
+        // 方法2: ストリーム処理を使用する場合は以下のコードを使用
+        // 注意: 上記のBufferedReaderを使用する方法と同時に使用しないこと
+        /*
+        Path filePath = Path.of("file.txt");
+        // グループごとの最大サイズ
+        final int GROUP_SIZE = 1_000_000;
+
+        // ファイルをストリーム処理し、GROUP_SIZEごとにグループ化
+        Map<Integer, List<Long>> groups = Files.lines(filePath)
+            .filter(line -> !line.trim().isEmpty())
+            .map(Long::parseLong)
+            .collect(Collectors.groupingBy(n -> (int)(n / GROUP_SIZE)));
+
+        // 各グループを処理
+        for (Map.Entry<Integer, List<Long>> entry : groups.entrySet()) {
+            ArrayList<Long> numberBuffer = new ArrayList<>(entry.getValue());
+            Collections.sort(numberBuffer);
+            String jsonFile = writeToJsonFile(numberBuffer, currentFileIndex++);
+            jsonFiles.add(jsonFile);
+        }
+        */
+    }
+
+    /**
+     * 指定したバイト数だけを読み取り、その後はファイルの終わりとして扱う入力ストリーム
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * 入力ファイルをメモリマップし、改行で区切った範囲ごとに並列に解析します。
+     *
+     * @param input 入力ファイル
+     * @param start 開始位置（バイト、行頭）
+     * @param end   終了位置（バイト、この位置を含まない行頭）
+     * @param sink  読み取った数値の出力先
+     * @throws IOException 入出力例外
+     */
+    private void readNumbersMapped(Path input, long start, long end, LongSink sink) throws IOException {
+        try (MappedLineParser parser = new MappedLineParser(
+                input, config.inputThreads(), BUFFER_SIZE)
+        ) {
+            parser.parse(start, end, (values, count, startOffset, endOffset) -> {
+                for (int i = 0; i < count; i++) {
+                    sink.accept(values[i]);
+                }
+            });
+        }
+    }
+
+    /**
+     * {@link RunConfig#outputFormat()}の形式でパートのファイルを生成します。
+     *
+     * @param numberBuffer ソート済みの数値データのバッファー
+     * @param fileIndex    生成するファイル名に使用するインデックス
+     * @return 生成されたファイル名
+     * @throws IOException 入出力例外
+     */
+    private String writePartFile(LongChunkBuffer numberBuffer, int fileIndex) throws IOException {
+        return switch (config.outputFormat()) {
+            case JSON -> writeToJsonFile(numberBuffer, fileIndex);
+            case BINARY -> writeToBinaryFile(numberBuffer, fileIndex);
+        };
+    }
+
+    /**
+     * 並列処理でJSONファイルを生成
+     *
+     * <p>このメソッドは、{@link #processFile()}メソッドで呼び出されます。
+     *
+     * @param numberBuffer ソート済みの数値データのバッファー
+     * @param fileIndex    生成するJSONファイル名に使用するインデックス
+     * @return 生成されたJSONファイル名
+     * @throws IOException 入出力例外
+     */
+    String writeToJsonFile(LongChunkBuffer numberBuffer, int fileIndex)
+            throws IOException {
+        return writePart(numberBuffer, fileIndex, jsonEncoder);
+    }
+
+    /**
+     * {@link BinaryRecordEncoder}の形式でパートのファイル（{@code output_partN.bin}）を生成します。
+     * JSONへは{@link BinaryPartReader#convertToJson(Path, Path, JsonRecordEncoder.Layout)}で変換できます。
+     *
+     * @param numberBuffer ソート済みの数値データのバッファー
+     * @param fileIndex    生成するファイル名に使用するインデックス
+     * @return 生成されたファイル名
+     * @throws IOException 入出力例外
+     */
+    String writeToBinaryFile(LongChunkBuffer numberBuffer, int fileIndex)
+            throws IOException {
+        return writePart(numberBuffer, fileIndex, binaryEncoder);
+    }
+
+    /**
+     * {@link #partWriter()}の方法でパートを書き込みます。
+     */
+    private String writePart(LongChunkBuffer numberBuffer, int fileIndex, RecordEncoder encoder)
+            throws IOException {
+        createOutputDirectory();
+
+        String jsonFileName = partFileName(fileIndex, encoder.format());
+        // 書きかけのファイルが完成したファイルに見えないよう、一時ファイルに書いてから名前を変える
+        Path tempFile = RunJournal.tempFor(Path.of(jsonFileName));
+        encodePart(numberBuffer, fileIndex, encoder, tempFile);
+        commitPart(fileIndex, tempFile, jsonFileName);
+        return jsonFileName;
+    }
+
+    /**
+     * パートを一時ファイルにエンコードします。失敗した場合は一時ファイルを削除します。
+     */
+    private void encodePart(LongChunkBuffer numberBuffer, int fileIndex, RecordEncoder encoder, Path tempFile)
+            throws IOException {
+        try {
+            switch (partWriter()) {
+                case MAPPED -> writeMappedPart(numberBuffer, fileIndex, encoder, tempFile);
+                case ASYNC -> writeAsyncPart(numberBuffer, fileIndex, encoder, tempFile);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * パートの書き込み方を返します。
+     *
+     * <p>{@code pipeline.mode=staged}では、{@link RunConfig#outputWriter()}によらず{@link WriteBehindOutputStream}を使います。
+     * メモリマップではエンコードするCPUのプールのスレッドがページフォールトと書き戻しで止まり、
+     * 入出力を仮想スレッドに分ける意味がなくなるためです。
+     *
+     * @return 書き込み方
+     */
+    private RunConfig.OutputWriter partWriter() {
+        return config.pipelineMode() == RunConfig.PipelineMode.STAGED
+               ? RunConfig.OutputWriter.ASYNC
+               : config.outputWriter();
+    }
+
+    /**
+     * エンコードしたパートの一時ファイルを本来のファイル名に置き換え、ジャーナルに記録します。
+     */
+    private void commitPart(int fileIndex, Path tempFile, String jsonFileName) throws IOException {
+        // output.sync=noneでは中間ファイルのディスクへの書き出しは待たない。再開時は圧縮済みのパートだけを信用する
+        Files.move(tempFile, Path.of(jsonFileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        RunJournal runJournal = journal;
+        if (runJournal != null) {
+            runJournal.recordWritten(fileIndex, Path.of(jsonFileName));
+        }
+
+        System.out.println(jsonFileName + "の生成が完了しました。");
+    }
+
+    /**
+     * エンコーダーが求めた出力サイズでファイルをメモリマップし、パートを書き込みます。
+     * {@link RunConfig#outputSync()}が{@code none}以外の場合は、閉じる前にディスクへ反映します。
+     */
+    private void writeMappedPart(LongChunkBuffer numberBuffer, int fileIndex, RecordEncoder encoder, Path tempFile)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(
+                tempFile.toFile(),
+                "rw"); FileChannel channel = raf.getChannel()
+        ) {
+            // レコードの形が固定なので、出力サイズは事前に正確に求められる
+            long size = encoder.encodedSize(numberBuffer.array(), numberBuffer.size());
+            raf.setLength(size);
+
+            try (MappedSegmentOutputStream outputStream = new MappedSegmentOutputStream(
+                    channel,
+                    size)
+            ) {
+                long startTime = System.nanoTime();
+                encoder.encode(
+                        numberBuffer.array(),
+                        numberBuffer.size(),
+                        secretGenerator(fileIndex),
+                        outputStream);
+                outputStream.checkComplete();
+                metrics.recordLatency(RunMetrics.Stage.ENCODE, System.nanoTime() - startTime);
+                metrics.add(RunMetrics.Stage.ENCODE, numberBuffer.size(), size);
+                if (config.outputSync() != RunConfig.OutputSync.NONE) {
+                    outputStream.force();
+                }
+            }
+        }
+    }
+
+    /**
+     * パートを{@link WriteBehindOutputStream}に書き込みます。エンコードはディスクへの書き出しを待たずに進みます。
+     */
+    private void writeAsyncPart(LongChunkBuffer numberBuffer, int fileIndex, RecordEncoder encoder, Path tempFile)
+            throws IOException {
+        long size = encoder.encodedSize(numberBuffer.array(), numberBuffer.size());
+        try (WriteBehindOutputStream outputStream = openWriteBehind(tempFile)) {
+            long startTime = System.nanoTime();
+            encoder.encode(
+                    numberBuffer.array(),
+                    numberBuffer.size(),
+                    secretGenerator(fileIndex),
+                    outputStream);
+            if (outputStream.size() != size) {
+                throw new IOException("出力サイズが一致しません: 予定 " + size + " バイト, 実際 " + outputStream.size() + " バイト");
+            }
+            metrics.recordLatency(RunMetrics.Stage.ENCODE, System.nanoTime() - startTime);
+            metrics.add(RunMetrics.Stage.ENCODE, numberBuffer.size(), size);
+        }
+    }
+
+    /**
+     * ファイルを作成し、書き込みスレッドに書き出しを任せる出力ストリームを返します。
+     *
+     * @param file 出力先
+     * @return 出力ストリーム
+     * @throws IOException ファイルを作成できない場合
+     */
+    private WriteBehindOutputStream openWriteBehind(Path file) throws IOException {
+        return new WriteBehindOutputStream(
+                FileChannel.open(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING),
+                ioBuffers,
+                config.outputBuffers(),
+                config.outputSync(),
+                config.outputSyncIntervalNanos(),
+                metrics,
+                stageScope != null ? stageScope.ioThreads() : WRITER_THREADS);
+    }
+
+    /**
+     * {@link #openWriteBehind(Path)}で書いた出力ファイルを確定するときに、ディスクへ反映する必要があるかを返します。
+     *
+     * <p>{@code output.sync=part}では閉じるときに反映済みのため、もう一度は反映しません。
+     * {@code periodic}では最後の定期的な反映より後に書いた分を反映します。
+     *
+     * @return 反映する場合は{@code true}
+     */
+    private boolean forceOnCommit() {
+        return config.outputSync() == RunConfig.OutputSync.PERIODIC;
+    }
+
+    /**
+     * インデックスや状態ファイルなど、書き込み側が反映しない小さなファイルを確定するときに、ディスクへ反映するかを返します。
+     *
+     * @return {@code output.sync}が{@code none}以外の場合は{@code true}
+     */
+    private boolean syncMetadata() {
+        return config.outputSync() != RunConfig.OutputSync.NONE;
+    }
+
+    /**
+     * 並列処理でJSONファイルを圧縮
+     *
+     * <p>このメソッドは、{@link #processFile()}メソッドで呼び出されます。
+     *
+     * @param jsonFileName 圧縮するJSONファイル名
+     * @throws IOException 入出力例外
+     */
+    private void compressFile(String jsonFileName) throws IOException {
+        compressFile(jsonFileName, null);
+    }
+
+    /**
+     * JSONファイルを{@link RunConfig#compressCodec()}の形式で圧縮します。
+     *
+     * @param jsonFileName  圧縮するJSONファイル名
+     * @param blockExecutor ブロック並列圧縮に使うワーカープール。{@code null}の場合は単一スレッドで圧縮します
+     * @throws IOException 入出力例外
+     */
+    private void compressFile(String jsonFileName, ExecutorService blockExecutor) throws IOException {
+        long fileSize = new File(jsonFileName).length();
+
+        // ファイルサイズに基づいてバッファサイズを調整
+        compressFile(jsonFileName, blockExecutor, createCodec(), calculateOptimalBufferSize(fileSize));
+    }
+
+    /**
+     * 圧縮形式とバッファサイズを指定してJSONファイルを圧縮します。
+     *
+     * <p>圧縮しない形式（{@link CompressionCodec#store()}）では、JSONファイルをそのまま出力とします。
+     *
+     * @param jsonFileName      圧縮するJSONファイル名
+     * @param blockExecutor     ブロック並列圧縮に使うワーカープール。{@code null}の場合は単一スレッドで圧縮します
+     * @param codec             圧縮形式
+     * @param optimalBufferSize 入出力のバッファサイズ（バイト）
+     * @throws IOException 入出力例外
+     */
+    void compressFile(
+            String jsonFileName,
+            ExecutorService blockExecutor,
+            CompressionCodec codec,
+            int optimalBufferSize) throws IOException {
+        CompressedPart compressed = compressToTemp(jsonFileName, blockExecutor, codec, optimalBufferSize);
+        if (compressed != null) {
+            commitCompressed(compressed);
+        }
+    }
+
+    /**
+     * 一時ファイルに圧縮した状態のパート
+     *
+     * @param jsonFileName       圧縮したJSONファイル名
+     * @param compressedFileName 確定後の圧縮ファイル名
+     * @param tempFile           圧縮ファイルの一時ファイル
+     * @param inputBytes         圧縮前のバイト数
+     * @param startNanos         圧縮を開始した時刻（{@link System#nanoTime()}）
+     * @param event              圧縮ファイルのJFRイベント
+     */
+    private record CompressedPart(
+            String jsonFileName,
+            String compressedFileName,
+            Path tempFile,
+            long inputBytes,
+            long startNanos,
+            RunMetrics.CompressedFileEvent event) {
+    }
+
+    /**
+     * JSONファイルを一時ファイルに圧縮します。CPUを使う部分で、ファイルの確定は{@link #commitCompressed(CompressedPart)}で行います。
+     *
+     * @return 圧縮したパート。圧縮しない形式では{@code null}
+     */
+    private CompressedPart compressToTemp(
+            String jsonFileName,
+            ExecutorService blockExecutor,
+            CompressionCodec codec,
+            int optimalBufferSize) throws IOException {
+        String compressedFileName = jsonFileName + codec.extension();
+        File jsonFile = new File(jsonFileName);
+        long fileSize = jsonFile.length();
+
+        if (codec.type() == CompressionCodec.Type.STORE) {
+            // パートのファイルをそのまま確定するため、圧縮ファイルと同じくジャーナルに記録する前に反映する。
+            // メモリマップで書いたパートはoutput.syncがnone以外なら閉じるときに反映済み
+            if (forceOnCommit() && partWriter() == RunConfig.OutputWriter.ASYNC) {
+                RunJournal.force(Path.of(jsonFileName));
+            }
+            metrics.add(RunMetrics.Stage.COMPRESS, 1, fileSize);
+            recordCompressed(jsonFileName, jsonFileName);
+            System.out.println(jsonFileName + "は圧縮せずに出力します。");
+            return null;
+        }
+        Path tempFile = RunJournal.tempFor(Path.of(compressedFileName));
+
+        System.out.println("圧縮用バッファサイズ: " + (optimalBufferSize / 1024) + "KB");
+        long startTime = System.nanoTime();
+        RunMetrics.CompressedFileEvent event = new RunMetrics.CompressedFileEvent();
+        event.begin();
+
+        // JSONはファイル全体を1つのセグメントとしてマップし、圧縮ファイルは書き込みスレッドに任せる
+        try (Arena arena = Arena.ofConfined();
+                FileChannel input = FileChannel.open(Path.of(jsonFileName), StandardOpenOption.READ);
+                OutputStream output = openWriteBehind(tempFile);
+                OutputStream compressedOut = blockExecutor == null
+                        ? codec.open(output)
+                        : codec.openParallel(
+                                output,
+                                config.compressBlockSize(),
+                                blockExecutor,
+                                compressionThreadCount() + 1)
+        ) {
+            MemorySegment json = input.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, arena);
+            // 圧縮ストリームはbyte[]しか受け取らないため、optimalBufferSizeずつヒープにコピーして渡す
+            byte[] buffer = new byte[Math.clamp(fileSize, 1, optimalBufferSize)];
+
+            for (long position = 0; position < fileSize; ) {
+                int n = (int) Math.min(buffer.length, fileSize - position);
+                MemorySegment.copy(json, ValueLayout.JAVA_BYTE, position, buffer, 0, n);
+                compressedOut.write(buffer, 0, n);
+                position += n;
+
+                // 進捗は表示スレッドが一定間隔で表示する
+                metrics.add(RunMetrics.Stage.COMPRESS, 0, n);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        return new CompressedPart(jsonFileName, compressedFileName, tempFile, fileSize, startTime, event);
+    }
+
+    /**
+     * 圧縮した一時ファイルをディスクに反映して本来のファイル名で確定し、元のJSONファイルを削除します。
+     */
+    private void commitCompressed(CompressedPart compressed) throws IOException {
+        String jsonFileName = compressed.jsonFileName();
+        String compressedFileName = compressed.compressedFileName();
+        RunJournal.commit(compressed.tempFile(), Path.of(compressedFileName), forceOnCommit());
+        recordCompressed(jsonFileName, compressedFileName);
+
+        metrics.add(RunMetrics.Stage.COMPRESS, 1, 0);
+        metrics.recordLatency(RunMetrics.Stage.COMPRESS, System.nanoTime() - compressed.startNanos());
+        RunMetrics.CompressedFileEvent event = compressed.event();
+        event.end();
+        if (event.shouldCommit()) {
+            event.fileName = compressedFileName;
+            event.inputBytes = compressed.inputBytes();
+            event.outputBytes = new File(compressedFileName).length();
+            event.commit();
+        }
+
+        // 元のJSONファイルを削除
+        Files.delete(Path.of(jsonFileName));
+        System.out.println(compressedFileName + "の生成が完了しました。");
+    }
+
+    /**
+     * JSONファイルを圧縮したファイルを確定したことをジャーナルに記録します。
+     */
+    private void recordCompressed(String jsonFileName, String compressedFileName) throws IOException {
+        RunJournal runJournal = journal;
+        if (runJournal != null) {
+            runJournal.recordCompressed(Path.of(jsonFileName), Path.of(compressedFileName));
+        }
+    }
+
+    /**
+     * {@link RunConfig#compressCodec()}と{@link RunConfig#compressLevel()}に応じた圧縮形式を生成します。
+     *
+     * @return 圧縮形式
+     * @throws UnsupportedOptionsException XZの設定値が不正な場合
+     */
+    CompressionCodec createCodec() throws UnsupportedOptionsException {
+        return switch (config.compressCodec()) {
+            case XZ -> xzCodec(createCompressionOptions());
+            case GZIP -> CompressionCodec.gzip(config.compressLevel());
+            case STORE -> CompressionCodec.store();
+        };
+    }
+
+    /**
+     * この実行のブロックの区切りで圧縮するXZ形式を生成します。辞書サイズは{@link #xzBlockSize()}までに抑えられます。
+     *
+     * @param options LZMA2の圧縮設定
+     * @return 圧縮形式
+     * @throws UnsupportedOptionsException 辞書サイズを変更できない場合
+     */
+    private CompressionCodec xzCodec(LZMA2Options options) throws UnsupportedOptionsException {
+        return CompressionCodec.xz(options, xzBlockSize());
+    }
+
+    /**
+     * XZブロックの非圧縮サイズを返します。XZの辞書サイズはこの大きさまでに抑えられます。
+     *
+     * @return ブロック並列圧縮では{@link RunConfig#compressBlockSize()}、インデックスを書き出す単一ストリームでは
+     *         {@link RunConfig#indexBlockSize()}、それ以外は{@code 0}（全体を1ブロック）
+     */
+    private long xzBlockSize() {
+        if (blockCompression()) {
+            return config.compressBlockSize();
+        }
+        return config.indexEnabled() ? config.indexBlockSize() : 0;
+    }
+
+    /**
+     * 1ファイルをブロックに分けて並列に圧縮するかどうかを返します。{@code pipeline.mode=files}の場合だけです。
+     */
+    private boolean blockCompression() {
+        return config.compressMode() == RunConfig.CompressMode.BLOCK
+               && config.pipelineMode() == RunConfig.PipelineMode.FILES;
+    }
+
+    /**
+     * XZ圧縮の設定を生成します。自動調整で選ばれた設定があればそれを返します。
+     *
+     * @return LZMA2の圧縮設定
+     * @throws UnsupportedOptionsException 設定値が不正な場合
+     */
+    LZMA2Options createCompressionOptions() throws UnsupportedOptionsException {
+        LZMA2Options tuned = tunedOptions;
+        if (tuned != null) {
+            return (LZMA2Options) tuned.clone();
+        }
+
+        // LZMA2の圧縮設定を最適化
+        LZMA2Options options = new LZMA2Options();
+        options.setPreset(config.compressLevel()); // 既定は圧縮レベル4に下げてI/O負荷を軽減
+        options.setDictSize(Math.max(options.getDictSize(), 32 * 1024 * 1024));
+        options.setLc(3);
+        options.setLp(0);
+        options.setPb(2);
+        if (config.compressLevel() <= 4) {
+            options.setMode(LZMA2Options.MODE_FAST);
+        }
+        return options;
+    }
+
+    /**
+     * 圧縮に使用するスレッド数を返します。
+     *
+     * @return スレッド数
+     */
+    private int compressionThreadCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, processors - 3);
+    }
+
+    /**
+     * {@code pipeline.mode=staged}でエンコードと圧縮に使うスレッド数を返します。
+     *
+     * <p>入出力を待つ処理は仮想スレッドに移るため、入力を解析する呼び出し元のスレッドの分だけ残して全コアを使います。
+     * ただし、1スレッドあたりの圧縮のメモリ見積もりで{@link RunConfig#compressMemoryBytes()}を割った数までに制限します。
+     *
+     * @return スレッド数
+     * @throws UnsupportedOptionsException XZの設定値が不正な場合
+     */
+    private int stagedCpuThreadCount() throws UnsupportedOptionsException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        long memoryPerThread = createCodec().encoderMemoryBytes()
+                               + 2L * calculateOptimalBufferSize(Long.MAX_VALUE);
+        long byMemory = config.compressMemoryBytes() / Math.max(1, memoryPerThread);
+        return (int) Math.max(1, Math.min(processors - 1, byMemory));
+    }
+
+    /**
+     * パートの{@code secret}を生成するジェネレーターを返します。
+     *
+     * @param fileIndex パート番号
+     * @return {@link RunConfig#secretMode()}に応じたジェネレーター
+     */
+    private SecretGenerator secretGenerator(int fileIndex) {
+        return SecretGenerator.create(config.secretMode(), config.secretSeed(), fileIndex);
+    }
+
+    /**
+     * 圧縮タスクの完了を待ち、失敗していれば{@link IOException}として送出します。
+     *
+     * @param task 圧縮タスク
+     * @throws IOException 圧縮タスクが失敗した場合、または待機中に中断された場合
+     */
+    private static void awaitCompression(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            // 元の例外を取得して処理
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else {
+                throw new IOException(
+                        "圧縮処理中にエラーが発生しました: " + cause.getMessage(),
+                        cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(
+                    "圧縮処理が中断されました",
+                    e);
+        }
+    }
+
+    /**
+     * 出力ディレクトリが存在しなければ作成します。
+     *
+     * @throws IOException 作成に失敗した場合
+     */
+    private static void createOutputDirectory() throws IOException {
+        Path outputDir = Path.of("output");
+        if (! Files.exists(outputDir)) {
+            Files.createDirectory(outputDir);
+        }
+    }
+
+    /**
+     * ファイルサイズに基づいて最適なバッファサイズを計算
+     *
+     * @param fileSize ファイルサイズ（バイト）
+     * @return 最適なバッファサイズ（バイト）
+     */
+    static int calculateOptimalBufferSize(long fileSize) {
+        // 小さなファイル: 512KB、中サイズファイル: 2MB、大きなファイル: 8MB
+        if (fileSize < 10 * 1024 * 1024) { // 10MB未満
+            return 512 * 1024;
+        } else if (fileSize < 100 * 1024 * 1024) { // 100MB未満
+            return 2 * 1024 * 1024;
+        } else {
+            return BUFFER_SIZE; // 8MB
+        }
+    }
+
+    /**
+     * チャンク1つ分の処理速度とメモリ割り当て量を出力します。
+     *
+     * @param rows           チャンクの行数
+     * @param startNanos     チャンク開始時の{@link System#nanoTime()}
+     * @param startAllocated チャンク開始時のスレッド割り当てバイト数
+     */
+    private void reportChunkStatistics(int rows, long startNanos, long startAllocated) {
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        long allocated = currentThreadAllocatedBytes() - startAllocated;
+        System.out.printf("チャンク処理: %,d行 (%.0f行/秒, 割り当て: %.1fMB)%n",
+                rows, rows / Math.max(seconds, 1e-9), allocated / (1024.0 * 1024.0));
+    }
+
+    /**
+     * 現在のスレッドがこれまでに割り当てたヒープのバイト数を返します。
+     *
+     * @return 割り当てバイト数。JVMが計測に対応していない場合は0
+     */
+    private static long currentThreadAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+            && bean.isThreadAllocatedMemorySupported()) {
+            return bean.getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * {@code file.txt}が完全に生成されているかどうかを確認します。
+     *
+     * <p>通常は{@link InputManifest}に記録されたサイズと更新日時、生成条件を比較するだけで判断します。
+     * マニフェストがない場合は、ファイルをメモリマップして改行を並列に数え、
+     * 行数が{@link RunConfig#generateRows()}と一致すれば行数だけのマニフェストを書き出します。
+     * 値の並びとシードは内容から確かめられないため、このマニフェストには記録しません。
+     *
+     * <p>上流が追記した入力（{@code run.mode=append}で処理したもの、または前回の実行が記録した範囲の後に行が増えたもの）は、
+     * 生成条件と一致しなくても生成し直しません。生成し直すと追記された行が失われるためです。
+     *
+     * <p>このメソッドは、{@link #main(String[])}メソッドで呼び出されます。
+     *
+     * @return {@code file.txt}が完全に生成されている場合は{@code true}を返し、そうでない場合は{@code false}を返します。
+     */
+    private boolean isFileComplete() {
+        Path input = Path.of("file.txt");
+        if (! Files.exists(input)) {
+            return false;
+        }
+
+        // マニフェストがあれば、サイズと更新日時、生成条件だけを比較する
+        InputManifest manifest = InputManifest.read(input);
+        if (manifest != null && InputManifest.APPENDED.equals(manifest.distribution())) {
+            // 上流が追記した入力は生成し直すと失われるため、そのまま使う
+            System.out.println("file.txtは追記された入力のため、生成し直さずに使います");
+            return true;
+        }
+        if (manifest != null) {
+            if (manifest.matches(input, config.generateRows(), config.generateDistribution(), config.generateSeed())) {
+                return true;
+            }
+            if (appendedSinceLastRun(input)) {
+                System.out.println("file.txtは前回の処理の後に追記されているため、生成し直さずに使います");
+                return true;
+            }
+            return false;
+        }
+
+        // マニフェストがない場合は、改行を並列に数えて行数を確認し、次回のために行数だけのマニフェストを書き出す
+        try {
+            InputManifest.ScanResult scan = InputManifest.scan(input, config.inputThreads());
+            if (scan.lines() != config.generateRows()) {
+                return false;
+            }
+            InputManifest.rowsOnly(input, scan);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * 前回の実行が{@link AppendState}に記録した範囲が変わらないまま、その後に行が追記されているかを判定します。
+     */
+    private static boolean appendedSinceLastRun(Path input) {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            AppendState state = AppendState.read(Path.of("output"));
+            if (state == null || channel.size() <= state.inputBytes()) {
+                return false;
+            }
+            state.checkInput(channel);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * ソート済みのチャンクを1つのパートとして出力する方法
+     */
+    @FunctionalInterface
+    private interface PartWriter {
+        /**
+         * チャンクを出力します。
+         *
+         * @param numberBuffer ソート済みの数値データのバッファー
+         * @param fileIndex    出力ファイル名に使用するインデックス
+         * @return 出力されたファイル名
+         * @throws IOException 入出力例外
+         */
+        String write(LongChunkBuffer numberBuffer, int fileIndex) throws IOException;
+    }
+
+    /**
+     * 数値をチャンクに溜め、チャンクが一杯になるごとにパートとして出力する
+     *
+     * <p>{@code chunk.rows=auto}では、チャンクの行数をチャンクごとに{@link ChunkSizer}から受け取り、
+     * ヒープが不足しそうになったら一杯になる前に出力します（スピル）。
+     * 再開時は、前回の実行で記録されたパートと区切りが一致するように行数を決めます。
+     */
+    private final class PartCollector implements LongSink {
+        private final List<String>    jsonFiles    = new ArrayList<>();
+        private final PartWriter      writer;
+        private final boolean         presorted;
+        // ボクシングを避けるためプリミティブ配列のバッファを再利用
+        private       LongChunkBuffer numberBuffer;
+        private       int             currentFileIndex;
+        private       int             targetRows;
+        // 前回の実行と区切りを揃えるパートではスピルしない
+        private       boolean         fixedBoundary;
+        private       boolean         spill;
+        private       long            acceptedRows;
+        private       long            chunkStartTime;
+        private       long            chunkStartAllocated;
+
+        /**
+         * @param writer    パートの出力方法
+         * @param presorted 入力が昇順で渡される場合は{@code true}。
+         *                  チャンクのソートを省略し、同じIDがパートをまたがないようにします
+         */
+        PartCollector(PartWriter writer, boolean presorted) {
+            this.writer = writer;
+            this.presorted = presorted;
+            // 追記では既存のパートの次の番号から、入力の先頭からの行オフセットを引き継いで数える
+            InputRange range = inputRange;
+            this.currentFileIndex = range.firstPart();
+            this.acceptedRows = range.startRow();
+            startChunk();
         }
 
-        /**
-         * {@inheritDoc}
-         *
-         * <p>この実装はバッファに指定された範囲のバイトを書き込みます。
-         */
         @Override
-        public void write(byte[] b, int off, int len) {
-            try {
-                buffer.put(b, off, len);
-            } catch (BufferOverflowException e) {
-                throw new RuntimeException("バッファオーバーフロー: バッファサイズが不足しています", e);
+        public void accept(long value) throws IOException {
+            int size = numberBuffer.size();
+            if ((size >= targetRows || spillRequested(size))
+                && ! (presorted && numberBuffer.array()[size - 1] == value)) {
+                flush();
+            }
+            numberBuffer.add(value);
+            acceptedRows++;
+        }
+
+        /**
+         * {@link ChunkSizer}がヒープの不足を検知していれば、集めかけのチャンクを出力するように記録します。
+         */
+        private boolean spillRequested(int size) {
+            // 最小の行数に満たないチャンクは書き出してもほとんどヒープが空かないため、そこまでは集める
+            if (! spill && size >= ChunkSizer.MIN_ROWS && (size & (PRESSURE_CHECK_ROWS - 1)) == 0 && ! fixedBoundary) {
+                ChunkSizer sizer = chunkSizer;
+                spill = sizer != null && sizer.takePressure();
+            }
+            return spill;
+        }
+
+        /**
+         * 残りのチャンクを出力し、出力されたファイル名のリストを返します。
+         *
+         * @return 出力されたファイル名のリスト
+         * @throws IOException 入出力例外
+         */
+        List<String> finish() throws IOException {
+            if (! numberBuffer.isEmpty()) {
+                flush();
+            }
+            processedRows = acceptedRows;
+            return jsonFiles;
+        }
+
+        private void flush() throws IOException {
+            int rows = numberBuffer.size();
+            if (spill) {
+                System.out.printf("ヒープが不足しそうなため、パート%dを%,d行で書き出します%n", currentFileIndex, rows);
+                spill = false;
+            }
+            // チャンクが溜まるまでの時間は、通常は入力の解析、外部ソートではマージにかかった時間
+            RunMetrics.Stage collectStage = presorted ? RunMetrics.Stage.SORT : RunMetrics.Stage.PARSE;
+            metrics.recordLatency(collectStage, System.nanoTime() - chunkStartTime);
+            metrics.add(collectStage, rows, 0);
+
+            int partIndex = currentFileIndex++;
+            RunJournal runJournal = journal;
+            if (runJournal != null && runJournal.isCommitted(partIndex)) {
+                System.out.println("パート" + partIndex + "は圧縮済みのため飛ばします。");
+                numberBuffer.clear();
+                startChunk();
+                return;
+            }
+
+            RunMetrics.ChunkEvent event = new RunMetrics.ChunkEvent();
+            event.begin();
+            if (! presorted) {
+                long sortStart = System.nanoTime();
+                numberBuffer.sort();
+                metrics.recordLatency(RunMetrics.Stage.SORT, System.nanoTime() - sortStart);
+                metrics.add(RunMetrics.Stage.SORT, rows, 0);
+            }
+            if (runJournal != null) {
+                runJournal.beginPart(
+                        new RunJournal.Part(
+                                partIndex,
+                                acceptedRows - rows,
+                                rows,
+                                numberBuffer.array()[0],
+                                numberBuffer.array()[rows - 1]),
+                        Path.of(partFileName(partIndex, config.outputFormat())));
+            }
+            String jsonFile = writer.write(
+                    numberBuffer,
+                    partIndex);
+            jsonFiles.add(jsonFile); // ファイル名を記録
+            if (config.indexEnabled()) {
+                writeIdIndex(numberBuffer, partIndex);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.partIndex = partIndex;
+                event.rows = rows;
+                event.minId = numberBuffer.array()[0];
+                event.maxId = numberBuffer.array()[rows - 1];
+                event.fileName = jsonFile;
+                event.commit();
+            }
+            reportChunkStatistics(rows, chunkStartTime, chunkStartAllocated);
+            ChunkSizer sizer = chunkSizer;
+            if (sizer != null) {
+                sizer.chunkDone();
+            }
+            numberBuffer.clear();
+            startChunk();
+        }
+
+        private void startChunk() {
+            targetRows = nextTargetRows();
+            if (numberBuffer == null || numberBuffer.capacity() > 2L * targetRows) {
+                // 縮小したときは大きな配列を手放す
+                numberBuffer = new LongChunkBuffer(targetRows);
+            } else {
+                numberBuffer.ensureCapacity(targetRows);
+            }
+            chunkStartTime = System.nanoTime();
+            chunkStartAllocated = currentThreadAllocatedBytes();
+        }
+
+        /**
+         * 次のチャンクの行数を決めます。
+         */
+        private int nextTargetRows() {
+            ChunkSizer sizer = chunkSizer;
+            if (sizer == null) {
+                return config.chunkRows();
+            }
+            RunJournal runJournal = journal;
+            RunJournal.Part previous = runJournal != null ? runJournal.previousPart(currentFileIndex) : null;
+            fixedBoundary = previous != null;
+            if (previous == null) {
+                return sizer.targetRows();
+            }
+            if (previous.partIndex() == currentFileIndex) {
+                return (int) previous.rows();
             }
+            // 前回記録のないパートには、次に記録のあるパートまでの行を均等に分ける
+            long gapRows = previous.inputOffset() - acceptedRows;
+            int gapParts = previous.partIndex() - currentFileIndex;
+            return Math.clamp((gapRows + gapParts - 1) / gapParts, 1, Integer.MAX_VALUE - 8);
         }
     }
 }
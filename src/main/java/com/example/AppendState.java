@@ -0,0 +1,159 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * 処理済みの入力の範囲と出力したパートを記録する状態ファイル
+ *
+ * <p>実行が完了するたびに出力ディレクトリの{@code append-state.json}として書き出します。
+ * {@code run.mode=append}の実行は、記録された位置より後に追記された行だけを読み、
+ * 記録されたパートの次の番号からパートを出力します。
+ *
+ * <p>追記の前に{@link #checkInput(FileChannel)}で、入力ファイルが記録した位置まで変わっていないことを確かめます。
+ * 処理済みの範囲の最後は改行でなければならず、その直前の{@link #TAIL_BYTES}バイトのCRC32Cが記録と一致する必要があります。
+ * 追記側が書きかけの最後の行は{@link #lastLineEnd(FileChannel, long, long)}で除き、次の実行で処理します。
+ *
+ * @param inputBytes   処理済みの入力のバイト数（次の実行で読み始める位置）
+ * @param inputRows    処理済みの入力の行数
+ * @param tailChecksum 処理済みの範囲の最後の{@link #TAIL_BYTES}バイトのCRC32C（16進）
+ * @param settings     パートのファイル名と内容に影響する設定
+ * @param partOffsets  パート番号 - 1の位置に、パートの最初の行の入力内での行オフセットを入れた配列
+ */
+public record AppendState(
+        long inputBytes,
+        long inputRows,
+        String tailChecksum,
+        Map<String, String> settings,
+        long[] partOffsets) {
+
+    /** 状態ファイルのファイル名 */
+    public static final String FILE_NAME = "append-state.json";
+
+    /** 処理済みの範囲の末尾を照合するバイト数 */
+    static final int TAIL_BYTES = 4096;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 出力したパートの数を返します。
+     *
+     * @return パート数
+     */
+    public int parts() {
+        return partOffsets.length;
+    }
+
+    /**
+     * 状態ファイルを読み込みます。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @return 状態。ファイルがない場合は{@code null}
+     * @throws IOException 読み込めない場合
+     */
+    public static AppendState read(Path outputDir) throws IOException {
+        Path file = outputDir.resolve(FILE_NAME);
+        if (! Files.exists(file)) {
+            return null;
+        }
+        return objectMapper.readValue(file.toFile(), AppendState.class);
+    }
+
+    /**
+     * 状態ファイルを一時ファイルに書き出してから置き換えます。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @param force     置き換える前にディスクに反映する場合は{@code true}
+     * @throws IOException 入出力例外
+     */
+    public void write(Path outputDir, boolean force) throws IOException {
+        Path target = outputDir.resolve(FILE_NAME);
+        Path temp = RunJournal.tempFor(target);
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), this);
+        RunJournal.commit(temp, target, force);
+    }
+
+    /**
+     * 入力ファイルが、記録した位置まで前回の実行から変わっていないことを確かめます。
+     *
+     * @param channel 入力ファイル
+     * @throws IOException 入出力例外、または追記だけでは説明できない変更がある場合
+     */
+    public void checkInput(FileChannel channel) throws IOException {
+        if (channel.size() < inputBytes) {
+            throw new IOException(String.format(
+                    "入力ファイルが前回処理した位置より短くなっています: %,dバイト / 処理済み %,dバイト",
+                    channel.size(), inputBytes));
+        }
+        if (inputBytes > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, inputBytes - 1);
+            if (last.get(0) != '\n') {
+                throw new IOException("前回処理した最後の行が改行で終わっていないため、追記された行と区別できません");
+            }
+        }
+        if (! tailChecksum(channel, inputBytes).equals(tailChecksum)) {
+            throw new IOException("前回処理した範囲の末尾が変更されています。run.mode=fullで処理し直してください");
+        }
+    }
+
+    /**
+     * 指定位置の直前{@link #TAIL_BYTES}バイトのCRC32Cを返します。
+     *
+     * @param channel ファイル
+     * @param end     範囲の終了位置（バイト、この位置を含まない）
+     * @return CRC32C（16進）
+     * @throws IOException 入出力例外
+     */
+    public static String tailChecksum(FileChannel channel, long end) throws IOException {
+        long start = Math.max(0, end - TAIL_BYTES);
+        ByteBuffer tail = ByteBuffer.allocate((int) (end - start));
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, start + tail.position()) < 0) {
+                break;
+            }
+        }
+        tail.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(tail);
+        return HexFormat.of().toHexDigits((int) crc.getValue());
+    }
+
+    /**
+     * 範囲内で最後の改行の直後の位置を返します。改行で終わっていない最後の行は書きかけとみなして含めません。
+     *
+     * @param channel ファイル
+     * @param from    範囲の開始位置（行頭）
+     * @param to      範囲の終了位置（バイト、この位置を含まない）
+     * @return 最後の改行の直後の位置。範囲に改行がない場合は{@code from}
+     * @throws IOException 入出力例外
+     */
+    public static long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long end = to;
+        while (end > from) {
+            long start = Math.max(from, end - buffer.capacity());
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("入力ファイルが読み込み中に短くなりました");
+                }
+            }
+            for (int i = (int) (end - start) - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return from;
+    }
+}
@@ -0,0 +1,343 @@
+package com.example;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * {@link BinaryRecordEncoder}で書き出したパートを先頭から順に読み出すリーダー
+ *
+ * <p>ブロックごとにCRC-32Cを検証し、最後のブロックの後でインデックスとトレーラーが
+ * 読み出したブロックと一致することを確認します。圧縮済みのファイルも展開しながら読めるため、
+ * 全体をメモリに載せる必要はありません。
+ *
+ * <p>{@link #convertToJson(Path, Path, JsonRecordEncoder.Layout)}でJSON形式のパートに変換できます。
+ * 変換結果は、同じ{@code secret}を使って{@link JsonRecordEncoder}で直接書き出したJSONと同じバイト列です。
+ */
+public final class BinaryPartReader implements AutoCloseable {
+    private static final VarHandle INT_BE  = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * 1ブロック分のレコード
+     *
+     * @param index         ブロック番号（0始まり）
+     * @param ids           ID
+     * @param secrets       {@code secret}のUUID（1件{@link SecretGenerator#RAW_LENGTH}バイト）
+     * @param count         レコード数
+     * @param encodedLength ファイル内でブロックが占めるバイト数（長さとCRCを含む）
+     */
+    public record Block(int index, long[] ids, byte[] secrets, int count, int encodedLength) {
+        /**
+         * {@code i}番目のレコードの{@code secret}を{@link java.util.UUID#toString()}と同じ形式で返します。
+         *
+         * @param i ブロック内の位置
+         * @return {@code secret}
+         */
+        public String secret(int i) {
+            int off = i * SecretGenerator.RAW_LENGTH;
+            byte[] text = new byte[SecretGenerator.SECRET_LENGTH];
+            SecretGenerator.writeUuid(
+                    (long) LONG_BE.get(secrets, off),
+                    (long) LONG_BE.get(secrets, off + Long.BYTES),
+                    text,
+                    0);
+            return new String(text, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final DataInputStream in;
+    private final int             blockRecords;
+    private final int             blockCount;
+    private final long            totalRecords;
+    private final CRC32C          crc = new CRC32C();
+    // 読み出したブロックから組み立てた、ファイル末尾にあるはずのインデックス
+    private final byte[]          expectedIndex;
+    private       int             blocksRead;
+    private       long            recordsRead;
+    private       long            offset = BinaryRecordEncoder.HEADER_SIZE;
+    private       boolean         indexVerified;
+
+    /**
+     * 展開済みのストリームからリーダーを生成し、ヘッダーを読み込みます。
+     *
+     * @param in 入力。リーダーを閉じると閉じられます
+     * @throws IOException ヘッダーが不正な場合
+     */
+    public BinaryPartReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        byte[] header = new byte[BinaryRecordEncoder.HEADER_SIZE];
+        readFully(header, "ヘッダー");
+        if (! Arrays.equals(header, 0, 4, BinaryRecordEncoder.HEADER_MAGIC, 0, 4)) {
+            throw new IOException("バイナリ形式のパートではありません");
+        }
+        int version = ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+        if (version != BinaryRecordEncoder.VERSION) {
+            throw new IOException("対応していないバージョンです: " + version);
+        }
+        this.blockRecords = (int) INT_BE.get(header, 8);
+        this.blockCount = (int) INT_BE.get(header, 12);
+        this.totalRecords = (long) LONG_BE.get(header, 16);
+        if (blockRecords <= 0 || blockCount < 0 || totalRecords < 0
+            || (long) blockCount * BinaryRecordEncoder.INDEX_ENTRY_SIZE > Integer.MAX_VALUE
+            || totalRecords > (long) blockCount * blockRecords) {
+            throw new IOException("ヘッダーが不正です: blockRecords=" + blockRecords
+                                  + ", blockCount=" + blockCount + ", totalRecords=" + totalRecords);
+        }
+        this.expectedIndex = new byte[blockCount * BinaryRecordEncoder.INDEX_ENTRY_SIZE];
+    }
+
+    /**
+     * ファイルを開きます。{@code .xz}と{@code .gz}は展開しながら読み出します。
+     *
+     * @param file パートのファイル
+     * @return リーダー
+     * @throws IOException 入出力例外
+     */
+    public static BinaryPartReader open(Path file) throws IOException {
+        InputStream in = CompressionCodec.openDecompressed(file);
+        try {
+            return new BinaryPartReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 1ブロックあたりのレコード数を返します。
+     *
+     * @return レコード数
+     */
+    public int blockRecords() {
+        return blockRecords;
+    }
+
+    /**
+     * ブロック数を返します。
+     *
+     * @return ブロック数
+     */
+    public int blockCount() {
+        return blockCount;
+    }
+
+    /**
+     * パート全体のレコード数を返します。
+     *
+     * @return レコード数
+     */
+    public long totalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * 次のブロックを読み出します。最後のブロックの後ではインデックスとトレーラーを検証します。
+     *
+     * @return ブロック。全ブロックを読み終えた場合は{@code null}
+     * @throws IOException ファイルが途中で終わっている場合、またはCRCやインデックスが一致しない場合
+     */
+    public Block nextBlock() throws IOException {
+        if (blocksRead == blockCount) {
+            if (! indexVerified) {
+                verifyIndex();
+                indexVerified = true;
+            }
+            return null;
+        }
+
+        Block block = readBlock(in, blockRecords, blocksRead);
+        if (recordsRead + block.count() > totalRecords) {
+            throw new IOException("ブロック" + blocksRead + "のレコード数が不正です: " + block.count());
+        }
+        long[] ids = block.ids();
+        int count = block.count();
+
+        int length = block.encodedLength();
+        int entry = blocksRead * BinaryRecordEncoder.INDEX_ENTRY_SIZE;
+        LONG_BE.set(expectedIndex, entry, offset);
+        INT_BE.set(expectedIndex, entry + 8, length);
+        INT_BE.set(expectedIndex, entry + 12, count);
+        LONG_BE.set(expectedIndex, entry + 16, ids[0]);
+        LONG_BE.set(expectedIndex, entry + 24, ids[count - 1]);
+        offset += length;
+        recordsRead += count;
+        blocksRead++;
+        return block;
+    }
+
+    /**
+     * 現在位置から1ブロックを読み出し、CRC-32Cを検証して復号します。
+     *
+     * @param in           ブロックの先頭に位置する入力
+     * @param blockRecords 1ブロックあたりのレコード数の上限
+     * @param blockIndex   ブロック番号
+     * @return ブロック
+     * @throws IOException ファイルが途中で終わっている場合、またはブロックが不正な場合
+     */
+    static Block readBlock(DataInputStream in, int blockRecords, int blockIndex) throws IOException {
+        int payloadLength;
+        byte[] payload;
+        int checksum;
+        try {
+            payloadLength = in.readInt();
+            int maxPayload = BinaryRecordEncoder.BLOCK_HEADER_SIZE - Integer.BYTES
+                             + (blockRecords - 1) * 10 + blockRecords * SecretGenerator.RAW_LENGTH;
+            if (payloadLength < BinaryRecordEncoder.BLOCK_HEADER_SIZE - Integer.BYTES || payloadLength > maxPayload) {
+                throw new IOException("ブロック" + blockIndex + "の長さが不正です: " + payloadLength);
+            }
+            payload = new byte[payloadLength];
+            in.readFully(payload);
+            checksum = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("ブロック" + blockIndex + "の途中でファイルが終わっています", e);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("ブロック" + blockIndex + "のCRCが一致しません");
+        }
+
+        int count = (int) INT_BE.get(payload, 0);
+        if (count <= 0 || count > blockRecords) {
+            throw new IOException("ブロック" + blockIndex + "のレコード数が不正です: " + count);
+        }
+        long[] ids = new long[count];
+        ids[0] = (long) LONG_BE.get(payload, Integer.BYTES);
+        int position = BinaryRecordEncoder.BLOCK_HEADER_SIZE - Integer.BYTES;
+        for (int i = 1; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= payloadLength) {
+                    throw new IOException("ブロック" + blockIndex + "のIDが途中で終わっています");
+                }
+                b = payload[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            ids[i] = ids[i - 1] + delta;
+        }
+        if (payloadLength - position != count * SecretGenerator.RAW_LENGTH) {
+            throw new IOException("ブロック" + blockIndex + "のsecretの長さが不正です");
+        }
+        byte[] secrets = Arrays.copyOfRange(payload, position, payloadLength);
+        return new Block(blockIndex, ids, secrets, count, Integer.BYTES + payloadLength + Integer.BYTES);
+    }
+
+    /**
+     * インデックスとトレーラーが読み出したブロックと一致することを確認します。
+     */
+    private void verifyIndex() throws IOException {
+        if (recordsRead != totalRecords) {
+            throw new IOException("レコード数がヘッダーと一致しません: " + recordsRead + " / " + totalRecords);
+        }
+        byte[] index = new byte[expectedIndex.length];
+        readFully(index, "インデックス");
+        byte[] trailer = new byte[BinaryRecordEncoder.TRAILER_SIZE];
+        readFully(trailer, "トレーラー");
+
+        crc.reset();
+        crc.update(index);
+        if ((long) LONG_BE.get(trailer, 0) != offset
+            || (int) INT_BE.get(trailer, 8) != (int) crc.getValue()
+            || ! Arrays.equals(trailer, 12, 16, BinaryRecordEncoder.TRAILER_MAGIC, 0, 4)) {
+            throw new IOException("トレーラーが不正です");
+        }
+        if (! Arrays.equals(index, expectedIndex)) {
+            throw new IOException("インデックスがブロックの内容と一致しません");
+        }
+        if (in.read() != -1) {
+            throw new IOException("トレーラーの後に余分なデータがあります");
+        }
+    }
+
+    private void readFully(byte[] buffer, String part) throws IOException {
+        try {
+            in.readFully(buffer);
+        } catch (EOFException e) {
+            throw new IOException(part + "の途中でファイルが終わっています", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * バイナリ形式のパートをJSON形式のパートに変換します。
+     *
+     * <p>{@link JsonRecordEncoder}はパート全体を1つの配列として書き出すため、IDと{@code secret}を全件メモリに読み込みます。
+     * 1パート100万件で約24MBです。
+     *
+     * @param input  バイナリ形式のパート（{@code .bin}、{@code .bin.xz}、{@code .bin.gz}）
+     * @param output 出力するJSONファイル
+     * @param layout JSONのレイアウト
+     * @return 変換したレコード数
+     * @throws IOException 入出力例外、または入力が不正な場合
+     */
+    public static long convertToJson(Path input, Path output, JsonRecordEncoder.Layout layout) throws IOException {
+        try (BinaryPartReader reader = open(input)) {
+            if (reader.totalRecords() > Integer.MAX_VALUE / SecretGenerator.RAW_LENGTH) {
+                throw new IOException("1パートのレコード数が多すぎます: " + reader.totalRecords());
+            }
+            int total = (int) reader.totalRecords();
+            long[] ids = new long[total];
+            byte[] secrets = new byte[total * SecretGenerator.RAW_LENGTH];
+            int count = 0;
+            for (Block block; (block = reader.nextBlock()) != null; ) {
+                System.arraycopy(block.ids(), 0, ids, count, block.count());
+                System.arraycopy(
+                        block.secrets(),
+                        0,
+                        secrets,
+                        count * SecretGenerator.RAW_LENGTH,
+                        block.count() * SecretGenerator.RAW_LENGTH);
+                count += block.count();
+            }
+
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), 64 * 1024)) {
+                new JsonRecordEncoder(layout).encode(ids, count, SecretGenerator.replay(secrets, 0), out);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * バイナリ形式のパートをJSONに変換するコマンドです。
+     *
+     * <pre>
+     * java -cp target/java-test-1.0-SNAPSHOT.jar com.example.BinaryPartReader 入力 出力 [pretty|compact]
+     * </pre>
+     *
+     * @param args 入力ファイル、出力ファイル、JSONのレイアウト（省略時は{@code pretty}）
+     * @throws IOException 入出力例外
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("使い方: BinaryPartReader 入力(.bin|.bin.xz|.bin.gz) 出力.json [pretty|compact]");
+            System.exit(2);
+        }
+        JsonRecordEncoder.Layout layout = args.length == 3
+                                          ? JsonRecordEncoder.Layout.valueOf(args[2].toUpperCase(Locale.ROOT))
+                                          : JsonRecordEncoder.Layout.PRETTY;
+        long startTime = System.nanoTime();
+        long records = convertToJson(Path.of(args[0]), Path.of(args[1]), layout);
+        System.out.printf("%sを%sに変換しました (%d件, %.1f秒)%n",
+                args[0], args[1], records, (System.nanoTime() - startTime) / 1e9);
+    }
+}
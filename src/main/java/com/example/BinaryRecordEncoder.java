@@ -0,0 +1,211 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * ソート済みのIDと{@code secret}を列ごとにまとめたバイナリ形式で書き出すエンコーダー
+ *
+ * <p>整形済みJSONでは1レコードに約80バイトかかりますが、この形式ではIDを前のIDとの差分の可変長整数、
+ * {@code secret}をUUIDの16バイトのまま格納するため、連番のIDで1レコード約17バイトになります。
+ * 数値はすべてビッグエンディアンです。
+ *
+ * <pre>
+ * ヘッダー（{@value #HEADER_SIZE}バイト）
+ *   magic "IDPB" | version u16 | 予約 u16 | blockRecords i32 | blockCount i32 | totalRecords i64
+ * ブロック（blockRecords件ごと、最後のブロックだけ少なくてよい）
+ *   payloadLength i32 | payload | crc32c i32（payloadのCRC-32C）
+ *   payload = records i32 | firstId i64 | 差分（records - 1個、符号なしLEB128） | secret（records × 16バイト）
+ * インデックス（ブロックごとに{@value #INDEX_ENTRY_SIZE}バイト）
+ *   offset i64（ブロックの先頭位置） | length i32（CRCを含むブロック全体の長さ） | records i32 | firstId i64 | lastId i64
+ * トレーラー（{@value #TRAILER_SIZE}バイト）
+ *   indexOffset i64 | indexCrc i32（インデックスのCRC-32C） | magic "IDPE"
+ * </pre>
+ *
+ * <p>ヘッダーにブロック数があるため先頭から順に読めるほか、非圧縮のファイルではトレーラーとインデックスから
+ * 任意のブロックだけを読めます。読み出しとJSONへの変換は{@link BinaryPartReader}で行います。
+ *
+ * <p>出力サイズは差分の桁数から事前に正確に求められるため、{@link JsonRecordEncoder}と同じく
+ * メモリマップしたファイルに書き込めます。
+ */
+public final class BinaryRecordEncoder implements RecordEncoder {
+    /** 1ブロックあたりの既定のレコード数 */
+    public static final int DEFAULT_BLOCK_RECORDS = 16 * 1024;
+
+    static final byte[] HEADER_MAGIC      = "IDPB".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] TRAILER_MAGIC     = "IDPE".getBytes(StandardCharsets.US_ASCII);
+    static final int    VERSION           = 1;
+    static final int    HEADER_SIZE       = 24;
+    static final int    BLOCK_HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    static final int    INDEX_ENTRY_SIZE  = 32;
+    static final int    TRAILER_SIZE      = 16;
+
+    // 符号なし64ビットの差分は最大10バイト
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    private static final VarHandle INT_BE  = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int blockRecords;
+
+    /**
+     * 既定のブロックサイズでエンコーダーを生成します。
+     */
+    public BinaryRecordEncoder() {
+        this(DEFAULT_BLOCK_RECORDS);
+    }
+
+    /**
+     * 指定されたブロックサイズでエンコーダーを生成します。
+     *
+     * @param blockRecords 1ブロックあたりのレコード数
+     */
+    public BinaryRecordEncoder(int blockRecords) {
+        if (blockRecords <= 0) {
+            throw new IllegalArgumentException("blockRecordsは1以上を指定してください: " + blockRecords);
+        }
+        this.blockRecords = blockRecords;
+    }
+
+    @Override
+    public Format format() {
+        return Format.BINARY;
+    }
+
+    /**
+     * 出力されるバイナリの正確なバイト数を返します。
+     *
+     * @param ids   ソート済みのID
+     * @param count 有効なIDの数
+     * @return バイト数
+     */
+    @Override
+    public long encodedSize(long[] ids, int count) {
+        int blockCount = blockCount(count);
+        long size = HEADER_SIZE
+                    + (long) blockCount * (BLOCK_HEADER_SIZE + Integer.BYTES + INDEX_ENTRY_SIZE)
+                    + (long) count * SecretGenerator.RAW_LENGTH
+                    + TRAILER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (i % blockRecords != 0) {
+                size += varintLength(ids[i] - ids[i - 1]);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * IDの配列をバイナリ形式で出力します。
+     *
+     * @param ids     ソート済みのID
+     * @param count   有効なIDの数
+     * @param secrets レコードごとの{@code secret}の生成元
+     * @param out     出力先。閉じません
+     * @throws IOException 入出力例外
+     */
+    @Override
+    public void encode(long[] ids, int count, SecretGenerator secrets, OutputStream out) throws IOException {
+        int blockCount = blockCount(count);
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(HEADER_MAGIC, 0, header, 0, HEADER_MAGIC.length);
+        header[4] = (byte) (VERSION >>> 8);
+        header[5] = (byte) VERSION;
+        INT_BE.set(header, 8, blockRecords);
+        INT_BE.set(header, 12, blockCount);
+        LONG_BE.set(header, 16, (long) count);
+        out.write(header);
+
+        byte[] block = new byte[BLOCK_HEADER_SIZE
+                                + (blockRecords - 1) * MAX_VARINT_LENGTH
+                                + blockRecords * SecretGenerator.RAW_LENGTH
+                                + Integer.BYTES];
+        byte[] index = new byte[blockCount * INDEX_ENTRY_SIZE];
+        CRC32C crc = new CRC32C();
+        long offset = HEADER_SIZE;
+
+        for (int b = 0; b < blockCount; b++) {
+            int from = b * blockRecords;
+            int records = Math.min(blockRecords, count - from);
+
+            // 先頭4バイトのpayloadLengthは書き終えてから埋める
+            INT_BE.set(block, 4, records);
+            LONG_BE.set(block, 8, ids[from]);
+            int position = BLOCK_HEADER_SIZE;
+            for (int i = from + 1; i < from + records; i++) {
+                position = writeVarint(ids[i] - ids[i - 1], block, position);
+            }
+            for (int i = 0; i < records; i++) {
+                position = secrets.nextRaw(block, position);
+            }
+
+            int payloadLength = position - Integer.BYTES;
+            INT_BE.set(block, 0, payloadLength);
+            crc.reset();
+            crc.update(block, Integer.BYTES, payloadLength);
+            INT_BE.set(block, position, (int) crc.getValue());
+            position += Integer.BYTES;
+            out.write(block, 0, position);
+
+            int entry = b * INDEX_ENTRY_SIZE;
+            LONG_BE.set(index, entry, offset);
+            INT_BE.set(index, entry + 8, position);
+            INT_BE.set(index, entry + 12, records);
+            LONG_BE.set(index, entry + 16, ids[from]);
+            LONG_BE.set(index, entry + 24, ids[from + records - 1]);
+            offset += position;
+        }
+
+        out.write(index);
+        crc.reset();
+        crc.update(index);
+        byte[] trailer = new byte[TRAILER_SIZE];
+        LONG_BE.set(trailer, 0, offset);
+        INT_BE.set(trailer, 8, (int) crc.getValue());
+        System.arraycopy(TRAILER_MAGIC, 0, trailer, 12, TRAILER_MAGIC.length);
+        out.write(trailer);
+    }
+
+    /**
+     * 各ブロックの先頭（{@code payloadLength}の位置）を通知します。
+     */
+    @Override
+    public void seekPoints(long[] ids, int count, SeekPointConsumer consumer) throws IOException {
+        long offset = HEADER_SIZE;
+        for (int from = 0; from < count; from += blockRecords) {
+            int records = Math.min(blockRecords, count - from);
+            consumer.accept(offset, from, records);
+            offset += BLOCK_HEADER_SIZE + (long) records * SecretGenerator.RAW_LENGTH + Integer.BYTES;
+            for (int i = from + 1; i < from + records; i++) {
+                offset += varintLength(ids[i] - ids[i - 1]);
+            }
+        }
+    }
+
+    private int blockCount(int count) {
+        return (int) (((long) count + blockRecords - 1) / blockRecords);
+    }
+
+    /**
+     * 符号なしLEB128で書き込んだときのバイト数を返します。
+     */
+    static int varintLength(long value) {
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    /**
+     * 符号なしLEB128で書き込み、書き込み後の位置を返します。
+     */
+    static int writeVarint(long value, byte[] dst, int off) {
+        while ((value & ~0x7FL) != 0) {
+            dst[off++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[off++] = (byte) value;
+        return off;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 入力を固定サイズのブロックに分け、ワーカープールで並列に圧縮する出力ストリームの基底クラス
+ *
+ * <p>ブロックは入力順に{@link #encodeBlock(byte[], int)}で圧縮され、完了したものから入力順に
+ * {@link #writeBlock(Object)}で書き出されます。同時に保持するブロック数は{@code maxPending}に制限され、
+ * 超えた場合は先頭のブロックの完了を待ってから書き込みを続けます。
+ *
+ * @param <B> 圧縮済みブロックの型
+ */
+public abstract class BlockParallelOutputStream<B> extends OutputStream {
+    /** 出力先 */
+    protected final OutputStream out;
+
+    private final int              blockSize;
+    private final ExecutorService  executor;
+    private final int              maxPending;
+    private final Deque<Future<B>> pending = new ArrayDeque<>();
+    private       byte[]           current;
+    private       int              position;
+    private       boolean          finished;
+
+    /**
+     * @param out        出力先
+     * @param blockSize  1ブロックあたりの非圧縮サイズ（バイト）
+     * @param executor   ブロックを圧縮するワーカープール
+     * @param maxPending 同時に保持する未書き込みブロック数の上限
+     */
+    protected BlockParallelOutputStream(OutputStream out, int blockSize, ExecutorService executor, int maxPending) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * 1ブロック分のデータを圧縮します。ワーカープールのスレッドで呼び出されます。
+     *
+     * @param data   データ
+     * @param length 有効なバイト数
+     * @return 圧縮済みブロック
+     * @throws IOException 圧縮に失敗した場合
+     */
+    protected abstract B encodeBlock(byte[] data, int length) throws IOException;
+
+    /**
+     * 圧縮済みブロックを出力に書き込みます。入力順に呼び出されます。
+     *
+     * @param block 圧縮済みブロック
+     * @throws IOException 入出力例外
+     */
+    protected abstract void writeBlock(B block) throws IOException;
+
+    /**
+     * 全ブロックを書き込んだ後の終端を書き込みます。
+     *
+     * @throws IOException 入出力例外
+     */
+    protected abstract void writeTrailer() throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current == null) {
+            current = new byte[blockSize];
+        }
+        current[position++] = (byte) b;
+        if (position == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null) {
+                current = new byte[blockSize];
+            }
+            int n = Math.min(len, blockSize - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            if (position == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * 現在のブロックを圧縮タスクとして投入します。
+     */
+    private void submitBlock() throws IOException {
+        byte[] data = current;
+        int length = position;
+        current = null;
+        position = 0;
+
+        while (pending.size() >= maxPending) {
+            writeBlock(await(pending.removeFirst()));
+        }
+        pending.addLast(executor.submit(() -> encodeBlock(data, length)));
+    }
+
+    /**
+     * ブロックの圧縮完了を待ちます。
+     */
+    private B await(Future<B> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("ブロックの圧縮に失敗しました: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ブロックの圧縮待機中に中断されました");
+        }
+    }
+
+    /**
+     * 残りのデータを圧縮し、終端を書き込みます。下位のストリームは閉じません。
+     *
+     * @throws IOException 入出力例外
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (position > 0) {
+            submitBlock();
+        }
+        while (! pending.isEmpty()) {
+            writeBlock(await(pending.removeFirst()));
+        }
+        writeTrailer();
+        finished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            // 失敗時に残ったタスクを止める
+            for (Future<B> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ヒープの大きさとGCの状況から、1チャンク（1パート）の行数を決める
+ *
+ * <p>最初の行数は、メモリ予算を1行あたりのヒープ使用量で割って求めます。
+ * 1行あたりの使用量は、集めているチャンクの値と基数ソートの作業配列（16バイト）に、
+ * エンコードや圧縮を待つ間に保持されるチャンクの複製（8バイト × 同時に保持する数）を加えたものです。
+ *
+ * <p>実行中は{@link java.lang.management.MemoryMXBean}の通知で、GC直後のヒープ使用量が各メモリプールの上限の
+ * {@link #PRESSURE_RATIO}を超えたことを検知します。検知すると行数を半分にし、{@link #takePressure()}で
+ * 呼び出し側に伝えます。呼び出し側は集めかけのチャンクをその場でディスクに書き出して（スピル）、ヒープを空けます。
+ * 通知がないまま、GC直後の使用量が{@link #CALM_RATIO}を下回っていれば、チャンクごとに行数を最初の値まで戻していきます。
+ *
+ * <p>スレッドセーフです。通知はJVMの通知スレッドから届きます。
+ */
+public final class ChunkSizer implements AutoCloseable {
+    /** 1チャンクの最小の行数 */
+    static final int    MIN_ROWS       = 100_000;
+    /** 1チャンクの最大の行数 */
+    static final int    MAX_ROWS       = 10_000_000;
+    /** GC直後の使用量がメモリプールの上限のこの割合を超えたら縮小する */
+    static final double PRESSURE_RATIO = 0.75;
+    /** GC直後の使用量がメモリプールの上限のこの割合未満なら拡大する */
+    static final double CALM_RATIO     = 0.5;
+
+    // 集めているチャンクの値と基数ソートの作業配列
+    private static final int COLLECT_BYTES_PER_ROW = 16;
+    // エンコードや圧縮を待つチャンクの複製
+    private static final int COPY_BYTES_PER_ROW    = 8;
+
+    private final int                    initialRows;
+    private final List<MemoryPoolMXBean> pools         = new ArrayList<>();
+    private final List<Long>             oldThresholds = new ArrayList<>();
+    private final NotificationListener   listener      = this::handleNotification;
+    private       int                    targetRows;
+    private       boolean                pressure;
+    private       int                    pressureEvents;
+    private       int                    minRowsSeen;
+
+    /**
+     * メモリ予算から最初の行数を決め、GCの通知の受け取りを開始します。
+     *
+     * @param budgetBytes   チャンクに使ってよいヒープの量（バイト）
+     * @param copiesInFlight エンコードや圧縮を待つ間に同時に保持されるチャンクの複製の数
+     */
+    public ChunkSizer(long budgetBytes, int copiesInFlight) {
+        this.initialRows = initialRows(budgetBytes, copiesInFlight);
+        this.targetRows = initialRows;
+        this.minRowsSeen = initialRows;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                oldThresholds.add(pool.getCollectionUsageThreshold());
+                pool.setCollectionUsageThreshold((long) (max * PRESSURE_RATIO));
+                pools.add(pool);
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    /**
+     * メモリ予算から1チャンクの行数を求めます。
+     *
+     * @param budgetBytes    チャンクに使ってよいヒープの量（バイト）
+     * @param copiesInFlight 同時に保持されるチャンクの複製の数
+     * @return 行数（{@link #MIN_ROWS}〜{@link #MAX_ROWS}）
+     */
+    static int initialRows(long budgetBytes, int copiesInFlight) {
+        long bytesPerRow = COLLECT_BYTES_PER_ROW + (long) COPY_BYTES_PER_ROW * Math.max(0, copiesInFlight);
+        return Math.clamp(budgetBytes / bytesPerRow, MIN_ROWS, MAX_ROWS);
+    }
+
+    /**
+     * 次のチャンクの行数を返します。
+     *
+     * @return 行数
+     */
+    public synchronized int targetRows() {
+        return targetRows;
+    }
+
+    /**
+     * 前回の呼び出しの後にGCの後のヒープ使用量が上限に近づいていれば{@code true}を返し、状態を戻します。
+     *
+     * @return スピルすべき場合は{@code true}
+     */
+    public synchronized boolean takePressure() {
+        boolean result = pressure;
+        pressure = false;
+        return result;
+    }
+
+    /**
+     * チャンクを1つ書き出したときに呼び出します。書き出したことでヒープは空くため、それまでに検知した不足は取り消します。
+     * 不足を検知していなければ、GC直後の使用量に余裕がある場合に行数を戻していきます。
+     */
+    public synchronized void chunkDone() {
+        if (pressure) {
+            pressure = false;
+            return;
+        }
+        if (targetRows >= initialRows) {
+            return;
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0 && usage.getUsed() >= usage.getMax() * CALM_RATIO) {
+                return;
+            }
+        }
+        targetRows = Math.min(initialRows, targetRows + targetRows / 2);
+    }
+
+    /**
+     * 最初の行数を返します。
+     *
+     * @return 行数
+     */
+    public int initialRows() {
+        return initialRows;
+    }
+
+    /**
+     * これまでに縮小した回数を返します。
+     *
+     * @return 回数
+     */
+    public synchronized int pressureEvents() {
+        return pressureEvents;
+    }
+
+    /**
+     * これまでで最も小さかった行数を返します。
+     *
+     * @return 行数
+     */
+    public synchronized int minRows() {
+        return minRowsSeen;
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+        if (! MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            return;
+        }
+        int rows;
+        synchronized (this) {
+            pressure = true;
+            pressureEvents++;
+            if (targetRows == MIN_ROWS) {
+                return;
+            }
+            targetRows = Math.max(MIN_ROWS, targetRows / 2);
+            minRowsSeen = Math.min(minRowsSeen, targetRows);
+            rows = targetRows;
+        }
+        System.out.printf("GC後のヒープ使用量が上限の%.0f%%を超えたため、チャンクを%,d行に縮小します%n",
+                PRESSURE_RATIO * 100, rows);
+    }
+
+    /**
+     * 通知の受け取りをやめ、メモリプールのしきい値を元に戻します。
+     */
+    @Override
+    public void close() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+        } catch (ListenerNotFoundException e) {
+            // 登録済みのため発生しない
+        }
+        for (int i = 0; i < pools.size(); i++) {
+            pools.get(i).setCollectionUsageThreshold(oldThresholds.get(i));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.example;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * パートの圧縮形式
+ *
+ * <p>圧縮形式ごとに、出力ファイルの拡張子と、単一スレッドの圧縮ストリーム、
+ * ブロック並列の圧縮ストリームの作り方を定めます。
+ * 実装は{@link #xz(LZMA2Options)}, {@link #gzip(int)}, {@link #store()}で取得します。
+ */
+public abstract class CompressionCodec {
+    /**
+     * 圧縮形式の種類
+     */
+    public enum Type {
+        /** XZ（LZMA2）。圧縮率が最も高いが遅い */
+        XZ(".xz"),
+        /** gzip（deflate）。XZより圧縮率は低いが桁違いに速い */
+        GZIP(".gz"),
+        /** 圧縮しない。JSONをそのまま出力する */
+        STORE("");
+
+        private final String extension;
+
+        Type(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * 圧縮したファイルに付ける拡張子を返します。
+         *
+         * @return {@code .xz}などの拡張子。圧縮しない場合は空文字列
+         */
+        public String extension() {
+            return extension;
+        }
+    }
+
+    /**
+     * XZ形式の圧縮を返します。
+     *
+     * @param options LZMA2の圧縮設定
+     * @return 圧縮形式
+     */
+    public static CompressionCodec xz(LZMA2Options options) {
+        return new Xz(options, 0);
+    }
+
+    /**
+     * 非圧縮で{@code blockSize}バイトごとにXZブロックを区切るXZ形式の圧縮を返します。
+     * ブロックごとに辞書がリセットされる代わりに、{@link org.tukaani.xz.SeekableXZInputStream}で
+     * 任意のブロックだけを展開できます。ブロック並列圧縮では{@code openParallel}のブロックサイズが優先されるため、
+     * その場合は同じブロックサイズを渡してください。辞書サイズはブロックサイズまでに抑えます。
+     *
+     * @param options   LZMA2の圧縮設定
+     * @param blockSize XZブロックの非圧縮サイズ（バイト）。{@code 0}の場合は全体を1ブロックにします
+     * @return 圧縮形式
+     * @throws UnsupportedOptionsException 辞書サイズを変更できない場合
+     */
+    public static CompressionCodec xz(LZMA2Options options, long blockSize) throws UnsupportedOptionsException {
+        if (blockSize <= 0 || options.getDictSize() <= blockSize) {
+            return new Xz(options, blockSize);
+        }
+        // ブロックより大きな辞書は使われないうえ、展開時に辞書サイズ分の領域を確保させてしまう
+        LZMA2Options copy = (LZMA2Options) options.clone();
+        copy.setDictSize((int) Math.max(LZMA2Options.DICT_SIZE_MIN, blockSize));
+        return new Xz(copy, blockSize);
+    }
+
+    /**
+     * gzip形式の圧縮を返します。
+     *
+     * @param level 圧縮レベル（{@code 0}〜{@code 9}）
+     * @return 圧縮形式
+     */
+    public static CompressionCodec gzip(int level) {
+        return new Gzip(level);
+    }
+
+    /**
+     * 圧縮しない形式を返します。
+     *
+     * @return 圧縮形式
+     */
+    public static CompressionCodec store() {
+        return Store.INSTANCE;
+    }
+
+    /**
+     * ファイルを拡張子に応じて展開しながら読み出すストリームを開きます。
+     * {@code .xz}と{@code .gz}は展開し、それ以外はそのまま読み出します。
+     * 複数ブロックのXZや複数メンバーのgzipも1つのストリームとして読めます。
+     *
+     * @param file 読み出すファイル
+     * @return 展開済みのデータを返すストリーム
+     * @throws IOException 入出力例外
+     */
+    public static InputStream openDecompressed(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        try {
+            if (name.endsWith(".xz")) {
+                return new XZInputStream(in);
+            }
+            if (name.endsWith(".gz")) {
+                return new GZIPInputStream(in, 64 * 1024);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 圧縮形式の種類を返します。
+     *
+     * @return 種類
+     */
+    public abstract Type type();
+
+    /**
+     * 圧縮したファイルに付ける拡張子を返します。
+     *
+     * @return {@code .xz}などの拡張子。圧縮しない場合は空文字列
+     */
+    public String extension() {
+        return type().extension();
+    }
+
+    /**
+     * 単一スレッドで圧縮する出力ストリームを生成します。
+     *
+     * @param out 出力先。返されたストリームを閉じると閉じられます
+     * @return 圧縮ストリーム
+     * @throws IOException 入出力例外
+     */
+    public abstract OutputStream open(OutputStream out) throws IOException;
+
+    /**
+     * 入力をブロックに分けて並列に圧縮する出力ストリームを生成します。
+     * ブロック並列に対応しない形式では{@link #open(OutputStream)}と同じです。
+     *
+     * @param out        出力先。返されたストリームを閉じると閉じられます
+     * @param blockSize  1ブロックあたりの非圧縮サイズ（バイト）
+     * @param executor   ブロックを圧縮するワーカープール
+     * @param maxPending 同時に保持する未書き込みブロック数の上限
+     * @return 圧縮ストリーム
+     * @throws IOException 入出力例外
+     */
+    public OutputStream openParallel(OutputStream out, int blockSize, ExecutorService executor, int maxPending)
+            throws IOException {
+        return open(out);
+    }
+
+    /**
+     * 単一スレッドの圧縮ストリーム1つが使うメモリの見積もりを返します。
+     *
+     * @return バイト数
+     */
+    public abstract long encoderMemoryBytes();
+
+    /**
+     * XZ形式
+     */
+    private static final class Xz extends CompressionCodec {
+        private final LZMA2Options options;
+        private final long         blockSize;
+
+        Xz(LZMA2Options options, long blockSize) {
+            this.options = options;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public Type type() {
+            return Type.XZ;
+        }
+
+        @Override
+        public OutputStream open(OutputStream out) throws IOException {
+            XZOutputStream xz = new XZOutputStream(out, options);
+            return blockSize > 0 ? new BlockSplitter(xz, blockSize) : xz;
+        }
+
+        @Override
+        public OutputStream openParallel(OutputStream out, int blockSize, ExecutorService executor, int maxPending)
+                throws IOException {
+            return new ParallelXZOutputStream(out, options, blockSize, executor, maxPending);
+        }
+
+        @Override
+        public long encoderMemoryBytes() {
+            return options.getEncoderMemoryUsage() * 1024L;
+        }
+    }
+
+    /**
+     * 非圧縮で一定のバイト数ごとに{@link XZOutputStream#endBlock()}を呼び出す出力ストリーム
+     */
+    private static final class BlockSplitter extends OutputStream {
+        private final XZOutputStream xz;
+        private final long           blockSize;
+        private       long           blockRemaining;
+
+        BlockSplitter(XZOutputStream xz, long blockSize) {
+            this.xz = xz;
+            this.blockSize = blockSize;
+            this.blockRemaining = blockSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            xz.write(b);
+            if (--blockRemaining == 0) {
+                endBlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = (int) Math.min(len, blockRemaining);
+                xz.write(b, off, n);
+                off += n;
+                len -= n;
+                blockRemaining -= n;
+                if (blockRemaining == 0) {
+                    endBlock();
+                }
+            }
+        }
+
+        private void endBlock() throws IOException {
+            xz.endBlock();
+            blockRemaining = blockSize;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            xz.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            xz.close();
+        }
+    }
+
+    /**
+     * gzip形式。ブロック並列では複数メンバーのgzipファイルを出力する
+     */
+    private static final class Gzip extends CompressionCodec {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final int level;
+
+        Gzip(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public Type type() {
+            return Type.GZIP;
+        }
+
+        @Override
+        public OutputStream open(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream openParallel(OutputStream out, int blockSize, ExecutorService executor, int maxPending) {
+            return new ParallelGzipOutputStream(out, level, blockSize, executor, maxPending);
+        }
+
+        @Override
+        public long encoderMemoryBytes() {
+            // deflateの作業領域（約256KB）と入力バッファ
+            return 256 * 1024 + BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * 圧縮しない形式
+     */
+    private static final class Store extends CompressionCodec {
+        static final Store INSTANCE = new Store();
+
+        @Override
+        public Type type() {
+            return Type.STORE;
+        }
+
+        @Override
+        public OutputStream open(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public long encoderMemoryBytes() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * メモリ予算に基づいて圧縮タスクの開始を制御するスケジューラー
+ *
+ * <p>タスクは投入されるとすぐに待ち行列に入り、入力サイズの大きい順に開始されます。
+ * 開始できるのは、実行中のタスク数がスレッド数未満で、かつ実行中タスクのメモリ見積もりの合計に
+ * 新しいタスクの見積もりを加えても予算を超えない場合です。
+ * 1つも実行中でない場合は、予算を超えるタスクでも単独で開始します。
+ *
+ * <p>固定のバッチや待機時間は使わず、タスクの完了時に次のタスクを開始するため、
+ * 遅いタスクが他のタスクの開始を妨げることはありません。
+ */
+public final class CompressionScheduler implements AutoCloseable {
+    /**
+     * 圧縮処理
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * 圧縮を実行します。
+         *
+         * @throws IOException 入出力例外
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * タスクごとの計測結果
+     *
+     * @param name        タスク名
+     * @param inputBytes  入力サイズ（バイト）
+     * @param memoryBytes メモリ見積もり（バイト）
+     * @param waitMillis  投入から開始までの待ち時間（ミリ秒）
+     * @param runMillis   実行時間（ミリ秒）
+     */
+    public record TaskTiming(String name, long inputBytes, long memoryBytes, long waitMillis, long runMillis) {
+    }
+
+    private final int                     threadCount;
+    private final long                    memoryBudget;
+    private final ExecutorService         executor;
+    private final PriorityQueue<Pending>  queue = new PriorityQueue<>(
+            Comparator.comparingLong(Pending::inputBytes).reversed()
+                      .thenComparingLong(Pending::sequence));
+    private final List<TaskTiming>        timings = new ArrayList<>();
+    private       int                     running;
+    private       long                    memoryInUse;
+    private       long                    sequence;
+
+    /**
+     * スケジューラーを生成します。
+     *
+     * @param threadCount  同時に実行するタスク数の上限
+     * @param memoryBudget 同時に実行するタスクのメモリ見積もりの合計の上限（バイト）
+     */
+    public CompressionScheduler(int threadCount, long memoryBudget) {
+        this.threadCount = threadCount;
+        this.memoryBudget = memoryBudget;
+        this.executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+    /**
+     * タスクを投入します。開始できる場合はすぐに開始します。
+     *
+     * @param name        タスク名
+     * @param inputBytes  入力サイズ（バイト）。大きいものから開始します
+     * @param memoryBytes タスクのメモリ見積もり（バイト）
+     * @param task        圧縮処理
+     * @return 完了時に計測結果を返す{@link Future}
+     */
+    public Future<TaskTiming> submit(String name, long inputBytes, long memoryBytes, Task task) {
+        CompletableFuture<TaskTiming> future = new CompletableFuture<>();
+        synchronized (this) {
+            queue.add(new Pending(name, inputBytes, memoryBytes, task, future, sequence++, System.nanoTime()));
+            dispatch();
+        }
+        return future;
+    }
+
+    /**
+     * これまでに完了したタスクの計測結果を完了順に返します。
+     *
+     * @return 計測結果のリスト
+     */
+    public synchronized List<TaskTiming> timings() {
+        return List.copyOf(timings);
+    }
+
+    /**
+     * 待ち行列の先頭から、条件を満たす限りタスクを開始します。
+     *
+     * <p>先頭のタスクが予算に収まらない場合、後続の小さなタスクで追い越さずに待機します。
+     * 大きなタスクが後回しにされ続けることを防ぐためです。
+     */
+    private void dispatch() {
+        while (running < threadCount && ! queue.isEmpty()) {
+            Pending next = queue.peek();
+            if (running > 0 && memoryInUse + next.memoryBytes() > memoryBudget) {
+                break;
+            }
+            queue.poll();
+            running++;
+            memoryInUse += next.memoryBytes();
+            executor.execute(() -> execute(next));
+        }
+    }
+
+    private void execute(Pending pending) {
+        long startNanos = System.nanoTime();
+        try {
+            pending.task().run();
+            long endNanos = System.nanoTime();
+            TaskTiming timing = new TaskTiming(
+                    pending.name(),
+                    pending.inputBytes(),
+                    pending.memoryBytes(),
+                    TimeUnit.NANOSECONDS.toMillis(startNanos - pending.submittedNanos()),
+                    TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos));
+            synchronized (this) {
+                timings.add(timing);
+            }
+            pending.future().complete(timing);
+        } catch (Throwable t) {
+            pending.future().completeExceptionally(t);
+        } finally {
+            synchronized (this) {
+                running--;
+                memoryInUse -= pending.memoryBytes();
+                dispatch();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 投入済みのタスクが全て完了するのを待ち、スレッドを停止します。
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            while (! queue.isEmpty() || running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Pending(
+            String name,
+            long inputBytes,
+            long memoryBytes,
+            Task task,
+            CompletableFuture<TaskTiming> future,
+            long sequence,
+            long submittedNanos) {
+    }
+}
@@ -0,0 +1,268 @@
+package com.example;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * サンプルを実際に圧縮して、目標に合うLZMA2の設定を選ぶチューナー
+ *
+ * <p>候補の設定ごとにサンプルを1スレッドで圧縮し、圧縮率と1スレッドあたりの速度を測ります。
+ * 圧縮は{@link CodecFactory}が作る本番と同じ{@link CompressionCodec}で行うため、ブロックの区切りと辞書サイズの上限も
+ * 本番と同じになります。候補ごとにサンプルの先頭でウォームアップしてから{@link #MEASURE_RUNS}回圧縮し、
+ * 最も速かった回の時間を使います。
+ * そこから全体の入力サイズと同時に圧縮するワーカー数で圧縮全体の所要時間を見積もり、次の規則で選びます。
+ *
+ * <ul>
+ *     <li>エンコーダーのメモリ使用量をワーカー数倍した値がメモリ予算を超える候補は除外します</li>
+ *     <li>全ての目標を満たす候補があれば、時間の目標がある場合は圧縮率が最も高いもの、
+ *         圧縮率の目標だけの場合は最も速いものを選びます</li>
+ *     <li>満たす候補がなければ、圧縮率の目標だけの場合は圧縮率が最も高いもの、
+ *         それ以外は最も速いものを選びます</li>
+ * </ul>
+ *
+ * <p>サンプルより大きな辞書の効果は測れないため、辞書サイズだけが異なる候補は同じ圧縮率になります。
+ */
+public final class CompressionTuner {
+    // JITのウォームアップに使うサンプルの先頭部分
+    private static final int WARMUP_BYTES = 256 * 1024;
+
+    /** 候補ごとにサンプルを圧縮して時間を測る回数。最も速かった回を使う */
+    public static final int MEASURE_RUNS = 3;
+
+    /**
+     * LZMA2の設定から、本番と同じ方法で圧縮する{@link CompressionCodec}を作る関数
+     */
+    @FunctionalInterface
+    public interface CodecFactory {
+        /**
+         * 圧縮形式を生成します。
+         *
+         * @param options LZMA2の圧縮設定
+         * @return 圧縮形式
+         * @throws UnsupportedOptionsException 設定値が不正な場合
+         */
+        CompressionCodec create(LZMA2Options options) throws UnsupportedOptionsException;
+    }
+
+    /**
+     * 候補の設定
+     *
+     * @param name     表示名
+     * @param preset   LZMA2のプリセット
+     * @param mode     圧縮モード。{@code 0}の場合はプリセットのまま
+     * @param dictSize 辞書サイズ。{@code 0}の場合はプリセットのまま
+     */
+    public record Candidate(String name, int preset, int mode, int dictSize) {
+        /**
+         * 設定を生成します。辞書サイズの上限は{@link CodecFactory}が適用します。
+         *
+         * @return LZMA2の圧縮設定
+         * @throws UnsupportedOptionsException 設定値が不正な場合
+         */
+        LZMA2Options toOptions() throws UnsupportedOptionsException {
+            LZMA2Options options = new LZMA2Options(preset);
+            if (mode != 0) {
+                options.setMode(mode);
+            }
+            if (dictSize != 0) {
+                options.setDictSize(dictSize);
+            }
+            return options;
+        }
+    }
+
+    /**
+     * 既定の候補。速い順に並べています
+     */
+    public static final List<Candidate> DEFAULT_CANDIDATES = List.of(
+            new Candidate("preset0", 0, 0, 0),
+            new Candidate("preset1", 1, 0, 0),
+            new Candidate("preset3", 3, 0, 0),
+            new Candidate("preset4-fast-32m", 4, LZMA2Options.MODE_FAST, 32 * 1024 * 1024),
+            new Candidate("preset6", 6, 0, 0));
+
+    /**
+     * 1候補の計測結果
+     *
+     * @param name             候補の表示名
+     * @param memoryBytes      エンコーダー1つのメモリ使用量（バイト）
+     * @param sampleBytes      サンプルのサイズ（バイト）
+     * @param compressedBytes  圧縮後のサイズ（バイト）
+     * @param ratio            圧縮率（圧縮前 / 圧縮後）
+     * @param bytesPerSecond   1スレッドあたりの圧縮速度（バイト/秒）
+     * @param estimatedSeconds 圧縮全体の見積もり時間（秒）
+     * @param fitsMemory       メモリ予算に収まる場合は{@code true}
+     */
+    public record Probe(
+            String name,
+            long memoryBytes,
+            long sampleBytes,
+            long compressedBytes,
+            double ratio,
+            double bytesPerSecond,
+            double estimatedSeconds,
+            boolean fitsMemory) {
+    }
+
+    /**
+     * 選択結果
+     *
+     * @param options 選ばれた設定
+     * @param chosen  選ばれた候補の計測結果
+     * @param reason  選んだ理由
+     * @param probes  全候補の計測結果
+     */
+    public record Result(LZMA2Options options, Probe chosen, String reason, List<Probe> probes) {
+        /**
+         * 実行レポートに記録する形式に変換します。
+         *
+         * @return レポートの項目
+         */
+        public Map<String, Object> toReport() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("chosen", chosen.name());
+            report.put("reason", reason);
+            report.put("options", "dictSize=" + options.getDictSize() + ", mode=" + options.getMode()
+                                 + ", niceLen=" + options.getNiceLen() + ", depthLimit=" + options.getDepthLimit());
+            report.put("probes", probes);
+            return report;
+        }
+    }
+
+    private final List<Candidate> candidates;
+    private final long            memoryBudget;
+    private final int             workers;
+    private final CodecFactory    codecFactory;
+
+    /**
+     * チューナーを生成します。
+     *
+     * @param candidates   候補の設定
+     * @param memoryBudget 圧縮全体のメモリ予算（バイト）
+     * @param workers      同時に圧縮するワーカー数
+     * @param codecFactory 候補の設定から本番と同じ圧縮形式を作る関数
+     */
+    public CompressionTuner(List<Candidate> candidates, long memoryBudget, int workers, CodecFactory codecFactory) {
+        this.candidates = candidates;
+        this.memoryBudget = memoryBudget;
+        this.workers = Math.max(1, workers);
+        this.codecFactory = codecFactory;
+    }
+
+    /**
+     * サンプルを各候補で圧縮し、目標に合う設定を選びます。
+     *
+     * @param sample        サンプル
+     * @param sampleLength  サンプルの有効なバイト数
+     * @param totalBytes    圧縮する入力全体の見積もりサイズ（バイト）
+     * @param targetSeconds 圧縮全体の目標時間（秒）。{@code 0}以下の場合は目標なし
+     * @param targetRatio   最低限の圧縮率。{@code 0}以下の場合は目標なし
+     * @return 選択結果
+     * @throws IOException 圧縮設定が不正な場合
+     */
+    public Result tune(byte[] sample, int sampleLength, long totalBytes, double targetSeconds, double targetRatio)
+            throws IOException {
+        List<Probe> probes = new ArrayList<>();
+        List<LZMA2Options> options = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            LZMA2Options candidateOptions = candidate.toOptions();
+            CompressionCodec codec = codecFactory.create(candidateOptions);
+            long memoryBytes = codec.encoderMemoryBytes();
+
+            // 候補ごとにマッチファインダーなどのコードが異なるため、それぞれJITのウォームアップをしてから測る
+            compress(codec, sample, Math.min(sampleLength, WARMUP_BYTES));
+            long compressedBytes = 0;
+            long bestNanos = Long.MAX_VALUE;
+            for (int run = 0; run < MEASURE_RUNS; run++) {
+                long startTime = System.nanoTime();
+                compressedBytes = compress(codec, sample, sampleLength);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - startTime);
+            }
+            double seconds = Math.max(1e-9, bestNanos / 1e9);
+
+            double bytesPerSecond = sampleLength / seconds;
+            probes.add(new Probe(
+                    candidate.name(),
+                    memoryBytes,
+                    sampleLength,
+                    compressedBytes,
+                    (double) sampleLength / Math.max(1, compressedBytes),
+                    bytesPerSecond,
+                    totalBytes / (bytesPerSecond * workers),
+                    memoryBytes * workers <= memoryBudget));
+            options.add(candidateOptions);
+        }
+
+        Selection selection = select(probes, targetSeconds, targetRatio);
+        return new Result(
+                options.get(probes.indexOf(selection.probe())),
+                selection.probe(),
+                selection.reason(),
+                probes);
+    }
+
+    private record Selection(Probe probe, String reason) {
+    }
+
+    private static Selection select(List<Probe> probes, double targetSeconds, double targetRatio) {
+        List<Probe> fitting = probes.stream().filter(Probe::fitsMemory).toList();
+        if (fitting.isEmpty()) {
+            Probe smallest = probes.stream().min(Comparator.comparingLong(Probe::memoryBytes)).orElseThrow();
+            return new Selection(smallest, "メモリ予算に収まる候補がないため、メモリ使用量が最小の設定");
+        }
+
+        boolean hasTime = targetSeconds > 0;
+        boolean hasRatio = targetRatio > 0;
+        Comparator<Probe> byRatio = Comparator.comparingDouble(Probe::ratio);
+        Comparator<Probe> bySpeed = Comparator.comparingDouble(Probe::bytesPerSecond);
+
+        List<Probe> meeting = fitting.stream()
+                .filter(probe -> ! hasTime || probe.estimatedSeconds() <= targetSeconds)
+                .filter(probe -> ! hasRatio || probe.ratio() >= targetRatio)
+                .toList();
+        if (! meeting.isEmpty()) {
+            return hasTime
+                   ? new Selection(meeting.stream().max(byRatio).orElseThrow(), "目標を満たす中で圧縮率が最も高い設定")
+                   : new Selection(meeting.stream().max(bySpeed).orElseThrow(), "目標を満たす中で最も速い設定");
+        }
+        return hasRatio && ! hasTime
+               ? new Selection(fitting.stream().max(byRatio).orElseThrow(), "目標を満たす候補がないため、圧縮率が最も高い設定")
+               : new Selection(fitting.stream().max(bySpeed).orElseThrow(), "目標を満たす候補がないため、最も速い設定");
+    }
+
+    /**
+     * サンプルを圧縮し、圧縮後のバイト数を返します。
+     */
+    private static long compress(CompressionCodec codec, byte[] sample, int length) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        try (OutputStream out = codec.open(counter)) {
+            out.write(sample, 0, length);
+        }
+        return counter.count;
+    }
+
+    /**
+     * 書き込まれたバイト数だけを数える{@link OutputStream}
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ビットマップモードで集計した、入力IDの重複と欠番のレポート
+ *
+ * <p>{@code sort.mode=bitmap}の実行時に{@code output/id-report.json}として書き出します。
+ * 範囲の一覧はそれぞれ先頭から{@link #MAX_RANGES}件までで、範囲の総数は別に記録します。
+ *
+ * @param rows                入力の行数
+ * @param distinctIds         重複を除いたIDの数
+ * @param minId               最小のID
+ * @param maxId               最大のID
+ * @param expectedFrom        欠番を数える範囲の最初のID
+ * @param expectedTo          欠番を数える範囲の最後のID
+ * @param duplicateRows       2回目以降に現れて除かれた行の数
+ * @param duplicateIds        2回以上現れたIDの数
+ * @param missingIds          範囲内で一度も現れなかったIDの数
+ * @param outOfRangeIds       範囲外のIDの数
+ * @param duplicateRangeCount 重複したIDの連続範囲の総数
+ * @param missingRangeCount   欠番の連続範囲の総数
+ * @param duplicateRanges     重複したIDの連続範囲（先頭から{@link #MAX_RANGES}件まで）
+ * @param missingRanges       欠番の連続範囲（先頭から{@link #MAX_RANGES}件まで）
+ */
+public record DenseIdReport(
+        long rows,
+        long distinctIds,
+        long minId,
+        long maxId,
+        long expectedFrom,
+        long expectedTo,
+        long duplicateRows,
+        long duplicateIds,
+        long missingIds,
+        long outOfRangeIds,
+        long duplicateRangeCount,
+        long missingRangeCount,
+        List<Range> duplicateRanges,
+        List<Range> missingRanges) {
+
+    /** レポートに書き出す範囲の最大件数 */
+    static final int MAX_RANGES = 1000;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 連続したIDの範囲
+     *
+     * @param from 最初のID
+     * @param to   最後のID（この値を含む）
+     */
+    public record Range(long from, long to) {
+    }
+
+    /**
+     * ビットマップからレポートを作成します。
+     *
+     * @param ids           現れたID
+     * @param duplicates    2回以上現れたID
+     * @param rows          入力の行数
+     * @param duplicateRows 除かれた行の数
+     * @param expectedFrom  欠番を数える範囲の最初のID
+     * @param expectedTo    欠番を数える範囲の最後のID
+     * @return レポート
+     * @throws IOException 走査に失敗した場合
+     */
+    public static DenseIdReport create(
+            IdBitmap ids,
+            IdBitmap duplicates,
+            long rows,
+            long duplicateRows,
+            long expectedFrom,
+            long expectedTo) throws IOException {
+        RangeCollector duplicateRanges = new RangeCollector();
+        duplicates.forEachRange(true, duplicates.minId(), duplicates.maxId(), duplicateRanges);
+        RangeCollector missingRanges = new RangeCollector();
+        ids.forEachRange(false, expectedFrom, expectedTo, missingRanges);
+
+        long inRange = ids.count(expectedFrom, expectedTo);
+        long missing = expectedFrom <= expectedTo ? expectedTo - expectedFrom + 1 - inRange : 0;
+        return new DenseIdReport(
+                rows,
+                ids.cardinality(),
+                ids.cardinality() > 0 ? ids.minId() : 0,
+                ids.cardinality() > 0 ? ids.maxId() : 0,
+                expectedFrom,
+                expectedTo,
+                duplicateRows,
+                duplicates.cardinality(),
+                missing,
+                ids.cardinality() - inRange,
+                duplicateRanges.count,
+                missingRanges.count,
+                duplicateRanges.ranges,
+                missingRanges.ranges);
+    }
+
+    /**
+     * レポートを一時ファイルに書き出してから置き換えます。
+     *
+     * @param target 出力先
+     * @param force  置き換える前にディスクに反映する場合は{@code true}
+     * @throws IOException 入出力例外
+     */
+    public void write(Path target, boolean force) throws IOException {
+        Path temp = RunJournal.tempFor(target);
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), this);
+        RunJournal.commit(temp, target, force);
+    }
+
+    private static final class RangeCollector implements IdBitmap.RangeConsumer {
+        private final List<Range> ranges = new ArrayList<>();
+        private       long        count;
+
+        @Override
+        public void accept(long from, long to) {
+            if (ranges.size() < MAX_RANGES) {
+                ranges.add(new Range(from, to));
+            }
+            count++;
+        }
+    }
+}
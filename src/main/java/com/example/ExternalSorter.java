@@ -0,0 +1,298 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * メモリ使用量を制限した外部マージソート
+ *
+ * <p>{@link #add(long)}で受け取った値をメモリ上のバッファに溜め、バッファが予算に達したら
+ * ソート済みのラン（run）としてディスクへ書き出します。{@link #merge(LongSink)}では
+ * 全ランをヒープによるk-wayマージで読み出し、全体を昇順で出力します。
+ *
+ * <p>ランは{@code long}値をビッグエンディアンで並べただけのバイナリファイルです。
+ */
+public final class ExternalSorter implements AutoCloseable {
+    // 値本体と基数ソート用の作業配列で1行あたり16バイト
+    private static final int BYTES_PER_ROW       = 16;
+    private static final int MIN_RUN_CAPACITY    = 1024;
+    private static final int MIN_READ_BUFFER     = 64 * 1024;
+    private static final int MAX_READ_BUFFER     = 8 * 1024 * 1024;
+    private static final int SPILL_BUFFER_SIZE   = 8 * 1024 * 1024;
+
+    private final long            memoryBudget;
+    private final Path            tempDir;
+    private final int             runCapacity;
+    private final List<Path>      runs = new ArrayList<>();
+    private       LongChunkBuffer buffer;
+    private       long            count;
+
+    /**
+     * 外部ソートを生成します。
+     *
+     * @param memoryBudget ソートに使用するメモリ量（バイト）
+     * @param parentDir    ランファイル用の一時ディレクトリを作成する場所
+     * @throws IOException 一時ディレクトリを作成できない場合
+     */
+    public ExternalSorter(long memoryBudget, Path parentDir) throws IOException {
+        this.memoryBudget = memoryBudget;
+        this.runCapacity = Math.clamp(memoryBudget / BYTES_PER_ROW, MIN_RUN_CAPACITY, Integer.MAX_VALUE - 8);
+        Files.createDirectories(parentDir);
+        this.tempDir = Files.createTempDirectory(parentDir, "sort-runs-");
+        this.buffer = new LongChunkBuffer(Math.min(runCapacity, 1 << 20));
+    }
+
+    /**
+     * 値を1つ追加します。バッファが予算に達した場合はランとして書き出します。
+     *
+     * @param value 値
+     * @throws IOException ランの書き出しに失敗した場合
+     */
+    public void add(long value) throws IOException {
+        int size = buffer.size();
+        if (size >= runCapacity) {
+            spill();
+        } else if (size == buffer.capacity()) {
+            // 予算を超えて拡張しないように上限を抑える
+            buffer.ensureCapacity((int) Math.min(runCapacity, size + (size >> 1) + 1L));
+        }
+        buffer.add(value);
+        count++;
+    }
+
+    /**
+     * バッファが予算に達していなくても、溜まっている値をランとして書き出します。
+     * ヒープが不足しそうなときに呼び出します。
+     *
+     * @throws IOException ランの書き出しに失敗した場合
+     */
+    public void relieveMemory() throws IOException {
+        if (! buffer.isEmpty()) {
+            spill();
+        }
+        // 拡張済みの配列を手放し、次のランは小さな配列から始める
+        buffer = new LongChunkBuffer(MIN_RUN_CAPACITY);
+    }
+
+    /**
+     * バッファに溜まっている、まだランとして書き出していない値の数を返します。
+     *
+     * @return 値の数
+     */
+    public int bufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * 追加された値の総数を返します。
+     *
+     * @return 値の総数
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * 書き出されたランの数を返します。
+     *
+     * @return ランの数
+     */
+    public int runCount() {
+        return runs.size();
+    }
+
+    /**
+     * 全ての値を昇順で出力します。
+     *
+     * <p>ランが1つも書き出されていない場合はメモリ上でソートして出力します。
+     *
+     * @param sink 出力先
+     * @throws IOException 入出力例外
+     */
+    public void merge(LongSink sink) throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort();
+            long[] values = buffer.array();
+            for (int i = 0, n = buffer.size(); i < n; i++) {
+                sink.accept(values[i]);
+            }
+            return;
+        }
+
+        if (! buffer.isEmpty()) {
+            spill();
+        }
+        // マージ中はバッファを使わないので、その分を読み込みバッファに回す
+        buffer = null;
+
+        System.out.println("外部ソート: " + runs.size() + "個のランをマージします");
+        int readBufferSize = Math.clamp(memoryBudget / runs.size(), MIN_READ_BUFFER, MAX_READ_BUFFER);
+
+        RunReader[] readers = new RunReader[runs.size()];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new RunReader(runs.get(i), readBufferSize);
+            }
+            mergeRuns(readers, sink);
+        } finally {
+            for (RunReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * ヒープを用いてランをマージします。
+     *
+     * <p>ヒープは現在値の配列とランの添字の配列で構成し、値のボクシングを行いません。
+     */
+    private static void mergeRuns(RunReader[] readers, LongSink sink) throws IOException {
+        int[] heap = new int[readers.length];
+        long[] heads = new long[readers.length];
+        int heapSize = 0;
+
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i].hasNext()) {
+                heads[i] = readers[i].next();
+                heap[heapSize++] = i;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heads, heapSize, i);
+        }
+
+        while (heapSize > 0) {
+            int run = heap[0];
+            sink.accept(heads[run]);
+
+            if (readers[run].hasNext()) {
+                heads[run] = readers[run].next();
+            } else {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heads, heapSize, 0);
+        }
+    }
+
+    private static void siftDown(int[] heap, long[] heads, int heapSize, int index) {
+        int run = heap[index];
+        long value = heads[run];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heads[heap[child + 1]] < heads[heap[child]]) {
+                child++;
+            }
+            if (heads[heap[child]] >= value) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = run;
+    }
+
+    /**
+     * バッファをソートしてランファイルに書き出します。
+     */
+    private void spill() throws IOException {
+        buffer.sort();
+        Path run = tempDir.resolve("run" + runs.size() + ".bin");
+
+        try (FileChannel channel = FileChannel.open(
+                run,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)
+        ) {
+            // 小さなヒープでは書き出し用のバッファも予算に合わせて抑える
+            ByteBuffer out = ByteBuffer.allocate(
+                    Math.clamp(memoryBudget / 16, MIN_READ_BUFFER, SPILL_BUFFER_SIZE) & -Long.BYTES);
+            long[] values = buffer.array();
+            for (int i = 0, n = buffer.size(); i < n; i++) {
+                if (! out.hasRemaining()) {
+                    writeFully(channel, out);
+                }
+                out.putLong(values[i]);
+            }
+            writeFully(channel, out);
+        }
+
+        runs.add(run);
+        System.out.printf("外部ソート: ラン%dを書き出しました (%,d行)%n", runs.size(), buffer.size());
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * ランファイルと一時ディレクトリを削除します。
+     *
+     * @throws IOException 削除に失敗した場合
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        Files.deleteIfExists(tempDir);
+    }
+
+    /**
+     * ランファイルを先頭から順に読み出すリーダー
+     */
+    private static final class RunReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer  in;
+        private       boolean     eof;
+
+        RunReader(Path run, int bufferSize) throws IOException {
+            this.channel = FileChannel.open(run, StandardOpenOption.READ);
+            this.in = ByteBuffer.allocate(bufferSize & ~7);
+            this.in.limit(0);
+        }
+
+        boolean hasNext() throws IOException {
+            if (in.hasRemaining()) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            in.clear();
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            in.flip();
+            return in.hasRemaining();
+        }
+
+        long next() {
+            return in.getLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,57 +1,115 @@
 package com.example;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileGenerate {
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int REPORT_INTERVAL   = 5_000_000; // 進捗報告の間隔
+
     /**
-     * 100,000,000行のテキストファイルを生成します。
-     *
-     * <p>このメソッドは、{@link File}を1行ずつ書き込み、 {@link BufferedWriter}を使用してバッファリングを行い、一定の間隔でバッファをフラッシュします。
-     * また、一定の間隔で進捗状況を報告します。
+     * 生成する値の並び
+     */
+    public enum Distribution {
+        /** 1からNまでを昇順に並べる */
+        SEQUENTIAL,
+        /** 1からNまでを重複なしでランダムな順に並べる */
+        SHUFFLED,
+        /** 1からNまでの値を重複ありでランダムに選ぶ */
+        RANDOM
+    }
+
+    /**
+     * システムプロパティの設定でテキストファイルを生成します。
      *
      * <p>このメソッドは、{@link App#main(String[])}メソッドで呼び出されます。
+     *
+     * @see #generateFile(RunConfig)
      */
     public static void generateFile() {
+        generateFile(RunConfig.fromSystemProperties());
+    }
+
+    /**
+     * {@link RunConfig#generateRows()}行のテキストファイルを生成します。
+     *
+     * <p>各行の値は行番号とシードだけから決まるため、行の範囲ごとに独立して計算できます。
+     * 行をスレッド数の範囲に分け、1回目に各範囲のバイト数を数えて書き込み位置を決め、
+     * 2回目に各スレッドが自分の範囲を{@link FileChannel}の位置指定書き込みで書き出します。
+     * また、一定の間隔で進捗状況を報告します。
+     *
+     * @param config 実行時設定
+     */
+    public static void generateFile(RunConfig config) {
         // 出力ファイルの設定
         File outputFile = new File("file.txt");
 
-        // カウンタと合計の定義
-        final int TOTAL = 100_000_000;
-        final int BATCH_SIZE = 1_000_000; // 一度に処理する行数
-        final int REPORT_INTERVAL = 5_000_000; // 進捗報告の間隔
+        final long total = config.generateRows();
+        final Distribution distribution = config.generateDistribution();
+        final int threads = (int) Math.max(1, Math.min(config.generateThreads(), total / 1_000_000 + 1));
 
         // 数値フォーマット（読みやすさ用）
         NumberFormat formatter = NumberFormat.getInstance(Locale.getDefault());
 
-        System.out.println("ファイル生成を開始します...");
+        System.out.println("ファイル生成を開始します... (" + formatter.format(total) + "行, "
+                           + distribution.name().toLowerCase(Locale.ROOT) + ", スレッド数: " + threads + ")");
         long startTime = System.currentTimeMillis();
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
-            for (int i = 1; i <= TOTAL; i++) {
-                // 数値を書き込む
-                writer.write(Integer.toString(i));
-                writer.newLine();
-
-                // バッファをフラッシュ（一定間隔で）
-                if (i % BATCH_SIZE == 0) {
-                    writer.flush();
-                }
+        RowValues values = new RowValues(distribution, total, config.generateSeed());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(
+                outputFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            long[] rowStart = new long[threads + 1];
+            for (int t = 0; t <= threads; t++) {
+                rowStart[t] = total * t / threads;
+            }
 
-                // 進捗状況の報告
-                if (i % REPORT_INTERVAL == 0 || i == TOTAL) {
-                    System.out.println("進捗状況: " + formatter.format(i) + " / "
-                            + formatter.format(TOTAL) + " ("
-                            + String.format("%.2f", (double) i / TOTAL * 100) + "%)");
-                }
+            // 1回目: 各範囲のバイト数を数え、書き込み開始位置を決める
+            List<Future<Long>> sizes = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long from = rowStart[t];
+                long to = rowStart[t + 1];
+                sizes.add(executor.submit(() -> values.byteLength(from, to)));
+            }
+            long[] offsets = new long[threads + 1];
+            for (int t = 0; t < threads; t++) {
+                offsets[t + 1] = offsets[t] + await(sizes.get(t));
             }
 
-            // 最終フラッシュ
-            writer.flush();
+            // 2回目: 各範囲を位置指定で書き込む
+            AtomicLong written = new AtomicLong();
+            AtomicLong nextReport = new AtomicLong(REPORT_INTERVAL);
+            List<Future<Long>> writes = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long from = rowStart[t];
+                long to = rowStart[t + 1];
+                long offset = offsets[t];
+                writes.add(executor.submit(() -> {
+                    writeRange(channel, values, from, to, offset, written, nextReport, formatter);
+                    return to - from;
+                }));
+            }
+            for (Future<Long> write : writes) {
+                await(write);
+            }
+            reportProgress(total, total, formatter);
+            channel.force(false);
 
             long endTime = System.currentTimeMillis();
             double elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
@@ -61,12 +119,207 @@ public class FileGenerate {
             System.out.println("処理時間: " + String.format("%.2f", elapsedTimeInSeconds) + "秒");
 
             // ファイルサイズを計算して表示
-            double fileSizeInMB = outputFile.length() / (1024.0 * 1024.0);
+            double fileSizeInMB = offsets[threads] / (1024.0 * 1024.0);
             System.out.println("ファイルサイズ: " + String.format("%.2f", fileSizeInMB) + " MB");
 
+            // 次回の起動時にファイルを読まずに完全性を判断できるよう、マニフェストを書き出す
+            InputManifest manifest = InputManifest.create(
+                    outputFile.toPath(),
+                    distribution,
+                    config.generateSeed(),
+                    threads);
+            System.out.println("マニフェスト: " + InputManifest.pathFor(outputFile.toPath())
+                               + " (チェックサム: " + manifest.checksum() + ")");
+
         } catch (IOException e) {
             System.err.println("エラーが発生しました: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 行の範囲{@code [from, to)}を書き込みます。
+     */
+    private static void writeRange(
+            FileChannel channel,
+            RowValues values,
+            long from,
+            long to,
+            long offset,
+            AtomicLong written,
+            AtomicLong nextReport,
+            NumberFormat formatter) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        byte[] array = buffer.array();
+        int position = 0;
+        long rowsInBuffer = 0;
+        long filePosition = offset;
+
+        for (long row = from; row < to; row++) {
+            // 最大19桁と改行
+            if (position + 20 > array.length) {
+                filePosition = flush(channel, buffer, position, filePosition);
+                position = 0;
+                countProgress(written, nextReport, rowsInBuffer, values.total(), formatter);
+                rowsInBuffer = 0;
+            }
+            position = JsonRecordEncoder.writeDecimal(values.valueAt(row), array, position);
+            array[position++] = '\n';
+            rowsInBuffer++;
+        }
+        flush(channel, buffer, position, filePosition);
+        countProgress(written, nextReport, rowsInBuffer, values.total(), formatter);
+    }
+
+    private static long flush(FileChannel channel, ByteBuffer buffer, int length, long filePosition)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            filePosition += channel.write(buffer, filePosition);
+        }
+        return filePosition;
+    }
+
+    /**
+     * 書き込んだ行数を加算し、報告間隔を超えていれば進捗を表示します。
+     */
+    private static void countProgress(
+            AtomicLong written,
+            AtomicLong nextReport,
+            long rows,
+            long total,
+            NumberFormat formatter) {
+        long done = written.addAndGet(rows);
+        long next = nextReport.get();
+        if (done >= next && done < total
+            && nextReport.compareAndSet(next, (done / REPORT_INTERVAL + 1) * REPORT_INTERVAL)) {
+            reportProgress(done / REPORT_INTERVAL * REPORT_INTERVAL, total, formatter);
+        }
+    }
+
+    private static void reportProgress(long done, long total, NumberFormat formatter) {
+        synchronized (System.out) {
+            System.out.println("進捗状況: " + formatter.format(done) + " / "
+                    + formatter.format(total) + " ("
+                    + String.format("%.2f", (double) done / total * 100) + "%)");
+        }
+    }
+
+    private static long await(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("ファイル生成に失敗しました: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("ファイル生成中に中断されました", e);
+        }
+    }
+
+    /**
+     * 行番号から値を求める関数
+     *
+     * <p>{@link Distribution#SHUFFLED}では、{@code [0, total)}を覆う2のべき乗の範囲上の
+     * Feistel暗号で行番号を並べ替え、範囲外の値は範囲内に入るまで暗号化を繰り返します（サイクルウォーキング）。
+     * これにより全体を並べ替えたデータを保持せずに、重複のない並びを行番号から直接求められます。
+     */
+    private static final class RowValues {
+        private static final int ROUNDS = 4;
+
+        private final Distribution distribution;
+        private final long         total;
+        private final long[]       roundKeys = new long[ROUNDS];
+        private final int          halfBits;
+        private final long         halfMask;
+
+        RowValues(Distribution distribution, long total, long seed) {
+            this.distribution = distribution;
+            this.total = total;
+            long state = seed;
+            for (int i = 0; i < ROUNDS; i++) {
+                state += 0x9E3779B97F4A7C15L;
+                roundKeys[i] = mix64(state);
+            }
+            int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(Math.max(1, total - 1)));
+            this.halfBits = (bits + 1) / 2;
+            this.halfMask = (1L << halfBits) - 1;
+        }
+
+        long total() {
+            return total;
+        }
+
+        /**
+         * {@code row}行目（0始まり）の値を返します。値は1以上{@code total}以下です。
+         */
+        long valueAt(long row) {
+            return switch (distribution) {
+                case SEQUENTIAL -> row + 1;
+                case SHUFFLED -> permute(row) + 1;
+                case RANDOM -> Long.remainderUnsigned(mix64(row ^ roundKeys[0]), total) + 1;
+            };
+        }
+
+        /**
+         * 行の範囲{@code [from, to)}を書き出したときのバイト数を返します。
+         */
+        long byteLength(long from, long to) {
+            long length = 0;
+            if (distribution == Distribution.SEQUENTIAL) {
+                // 桁数ごとにまとめて数える
+                long value = from + 1;
+                long end = to + 1;
+                while (value < end) {
+                    int digits = JsonRecordEncoder.decimalLength(value);
+                    long nextPower = digits >= 19 ? Long.MAX_VALUE : pow10(digits);
+                    long upTo = Math.min(end, nextPower);
+                    length += (upTo - value) * (digits + 1);
+                    value = upTo;
+                }
+                return length;
+            }
+            for (long row = from; row < to; row++) {
+                length += JsonRecordEncoder.decimalLength(valueAt(row)) + 1;
+            }
+            return length;
+        }
+
+        private long permute(long value) {
+            do {
+                value = encrypt(value);
+            } while (value >= total);
+            return value;
+        }
+
+        private long encrypt(long value) {
+            long left = value >>> halfBits;
+            long right = value & halfMask;
+            for (long key : roundKeys) {
+                long next = left ^ (mix64(right ^ key) & halfMask);
+                left = right;
+                right = next;
+            }
+            return (left << halfBits) | right;
+        }
+
+        private static long pow10(int exponent) {
+            long value = 1;
+            for (int i = 0; i < exponent; i++) {
+                value *= 10;
+            }
+            return value;
+        }
+
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
         }
     }
 }
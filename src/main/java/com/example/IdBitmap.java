@@ -0,0 +1,272 @@
+package com.example;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * 0以上のIDの集合をオフヒープのビットマップで保持する
+ *
+ * <p>ID {@code n}をビット{@code n}に対応させるため、1億件の連続したIDでも約12.5MBで済み、
+ * 昇順の列挙はビットマップを先頭から走査するだけです（O(n)の計数ソート）。
+ * ビットマップは{@link MemorySegment}としてヒープの外に確保し、
+ * 範囲を超えるIDが追加されたら倍々に拡張します。{@link #close()}で直ちに解放されます。
+ *
+ * <p>スレッドセーフではありません。
+ */
+public final class IdBitmap implements AutoCloseable {
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG;
+
+    /**
+     * 連続した範囲の受け取り先
+     */
+    @FunctionalInterface
+    public interface RangeConsumer {
+        /**
+         * 範囲を1つ受け取ります。
+         *
+         * @param from 最初のID
+         * @param to   最後のID（この値を含む）
+         * @throws IOException 入出力例外
+         */
+        void accept(long from, long to) throws IOException;
+    }
+
+    private final long          maxBytes;
+    private       Arena         arena;
+    private       MemorySegment words;
+    private       long          cardinality;
+    private       long          minId = Long.MAX_VALUE;
+    private       long          maxId = -1;
+
+    /**
+     * ビットマップを生成します。
+     *
+     * @param initialIds 最初に確保するIDの範囲（{@code 0}から{@code initialIds - 1}まで）
+     * @param maxBytes   拡張できるビットマップの大きさの上限（バイト）
+     */
+    public IdBitmap(long initialIds, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.arena = Arena.ofShared();
+        this.words = arena.allocate(
+                Math.max(Long.BYTES, Math.min(wordsFor(Math.max(64, initialIds)) * Long.BYTES, maxBytes & -Long.BYTES)),
+                Long.BYTES);
+    }
+
+    /**
+     * IDを追加します。
+     *
+     * @param id 0以上のID
+     * @return 新しく追加された場合は{@code true}、すでに含まれていた場合は{@code false}
+     * @throws IOException IDが負の場合、またはビットマップが上限を超える場合
+     */
+    public boolean add(long id) throws IOException {
+        if (id < 0) {
+            throw new IOException("ビットマップでは0以上のIDだけを扱えます: " + id);
+        }
+        long offset = (id >>> 6) * Long.BYTES;
+        if (offset >= words.byteSize()) {
+            grow(offset + Long.BYTES);
+        }
+        long word = words.get(WORD, offset);
+        long mask = 1L << id;
+        if ((word & mask) != 0) {
+            return false;
+        }
+        words.set(WORD, offset, word | mask);
+        cardinality++;
+        minId = Math.min(minId, id);
+        maxId = Math.max(maxId, id);
+        return true;
+    }
+
+    /**
+     * IDが含まれていれば{@code true}を返します。
+     *
+     * @param id ID
+     * @return 含まれている場合は{@code true}
+     */
+    public boolean contains(long id) {
+        long offset = (id >>> 6) * Long.BYTES;
+        return id >= 0 && offset < words.byteSize() && (words.get(WORD, offset) & (1L << id)) != 0;
+    }
+
+    /**
+     * 含まれているIDの数を返します。
+     *
+     * @return IDの数
+     */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * 最小のIDを返します。
+     *
+     * @return 最小のID。空の場合は{@link Long#MAX_VALUE}
+     */
+    public long minId() {
+        return minId;
+    }
+
+    /**
+     * 最大のIDを返します。
+     *
+     * @return 最大のID。空の場合は{@code -1}
+     */
+    public long maxId() {
+        return maxId;
+    }
+
+    /**
+     * 確保しているビットマップの大きさを返します。
+     *
+     * @return バイト数
+     */
+    public long sizeBytes() {
+        return words.byteSize();
+    }
+
+    /**
+     * 範囲内に含まれているIDを昇順に出力します。
+     *
+     * @param from 最初のID
+     * @param to   最後のID（この値を含む）
+     * @param sink 出力先
+     * @throws IOException 出力先が失敗した場合
+     */
+    public void forEach(long from, long to, LongSink sink) throws IOException {
+        to = Math.min(to, words.byteSize() * Byte.SIZE - 1);
+        if (from > to) {
+            return;
+        }
+        from = Math.max(0, from);
+        long lastWord = to >>> 6;
+        for (long w = from >>> 6; w <= lastWord; w++) {
+            long word = words.get(WORD, w * Long.BYTES);
+            if (w == from >>> 6) {
+                word &= -1L << from;
+            }
+            if (w == lastWord) {
+                word &= -1L >>> (63 - (to & 63));
+            }
+            while (word != 0) {
+                sink.accept((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * 範囲内に含まれているIDの数を返します。
+     *
+     * @param from 最初のID
+     * @param to   最後のID（この値を含む）
+     * @return IDの数
+     */
+    public long count(long from, long to) {
+        to = Math.min(to, words.byteSize() * Byte.SIZE - 1);
+        if (from > to) {
+            return 0;
+        }
+        from = Math.max(0, from);
+        long count = 0;
+        long lastWord = to >>> 6;
+        for (long w = from >>> 6; w <= lastWord; w++) {
+            long word = words.get(WORD, w * Long.BYTES);
+            if (w == from >>> 6) {
+                word &= -1L << from;
+            }
+            if (w == lastWord) {
+                word &= -1L >>> (63 - (to & 63));
+            }
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * 範囲内で、含まれている（{@code present}が{@code true}）または含まれていない連続したIDの範囲を昇順に出力します。
+     * 全ビットが同じ64ビット単位の語は1回の比較で読み飛ばします。
+     *
+     * @param present  含まれている範囲を出力する場合は{@code true}、含まれていない範囲は{@code false}
+     * @param from     最初のID
+     * @param to       最後のID（この値を含む）
+     * @param consumer 出力先
+     * @throws IOException 出力先が失敗した場合
+     */
+    public void forEachRange(boolean present, long from, long to, RangeConsumer consumer) throws IOException {
+        from = Math.max(0, from);
+        if (from > to) {
+            return;
+        }
+        long runStart = -1;
+        long lastWord = to >>> 6;
+        for (long w = from >>> 6; w <= lastWord; w++) {
+            long word = present ? wordAt(w) : ~wordAt(w);
+            if (w == from >>> 6) {
+                word &= -1L << from;
+            }
+            if (w == lastWord) {
+                word &= -1L >>> (63 - (to & 63));
+            }
+            if (runStart < 0 ? word == 0 : word == -1L) {
+                continue;
+            }
+            long base = w << 6;
+            int bit = 0;
+            while (bit < 64) {
+                long rest = (runStart < 0 ? word : ~word) >>> bit;
+                if (rest == 0) {
+                    break;
+                }
+                bit += Long.numberOfTrailingZeros(rest);
+                if (runStart < 0) {
+                    runStart = base + bit;
+                } else {
+                    consumer.accept(runStart, base + bit - 1);
+                    runStart = -1;
+                }
+            }
+        }
+        if (runStart >= 0) {
+            consumer.accept(runStart, to);
+        }
+    }
+
+    /**
+     * ビットマップを解放します。
+     */
+    @Override
+    public void close() {
+        if (arena.scope().isAlive()) {
+            arena.close();
+        }
+    }
+
+    private long wordAt(long index) {
+        long offset = index * Long.BYTES;
+        return offset < words.byteSize() ? words.get(WORD, offset) : 0;
+    }
+
+    private void grow(long minBytes) throws IOException {
+        long limit = maxBytes & -Long.BYTES;
+        if (minBytes > limit) {
+            throw new IOException(String.format(
+                    "IDの範囲が広すぎます: ビットマップに%,dバイト必要ですが、上限は%,dバイトです", minBytes, maxBytes));
+        }
+        // 倍に広げると上限を超える場合も、必要な大きさが上限以内なら上限まで広げる
+        long size = Math.min(Math.max(minBytes, words.byteSize() * 2), limit);
+        Arena grown = Arena.ofShared();
+        MemorySegment copy = grown.allocate(size, Long.BYTES);
+        MemorySegment.copy(words, 0, copy, 0, words.byteSize());
+        arena.close();
+        arena = grown;
+        words = copy;
+    }
+
+    private static long wordsFor(long ids) {
+        return (ids + 63) >>> 6;
+    }
+}
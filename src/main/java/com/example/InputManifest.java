@@ -0,0 +1,286 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * 入力ファイルの内容を記録するサイドカーマニフェスト
+ *
+ * <p>{@link FileGenerate}が{@code file.txt}を生成した後に{@code file.txt.manifest.json}として書き出します。
+ * 起動時は{@link #matches(Path, long, FileGenerate.Distribution, long)}でサイズと更新日時、
+ * 生成条件だけを比較するため、ファイルを読まずに一定時間で再生成の要否を判断できます。
+ *
+ * <p>{@code run.mode=append}で上流が追記した入力を処理した後は、生成条件の代わりに{@link #APPENDED}を記録して書き直します。
+ * 追記された入力は生成したものではないため、{@link App}はこのマニフェストがあるファイルを生成し直しません。
+ *
+ * <p>マニフェストのないファイルを走査して行数だけを確認した場合は、生成条件がわからないため
+ * {@code distribution}を{@code null}とした行数だけのマニフェストを書き出します（{@link #rowsOnly(Path, ScanResult)}）。
+ * このマニフェストは行数、サイズと更新日時だけを比較します。
+ *
+ * <p>チェックサムは{@link #BLOCK_SIZE}ごとのCRC32Cを順に並べ、さらにCRC32Cを取ったものです。
+ * ブロックの区切りがスレッド数に依存しないため、並列に計算しても同じ値になります。
+ *
+ * @param rows         行数
+ * @param bytes        ファイルサイズ（バイト）
+ * @param lastModified 最終更新日時（エポックミリ秒）
+ * @param checksum     ブロック単位のCRC32C（16進）
+ * @param distribution 生成時の値の並び。追記された入力では{@link #APPENDED}、生成条件がわからない場合は{@code null}
+ * @param seed         生成時のシード。{@code distribution}が{@code null}の場合は使いません
+ */
+public record InputManifest(
+        long rows,
+        long bytes,
+        long lastModified,
+        String checksum,
+        String distribution,
+        long seed) {
+
+    /** 追記された入力のマニフェストに、生成時の値の並びの代わりに記録する値 */
+    public static final String APPENDED = "appended";
+
+    /** チェックサムのブロックサイズ */
+    static final int BLOCK_SIZE = 64 * 1024 * 1024;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 入力ファイルに対応するマニフェストのパスを返します。
+     *
+     * @param input 入力ファイル
+     * @return マニフェストのパス
+     */
+    public static Path pathFor(Path input) {
+        return input.resolveSibling(input.getFileName() + ".manifest.json");
+    }
+
+    /**
+     * 入力ファイルを走査してマニフェストを作成し、書き出します。
+     *
+     * @param input        入力ファイル
+     * @param distribution 生成時の値の並び
+     * @param seed         生成時のシード
+     * @param threads      走査のスレッド数
+     * @return 書き出したマニフェスト
+     * @throws IOException 入出力例外
+     */
+    public static InputManifest create(Path input, FileGenerate.Distribution distribution, long seed, int threads)
+            throws IOException {
+        return scanAndWrite(input, distribution.name().toLowerCase(Locale.ROOT), seed, threads);
+    }
+
+    /**
+     * 追記された入力を走査してマニフェストを作成し、書き出します。
+     *
+     * @param input   入力ファイル
+     * @param threads 走査のスレッド数
+     * @return 書き出したマニフェスト
+     * @throws IOException 入出力例外
+     */
+    public static InputManifest createAppended(Path input, int threads) throws IOException {
+        return scanAndWrite(input, APPENDED, 0, threads);
+    }
+
+    /**
+     * 走査済みの入力ファイルについて、生成条件を記録しない行数だけのマニフェストを作成し、書き出します。
+     *
+     * @param input 入力ファイル
+     * @param scan  走査結果
+     * @return 書き出したマニフェスト
+     * @throws IOException 入出力例外
+     */
+    public static InputManifest rowsOnly(Path input, ScanResult scan) throws IOException {
+        InputManifest manifest = new InputManifest(
+                scan.lines(),
+                Files.size(input),
+                Files.getLastModifiedTime(input).toMillis(),
+                scan.checksum(),
+                null,
+                0);
+        manifest.write(input);
+        return manifest;
+    }
+
+    private static InputManifest scanAndWrite(Path input, String distribution, long seed, int threads)
+            throws IOException {
+        ScanResult scan = scan(input, threads);
+        InputManifest manifest = new InputManifest(
+                scan.lines(),
+                Files.size(input),
+                Files.getLastModifiedTime(input).toMillis(),
+                scan.checksum(),
+                distribution,
+                seed);
+        manifest.write(input);
+        return manifest;
+    }
+
+    /**
+     * マニフェストを読み込みます。
+     *
+     * @param input 入力ファイル
+     * @return マニフェスト。存在しないか読み込めない場合は{@code null}
+     */
+    public static InputManifest read(Path input) {
+        try {
+            return objectMapper.readValue(pathFor(input).toFile(), InputManifest.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * マニフェストを一時ファイルに書き出してから置き換えます。
+     *
+     * @param input 入力ファイル
+     * @throws IOException 入出力例外
+     */
+    public void write(Path input) throws IOException {
+        Path target = pathFor(input);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), this);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 入力ファイルがこのマニフェストの記録どおりで、指定の生成条件と一致するかを判定します。
+     * ファイルの属性だけを比較し、内容は読みません。
+     * 行数だけのマニフェスト（{@code distribution}が{@code null}）では、値の並びとシードは比較しません。
+     *
+     * @param input        入力ファイル
+     * @param rows         期待する行数
+     * @param distribution 期待する値の並び
+     * @param seed         期待するシード（{@code sequential}では無視します）
+     * @return 一致する場合は{@code true}
+     */
+    public boolean matches(Path input, long rows, FileGenerate.Distribution distribution, long seed) {
+        try {
+            return this.rows == rows
+                   && this.bytes == Files.size(input)
+                   && this.lastModified == Files.getLastModifiedTime(input).toMillis()
+                   && (this.distribution == null
+                       || distribution.name().equalsIgnoreCase(this.distribution)
+                          && (distribution == FileGenerate.Distribution.SEQUENTIAL || this.seed == seed));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 走査結果
+     *
+     * @param lines    行数（最後の行が改行で終わらない場合も1行と数えます）
+     * @param checksum ブロック単位のCRC32C（16進）
+     */
+    public record ScanResult(long lines, String checksum) {
+    }
+
+    /**
+     * ファイルをメモリマップしてブロックごとに並列に走査し、行数とチェックサムを求めます。
+     *
+     * @param input   入力ファイル
+     * @param threads 走査のスレッド数
+     * @return 走査結果
+     * @throws IOException 入出力例外
+     */
+    public static ScanResult scan(Path input, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<Future<long[]>> blocks = new ArrayList<>();
+            for (long start = 0; start < size; start += BLOCK_SIZE) {
+                long blockStart = start;
+                long length = Math.min(BLOCK_SIZE, size - start);
+                blocks.add(executor.submit(() -> scanBlock(channel, blockStart, length)));
+            }
+
+            long lines = 0;
+            CRC32C combined = new CRC32C();
+            for (Future<long[]> block : blocks) {
+                long[] result = await(block);
+                lines += result[0];
+                int crc = (int) result[1];
+                combined.update(new byte[]{(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc});
+            }
+            if (size > 0 && lastByte(channel, size) != '\n') {
+                lines++;
+            }
+            return new ScanResult(lines, String.format("%08x", combined.getValue()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 1ブロックの改行数とCRC32Cを求めます。
+     *
+     * @return {@code [改行数, CRC32C]}
+     */
+    private static long[] scanBlock(FileChannel channel, long start, long length) throws IOException {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        CRC32C crc = new CRC32C();
+        crc.update(map.duplicate());
+        return new long[]{countNewlines(map.order(ByteOrder.LITTLE_ENDIAN), (int) length), crc.getValue()};
+    }
+
+    /**
+     * {@code \n}の数を8バイトずつSWAR（SIMD within a register）で数えます。
+     *
+     * <p>各バイトを{@code 0x0A}とXORし、0になったバイトの最上位ビットだけを立てて{@link Long#bitCount}で数えます。
+     * 桁上がりが隣のバイトに伝わらない式なので、誤検出はありません。
+     */
+    static long countNewlines(ByteBuffer map, int length) {
+        final long newlines = 0x0A0A0A0A0A0A0A0AL;
+        final long low7 = 0x7F7F7F7F7F7F7F7FL;
+        long count = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long x = map.getLong(i) ^ newlines;
+            long t = (x & low7) + low7;
+            count += Long.bitCount(~(t | x | low7));
+        }
+        for (; i < length; i++) {
+            if (map.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte lastByte(FileChannel channel, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        return last.get(0);
+    }
+
+    private static long[] await(Future<long[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("入力ファイルの走査に失敗しました: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("入力ファイルの走査中に中断されました", e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code {"items": [{"id": ..., "secret": ...}, ...]}}形式のJSONを直接UTF-8バイト列として書き出すエンコーダー
+ *
+ * <p>レコードの形が固定されているため、汎用のJSONジェネレーターを使わずに
+ * 固定部分をあらかじめバイト列にしておき、IDと{@code secret}だけを作業用バッファに書き込みます。
+ * 出力はJacksonの{@code JsonGenerator}（{@code useDefaultPrettyPrinter()}の有無）と同じバイト列です。
+ *
+ * <p>{@code secret}は{@link SecretGenerator}が直接作業用バッファに書き込みます。
+ * 常に36バイトなので、出力サイズは{@link #encodedSize(long[], int)}で
+ * 事前に正確に求められます。
+ */
+public final class JsonRecordEncoder implements RecordEncoder {
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    // シークポイントの間隔（レコード数）。整形済みで約80KBごと
+    private static final int SEEK_INTERVAL = 1024;
+
+    /**
+     * JSONのレイアウト
+     */
+    public enum Layout {
+        /** Jacksonの{@code DefaultPrettyPrinter}と同じインデント付きの形式 */
+        PRETTY,
+        /** 空白を含まない形式 */
+        COMPACT
+    }
+
+    private final byte[] prefix;
+    private final byte[] firstRecordStart;
+    private final byte[] nextRecordStart;
+    private final byte[] beforeSecret;
+    private final byte[] recordEnd;
+    private final byte[] suffix;
+
+    /**
+     * 指定されたレイアウトのエンコーダーを生成します。
+     *
+     * @param layout JSONのレイアウト
+     */
+    public JsonRecordEncoder(Layout layout) {
+        if (layout == Layout.PRETTY) {
+            String lf = System.lineSeparator();
+            this.prefix = ascii("{" + lf + "  \"items\" : [");
+            this.firstRecordStart = ascii(" {" + lf + "    \"id\" : ");
+            this.nextRecordStart = ascii(", {" + lf + "    \"id\" : ");
+            this.beforeSecret = ascii("," + lf + "    \"secret\" : \"");
+            this.recordEnd = ascii("\"" + lf + "  }");
+            this.suffix = ascii(" ]" + lf + "}");
+        } else {
+            this.prefix = ascii("{\"items\":[");
+            this.firstRecordStart = ascii("{\"id\":");
+            this.nextRecordStart = ascii(",{\"id\":");
+            this.beforeSecret = ascii(",\"secret\":\"");
+            this.recordEnd = ascii("\"}");
+            this.suffix = ascii("]}");
+        }
+    }
+
+    @Override
+    public Format format() {
+        return Format.JSON;
+    }
+
+    /**
+     * 出力されるJSONの正確なバイト数を返します。
+     *
+     * @param ids   ID
+     * @param count 有効なIDの数
+     * @return バイト数
+     */
+    @Override
+    public long encodedSize(long[] ids, int count) {
+        if (count == 0) {
+            return prefix.length + suffix.length;
+        }
+        long fixed = beforeSecret.length + SecretGenerator.SECRET_LENGTH + recordEnd.length;
+        long size = prefix.length + suffix.length
+                    + firstRecordStart.length
+                    + (long) (count - 1) * nextRecordStart.length
+                    + count * fixed;
+        for (int i = 0; i < count; i++) {
+            size += decimalLength(ids[i]);
+        }
+        return size;
+    }
+
+    /**
+     * IDの配列をJSONとして出力します。
+     *
+     * @param ids     ID
+     * @param count   有効なIDの数
+     * @param secrets レコードごとの{@code secret}の生成元
+     * @param out     出力先。閉じません
+     * @throws IOException 入出力例外
+     */
+    @Override
+    public void encode(long[] ids, int count, SecretGenerator secrets, OutputStream out) throws IOException {
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        int maxRecordLength = nextRecordStart.length + 20 + beforeSecret.length
+                              + SecretGenerator.SECRET_LENGTH + recordEnd.length;
+        int position = put(prefix, scratch, 0);
+
+        for (int i = 0; i < count; i++) {
+            if (position + maxRecordLength > scratch.length) {
+                out.write(scratch, 0, position);
+                position = 0;
+            }
+            position = put(i == 0 ? firstRecordStart : nextRecordStart, scratch, position);
+            position = writeDecimal(ids[i], scratch, position);
+            position = put(beforeSecret, scratch, position);
+            position = secrets.nextSecret(scratch, position);
+            position = put(recordEnd, scratch, position);
+        }
+
+        if (position + suffix.length > scratch.length) {
+            out.write(scratch, 0, position);
+            position = 0;
+        }
+        position = put(suffix, scratch, position);
+        out.write(scratch, 0, position);
+    }
+
+    /**
+     * {@value #SEEK_INTERVAL}レコードごとに、レコードの直前の区切り（{@code "{"}または{@code ", {"}）の位置を通知します。
+     */
+    @Override
+    public void seekPoints(long[] ids, int count, SeekPointConsumer consumer) throws IOException {
+        long fixed = beforeSecret.length + SecretGenerator.SECRET_LENGTH + recordEnd.length;
+        long offset = prefix.length;
+        for (int i = 0; i < count; i++) {
+            if (i % SEEK_INTERVAL == 0) {
+                consumer.accept(offset, i, Math.min(SEEK_INTERVAL, count - i));
+            }
+            offset += (i == 0 ? firstRecordStart.length : nextRecordStart.length) + decimalLength(ids[i]) + fixed;
+        }
+    }
+
+    /**
+     * {@link Long#toString(long)}と同じ10進表記の長さを返します。
+     */
+    static int decimalLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        int length = 1;
+        if (value < 0) {
+            length++;
+            value = -value;
+        }
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * {@link Long#toString(long)}と同じ10進表記を書き込み、書き込み後の位置を返します。
+     */
+    static int writeDecimal(long value, byte[] dst, int off) {
+        int end = off + decimalLength(value);
+        int position = end;
+        // Long.MIN_VALUEも扱えるよう、負数のまま桁を取り出す
+        long v = value < 0 ? value : -value;
+        do {
+            long q = v / 10;
+            dst[--position] = (byte) ('0' + (q * 10 - v));
+            v = q;
+        } while (v != 0);
+        if (value < 0) {
+            dst[--position] = '-';
+        }
+        return end;
+    }
+
+    private static int put(byte[] src, byte[] dst, int off) {
+        System.arraycopy(src, 0, dst, off, src.length);
+        return off + src.length;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * プリミティブ{@code long}配列によるチャンクバッファ
+ *
+ * <p>{@code ArrayList<Long>}と異なり1行ごとに{@link Long}を生成しないため、
+ * チャンク処理中のガベージを大幅に削減できます。配列はチャンク間で再利用されます。
+ *
+ * <p>ソートにはLSD基数ソート（8ビット×8パス）を使用し、
+ * 全要素で同じ値になる桁のパスは省略します。
+ */
+public final class LongChunkBuffer {
+    // これ未満の要素数ではArrays.sortの方が速い
+    private static final int RADIX_THRESHOLD = 256;
+
+    private long[] values;
+    private long[] scratch;
+    private int    size;
+
+    /**
+     * 指定された容量でバッファを生成します。
+     *
+     * @param capacity 初期容量（行数）
+     */
+    public LongChunkBuffer(int capacity) {
+        this.values = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * 値を末尾に追加します。容量が不足する場合は拡張します。
+     *
+     * @param value 追加する値
+     */
+    public void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length + (values.length >> 1) + 1);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * 少なくとも指定された容量を確保します。
+     *
+     * @param minCapacity 必要な容量（行数）
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity > values.length) {
+            values = Arrays.copyOf(values, minCapacity);
+        }
+    }
+
+    /**
+     * 指定位置の値を返します。
+     *
+     * @param index 位置
+     * @return 値
+     */
+    public long get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return values[index];
+    }
+
+    /**
+     * 格納されている要素数を返します。
+     *
+     * @return 要素数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * バッファが空かどうかを返します。
+     *
+     * @return 空の場合は{@code true}
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 現在の容量を返します。
+     *
+     * @return 容量（行数）
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * 内部配列を返します。有効な要素は先頭から{@link #size()}個です。
+     *
+     * <p>ホットループでの境界チェックを避けるためのもので、配列を保持し続けてはいけません。
+     *
+     * @return 内部配列
+     */
+    public long[] array() {
+        return values;
+    }
+
+    /**
+     * 格納されている値だけを持つ新しいバッファを返します。
+     *
+     * @return 複製したバッファ
+     */
+    public LongChunkBuffer copy() {
+        LongChunkBuffer copy = new LongChunkBuffer(Math.max(1, size));
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * 要素数を0に戻します。配列は再利用されます。
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * 格納されている値を昇順にソートします。
+     */
+    public void sort() {
+        if (size < RADIX_THRESHOLD) {
+            Arrays.sort(values, 0, size);
+            return;
+        }
+        if (scratch == null || scratch.length < values.length) {
+            scratch = new long[values.length];
+        }
+
+        // 全パスのヒストグラムを1回の走査でまとめて作成
+        // 符号ビットを反転して負数も符号なし比較と同じ順序にする
+        int[][] counts = new int[8][256];
+        for (int i = 0; i < size; i++) {
+            long key = values[i] ^ Long.MIN_VALUE;
+            for (int pass = 0; pass < 8; pass++) {
+                counts[pass][(int) (key >>> (pass << 3)) & 0xFF]++;
+            }
+        }
+
+        long[] src = values;
+        long[] dst = scratch;
+        for (int pass = 0; pass < 8; pass++) {
+            int[] count = counts[pass];
+            int shift = pass << 3;
+
+            // この桁が全要素で同じ値ならパスを省略
+            if (count[(int) ((src[0] ^ Long.MIN_VALUE) >>> shift) & 0xFF] == size) {
+                continue;
+            }
+
+            int offset = 0;
+            for (int b = 0; b < 256; b++) {
+                int c = count[b];
+                count[b] = offset;
+                offset += c;
+            }
+            for (int i = 0; i < size; i++) {
+                long value = src[i];
+                dst[count[(int) ((value ^ Long.MIN_VALUE) >>> shift) & 0xFF]++] = value;
+            }
+
+            long[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+
+        // 結果が作業配列側にある場合はコピーせずに参照を入れ替える
+        values = src;
+        scratch = dst;
+    }
+}
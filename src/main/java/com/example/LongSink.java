@@ -0,0 +1,19 @@
+package com.example;
+
+import java.io.IOException;
+
+/**
+ * {@code long}値を1つずつ受け取る出力先
+ *
+ * <p>{@link java.util.function.LongConsumer}と異なり{@link IOException}を送出できます。
+ */
+@FunctionalInterface
+public interface LongSink {
+    /**
+     * 値を1つ受け取ります。
+     *
+     * @param value 値
+     * @throws IOException 入出力例外
+     */
+    void accept(long value) throws IOException;
+}
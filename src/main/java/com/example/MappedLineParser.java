@@ -0,0 +1,255 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * メモリマップを使って1行1数値のテキストファイルを並列に解析するパーサー
+ *
+ * <p>ファイルを改行位置に揃えたバイト範囲に分割し、範囲ごとに別スレッドでマップして解析します。
+ * 数字はバイト列から直接{@code long}に変換され、1行ごとの{@link String}は生成しません。
+ * 解析結果は範囲の順序どおりに{@link BatchConsumer}へ渡されます。
+ *
+ * <p>行の扱いは{@link java.io.BufferedReader#readLine()}と{@link String#trim()}、
+ * {@link Long#parseLong(String)}の組み合わせと同じです。
+ * <ul>
+ *     <li>{@code \n}、{@code \r}、{@code \r\n}を行末とみなします</li>
+ *     <li>前後の{@code 0x20}以下のバイトを取り除き、空になった行は読み飛ばします</li>
+ *     <li>ASCII以外のバイトを含む行や、符号付き・19桁以上の行は{@link Long#parseLong(String)}で解析し、
+ *         不正な行では同じ{@link NumberFormatException}を送出します</li>
+ * </ul>
+ */
+public final class MappedLineParser implements AutoCloseable {
+    // 18桁まではlongで桁あふれしない
+    private static final int FAST_PATH_MAX_DIGITS = 18;
+
+    /**
+     * 解析結果を範囲ごとに受け取る出力先
+     */
+    @FunctionalInterface
+    public interface BatchConsumer {
+        /**
+         * 1範囲分の解析結果を受け取ります。配列は呼び出し後に再利用されるため保持してはいけません。
+         *
+         * @param values      解析した数値
+         * @param count       有効な数値の数
+         * @param startOffset 範囲の開始位置（バイト）
+         * @param endOffset   範囲の終了位置（バイト、この位置を含まない）
+         * @throws IOException 入出力例外
+         */
+        void accept(long[] values, int count, long startOffset, long endOffset) throws IOException;
+    }
+
+    private final Path                                   file;
+    private final int                                    threads;
+    private final int                                    rangeSize;
+    private final ExecutorService                        executor;
+    private final ConcurrentLinkedQueue<LongChunkBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * パーサーを生成します。
+     *
+     * @param file      解析するファイル
+     * @param threads   解析スレッド数
+     * @param rangeSize 1範囲あたりのおおよそのバイト数
+     */
+    public MappedLineParser(Path file, int threads, int rangeSize) {
+        this.file = file;
+        this.threads = Math.max(1, threads);
+        this.rangeSize = Math.max(4096, rangeSize);
+        this.executor = Executors.newFixedThreadPool(this.threads);
+    }
+
+    /**
+     * ファイル全体を解析します。
+     *
+     * @param consumer 解析結果の出力先
+     * @throws IOException 入出力例外
+     */
+    public void parse(BatchConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parse(channel, 0, channel.size(), consumer);
+        }
+    }
+
+    /**
+     * ファイルの指定範囲を解析します。範囲の両端は行頭である必要があります。
+     *
+     * @param start    開始位置（バイト）
+     * @param end      終了位置（バイト、この位置を含まない）
+     * @param consumer 解析結果の出力先
+     * @throws IOException 入出力例外
+     */
+    public void parse(long start, long end, BatchConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parse(channel, start, Math.min(end, channel.size()), consumer);
+        }
+    }
+
+    private void parse(FileChannel channel, long start, long end, BatchConsumer consumer) throws IOException {
+        // 順序を保つため、先頭の範囲から順に結果を受け取る。先読みはスレッド数+1範囲まで
+        Deque<Future<ParsedRange>> inFlight = new ArrayDeque<>();
+        long position = start;
+        try {
+            while (position < end || ! inFlight.isEmpty()) {
+                while (position < end && inFlight.size() <= threads) {
+                    long rangeStart = position;
+                    long rangeEnd = alignToLineStart(channel, Math.min(end, rangeStart + rangeSize), end);
+                    inFlight.addLast(executor.submit(() -> parseRange(channel, rangeStart, rangeEnd)));
+                    position = rangeEnd;
+                }
+
+                ParsedRange range = await(inFlight.removeFirst());
+                try {
+                    consumer.accept(range.buffer().array(), range.buffer().size(), range.start(), range.end());
+                } finally {
+                    range.buffer().clear();
+                    bufferPool.offer(range.buffer());
+                }
+            }
+        } finally {
+            for (Future<ParsedRange> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 指定位置以降で最初の行頭の位置を返します。
+     *
+     * <p>{@code offset}の直前のバイトが{@code \n}であれば{@code offset}自身が行頭です。
+     * 見つからない場合は{@code limit}を返します。
+     *
+     * @param channel ファイル
+     * @param offset  探索を始める位置
+     * @param limit   探索の上限
+     * @return 行頭の位置
+     * @throws IOException 入出力例外
+     */
+    public static long alignToLineStart(FileChannel channel, long offset, long limit) throws IOException {
+        if (offset <= 0 || offset >= limit) {
+            return Math.clamp(offset, 0, limit);
+        }
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(64 * 1024);
+        long position = offset - 1;
+        while (position < limit) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                return limit;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return Math.min(limit, position + i + 1);
+                }
+            }
+            position += n;
+        }
+        return limit;
+    }
+
+    /**
+     * 1範囲をマップして解析します。
+     */
+    private ParsedRange parseRange(FileChannel channel, long start, long end) throws IOException {
+        LongChunkBuffer out = bufferPool.poll();
+        if (out == null) {
+            // 1行あたり8バイト（7桁の数字と改行）として容量を見積もる。足りなければaddで拡張される
+            out = new LongChunkBuffer((int) Math.min(Integer.MAX_VALUE - 8, (end - start) / 8 + 16));
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int length = (int) (end - start);
+
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = map.get(i);
+            if (b == '\n' || b == '\r') {
+                parseLine(map, lineStart, i, out);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < length) {
+            parseLine(map, lineStart, length, out);
+        }
+        return new ParsedRange(out, start, end);
+    }
+
+    /**
+     * 1行を解析し、空行でなければ結果に追加します。
+     */
+    private static void parseLine(MappedByteBuffer map, int from, int to, LongChunkBuffer out) {
+        // String#trim()と同じく0x20以下のバイトを前後から取り除く
+        while (from < to && (map.get(from) & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (map.get(to - 1) & 0xFF) <= ' ') {
+            to--;
+        }
+        if (from == to) {
+            return;
+        }
+
+        int digits = to - from;
+        if (digits <= FAST_PATH_MAX_DIGITS) {
+            long value = 0;
+            int i = from;
+            for (; i < to; i++) {
+                int d = map.get(i) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                value = value * 10 + d;
+            }
+            if (i == to) {
+                out.add(value);
+                return;
+            }
+        }
+
+        // 符号、長い数字、ASCII以外の文字などはLong.parseLongに任せて挙動を揃える
+        byte[] bytes = new byte[to - from];
+        map.get(from, bytes);
+        out.add(Long.parseLong(new String(bytes, StandardCharsets.UTF_8).trim()));
+    }
+
+    private static ParsedRange await(Future<ParsedRange> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException("入力ファイルの解析に失敗しました: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("入力ファイルの解析中に中断されました");
+        }
+    }
+
+    /**
+     * 解析スレッドを停止します。
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private record ParsedRange(LongChunkBuffer buffer, long start, long end) {
+    }
+}
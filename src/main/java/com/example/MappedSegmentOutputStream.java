@@ -0,0 +1,104 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+
+/**
+ * ファイルの先頭から指定サイズの領域を1つの{@link MemorySegment}としてメモリマップして書き込む{@link OutputStream}
+ *
+ * <p>{@link java.nio.MappedByteBuffer}は{@code int}で位置を扱うため2GBを超えるファイルを一度にマップできず、
+ * 解放もGCに任されます。この実装はFFM APIでファイル全体を{@code long}の位置で扱い、
+ * {@link #close()}で{@link Arena}を閉じた時点でマッピングを解除します。
+ *
+ * <p>マッピングは{@link Arena#ofConfined()}で作成するため、生成したスレッドだけで書き込み、閉じてください。
+ */
+public final class MappedSegmentOutputStream extends OutputStream {
+    private final Arena         arena;
+    private final MemorySegment segment;
+    private final long          size;
+    private       long          position;
+
+    /**
+     * ファイルの先頭から{@code size}バイトをマップします。ファイルはあらかじめその長さにしておく必要があります。
+     *
+     * @param channel 読み書き可能なファイル
+     * @param size    書き込むバイト数
+     * @throws IOException マップできない場合
+     */
+    public MappedSegmentOutputStream(FileChannel channel, long size) throws IOException {
+        this.arena = Arena.ofConfined();
+        try {
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+        this.size = size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>この実装は、指定された1バイトをマップした領域に書き込みます。
+     *
+     * @param b 1バイトの値
+     */
+    @Override
+    public void write(int b) throws IOException {
+        if (position >= size) {
+            throw overflow(1);
+        }
+        segment.set(ValueLayout.JAVA_BYTE, position++, (byte) b);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>この実装は、指定された範囲をマップした領域にまとめてコピーします。
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > size - position) {
+            throw overflow(len);
+        }
+        MemorySegment.copy(b, off, segment, ValueLayout.JAVA_BYTE, position, len);
+        position += len;
+    }
+
+    /**
+     * 指定サイズをちょうど書き終えたことを確認します。
+     *
+     * @throws IOException 書き込んだバイト数がサイズと一致しない場合
+     */
+    public void checkComplete() throws IOException {
+        if (position != size) {
+            throw new IOException("出力サイズが一致しません: 予定 " + size + " バイト, 実際 " + position + " バイト");
+        }
+    }
+
+    /**
+     * マップした領域への変更をディスクに反映します。
+     */
+    public void force() {
+        segment.force();
+    }
+
+    /**
+     * マッピングを解除します。ディスクへの書き出しは待ちません。
+     */
+    @Override
+    public void close() {
+        if (arena.scope().isAlive()) {
+            arena.close();
+        }
+    }
+
+    private IOException overflow(int length) {
+        return new IOException("バッファオーバーフロー: 予定サイズ " + size + " バイトを超えて書き込もうとしました"
+                               + " (位置 " + position + ", 長さ " + length + ")");
+    }
+}
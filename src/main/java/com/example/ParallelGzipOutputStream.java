@@ -0,0 +1,101 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 入力を固定サイズのブロックに分けて並列に圧縮するgzip出力ストリーム
+ *
+ * <p>pigzと同じく各ブロックを独立に{@link Deflater}で圧縮しますが、ブロックごとにヘッダーとCRC32を持つ
+ * 完結したgzipメンバーとして書き出します。出力は複数メンバーの標準的なgzipファイルで、
+ * {@code gzip -d}や{@link java.util.zip.GZIPInputStream}でそのまま展開できます。
+ *
+ * <p>ブロックごとに辞書がリセットされるため、単一ストリームよりも圧縮率はわずかに下がります。
+ */
+public final class ParallelGzipOutputStream extends BlockParallelOutputStream<byte[]> {
+    // マジック、CM=deflate、フラグなし、MTIMEなし、XFLなし、OS=不明
+    private static final byte[] MEMBER_HEADER = {0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF};
+    private static final int    TRAILER_SIZE  = 8;
+
+    private final int  level;
+    private       long memberCount;
+
+    /**
+     * 並列gzip出力ストリームを生成します。
+     *
+     * @param out        出力先
+     * @param level      圧縮レベル（{@code 0}〜{@code 9}）
+     * @param blockSize  1ブロック（1メンバー）あたりの非圧縮サイズ（バイト）
+     * @param executor   ブロックを圧縮するワーカープール
+     * @param maxPending 同時に保持する未書き込みブロック数の上限
+     */
+    public ParallelGzipOutputStream(
+            OutputStream out,
+            int level,
+            int blockSize,
+            ExecutorService executor,
+            int maxPending) {
+        super(out, blockSize, executor, maxPending);
+        this.level = level;
+    }
+
+    /**
+     * 1ブロック分のデータを1つのgzipメンバーとして圧縮します。
+     */
+    @Override
+    protected byte[] encodeBlock(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        // zlibのdeflateBoundと同程度の見積もり。足りなければ拡張する
+        byte[] member = new byte[MEMBER_HEADER.length + length + (length >>> 12) + (length >>> 14) + 64 + TRAILER_SIZE];
+        System.arraycopy(MEMBER_HEADER, 0, member, 0, MEMBER_HEADER.length);
+        int position = MEMBER_HEADER.length;
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (! deflater.finished()) {
+                if (position == member.length - TRAILER_SIZE) {
+                    member = Arrays.copyOf(member, member.length + (member.length >>> 1));
+                }
+                position += deflater.deflate(member, position, member.length - TRAILER_SIZE - position);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        writeIntLE(member, position, (int) crc.getValue());
+        writeIntLE(member, position + 4, length);
+        return Arrays.copyOf(member, position + TRAILER_SIZE);
+    }
+
+    @Override
+    protected void writeBlock(byte[] member) throws IOException {
+        out.write(member);
+        memberCount++;
+    }
+
+    /**
+     * 各メンバーが完結しているため、終端には何も書き込みません。
+     * 入力が空の場合は、gzipファイルとして展開できるよう空のメンバーを1つ書き込みます。
+     */
+    @Override
+    protected void writeTrailer() throws IOException {
+        if (memberCount == 0) {
+            writeBlock(encodeBlock(new byte[0], 0));
+        }
+    }
+
+    private static void writeIntLE(byte[] dst, int off, int value) {
+        dst[off] = (byte) value;
+        dst[off + 1] = (byte) (value >>> 8);
+        dst[off + 2] = (byte) (value >>> 16);
+        dst[off + 3] = (byte) (value >>> 24);
+    }
+}
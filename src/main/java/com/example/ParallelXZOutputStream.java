@@ -0,0 +1,201 @@
+package com.example;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+/**
+ * 入力を固定サイズのブロックに分けて並列に圧縮するXZ出力ストリーム
+ *
+ * <p>各ブロックはワーカープール上で独立したXZブロックとして圧縮され、入力順に連結されます
+ * （並列化の仕組みは{@link BlockParallelOutputStream}）。
+ * 出力は全ブロックを1つのストリームにまとめ、正しいインデックスを持つ通常の{@code .xz}ファイルで、
+ * {@code xz -d}や{@link org.tukaani.xz.XZInputStream}でそのまま展開できます。
+ *
+ * <p>ブロックごとに辞書がリセットされるため、単一ストリームよりも圧縮率はわずかに下がります。
+ */
+public final class ParallelXZOutputStream extends BlockParallelOutputStream<ParallelXZOutputStream.EncodedBlock> {
+    private static final byte[] HEADER_MAGIC = {(byte) 0xFD, '7', 'z', 'X', 'Z', 0};
+    private static final byte[] FOOTER_MAGIC = {'Y', 'Z'};
+    private static final int    STREAM_HEADER_SIZE = 12;
+    private static final int    STREAM_FOOTER_SIZE = 12;
+    private static final int    CHECK_TYPE = XZ.CHECK_CRC64;
+
+    private final LZMA2Options          options;
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private       long                  recordCount;
+
+    /**
+     * 並列XZ出力ストリームを生成し、ストリームヘッダーを書き込みます。
+     *
+     * @param out        出力先
+     * @param options    各ブロックの圧縮設定。辞書サイズはブロックサイズを上限に切り詰められます
+     * @param blockSize  1ブロックあたりの非圧縮サイズ（バイト）
+     * @param executor   ブロックを圧縮するワーカープール
+     * @param maxPending 同時に保持する未書き込みブロック数の上限
+     * @throws IOException 出力に失敗した場合、または設定値が不正な場合
+     */
+    public ParallelXZOutputStream(
+            OutputStream out,
+            LZMA2Options options,
+            int blockSize,
+            ExecutorService executor,
+            int maxPending) throws IOException {
+        super(out, blockSize, executor, maxPending);
+        this.options = blockOptions(options, blockSize);
+        writeStreamHeader();
+    }
+
+    /**
+     * ブロックより大きな辞書は無駄にメモリを使うだけなので、ブロックサイズに合わせて切り詰めます。
+     */
+    private static LZMA2Options blockOptions(LZMA2Options options, int blockSize)
+            throws UnsupportedOptionsException {
+        LZMA2Options copy = (LZMA2Options) options.clone();
+        int dictSize = Math.max(LZMA2Options.DICT_SIZE_MIN, Math.min(options.getDictSize(), blockSize));
+        copy.setDictSize(dictSize);
+        return copy;
+    }
+
+    /**
+     * 圧縮済みブロックを出力に書き込み、インデックスに記録します。
+     */
+    @Override
+    protected void writeBlock(EncodedBlock block) throws IOException {
+        out.write(block.data(), block.offset(), block.length());
+        writeVli(index, block.unpaddedSize());
+        writeVli(index, block.uncompressedSize());
+        recordCount++;
+    }
+
+    /**
+     * 1ブロック分のデータを単一ブロックのXZストリームとして圧縮し、ブロック部分を取り出します。
+     *
+     * <p>ブロックの位置とインデックスのレコードは、ストリームフッターの
+     * Backward Sizeからインデックスをたどって求めます。
+     */
+    @Override
+    protected EncodedBlock encodeBlock(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 2 + 1024);
+        try (XZOutputStream xz = new XZOutputStream(buffer, options, CHECK_TYPE)) {
+            xz.write(data, 0, length);
+        }
+        byte[] stream = buffer.toByteArray();
+
+        int footer = stream.length - STREAM_FOOTER_SIZE;
+        long backwardSize = (readIntLE(stream, footer + 4) & 0xFFFFFFFFL);
+        int indexSize = (int) ((backwardSize + 1) * 4);
+        int indexStart = footer - indexSize;
+
+        // インデックス: 0x00, レコード数, (Unpadded Size, Uncompressed Size)...
+        int[] cursor = {indexStart + 1};
+        long records = readVli(stream, cursor);
+        if (records != 1) {
+            throw new IOException("想定外のXZインデックスレコード数: " + records);
+        }
+        long unpaddedSize = readVli(stream, cursor);
+        long uncompressedSize = readVli(stream, cursor);
+
+        return new EncodedBlock(
+                stream,
+                STREAM_HEADER_SIZE,
+                indexStart - STREAM_HEADER_SIZE,
+                unpaddedSize,
+                uncompressedSize);
+    }
+
+    private void writeStreamHeader() throws IOException {
+        byte[] flags = {0, (byte) CHECK_TYPE};
+        out.write(HEADER_MAGIC);
+        out.write(flags);
+        writeIntLE(out, crc32(flags, 0, flags.length));
+    }
+
+    /**
+     * インデックスとストリームフッターを書き込みます。
+     */
+    @Override
+    protected void writeTrailer() throws IOException {
+        ByteArrayOutputStream fullIndex = new ByteArrayOutputStream(index.size() + 16);
+        fullIndex.write(0x00);
+        writeVli(fullIndex, recordCount);
+        index.writeTo(fullIndex);
+        while (fullIndex.size() % 4 != 0) {
+            fullIndex.write(0x00);
+        }
+        byte[] indexBytes = fullIndex.toByteArray();
+        out.write(indexBytes);
+        writeIntLE(out, crc32(indexBytes, 0, indexBytes.length));
+
+        // Backward Sizeはインデックス全体（CRC32を含む）のサイズを4で割って1を引いた値
+        long backwardSize = (indexBytes.length + 4) / 4 - 1;
+        byte[] footerFields = new byte[6];
+        for (int i = 0; i < 4; i++) {
+            footerFields[i] = (byte) (backwardSize >>> (8 * i));
+        }
+        footerFields[4] = 0;
+        footerFields[5] = (byte) CHECK_TYPE;
+        writeIntLE(out, crc32(footerFields, 0, footerFields.length));
+        out.write(footerFields);
+        out.write(FOOTER_MAGIC);
+    }
+
+    private static int crc32(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int readIntLE(byte[] data, int off) {
+        return (data[off] & 0xFF)
+               | (data[off + 1] & 0xFF) << 8
+               | (data[off + 2] & 0xFF) << 16
+               | (data[off + 3] & 0xFF) << 24;
+    }
+
+    private static void writeVli(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVli(byte[] data, int[] cursor) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = data[cursor[0]++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("XZインデックスの可変長整数が不正です");
+    }
+
+    /**
+     * 圧縮済みブロック
+     *
+     * @param data             ブロックを含むバイト列
+     * @param offset           ブロックの開始位置
+     * @param length           ブロックの長さ（パディングとチェックを含む）
+     * @param unpaddedSize     インデックスに記録するUnpadded Size
+     * @param uncompressedSize インデックスに記録するUncompressed Size
+     */
+    record EncodedBlock(byte[] data, int offset, int length, long unpaddedSize, long uncompressedSize) {
+    }
+}
@@ -0,0 +1,424 @@
+package com.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 出力したパート（{@code output_partN.json}、{@code .json.xz}、{@code .bin.gz}など）からレコードを順に読み出すリーダー
+ *
+ * <p>JSONはJacksonのストリーミング{@link JsonParser}で1レコードずつ読み、{@code items}の配列全体をメモリに載せません。
+ * バイナリ形式は{@link BinaryPartReader}で1ブロックずつ読みます。圧縮済みのファイルは展開しながら読み出します。
+ *
+ * <p>{@link #next()}で1件進め、{@link #id()}と{@link #secret()}で現在のレコードを取り出します。
+ * {@link #secret()}を呼ばなければ{@link String}は生成しません。
+ * {@link #iterator()}と{@link #stream(Path)}は1件ごとに{@link Item}を生成する簡易なAPIです。
+ * 複数のパートは{@link #streamParts(Path, boolean)}でパートごとに並列に読み出せます。
+ *
+ * <p>インスタンスはスレッドセーフではありません。
+ */
+public final class PartReader implements AutoCloseable {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final Pattern     PART_FILE   = Pattern.compile("output_part(\\d+)\\.(json|bin)(\\.xz|\\.gz)?");
+
+    /**
+     * 1件のレコード
+     *
+     * @param id     ID
+     * @param secret {@code secret}
+     */
+    public record Item(long id, String secret) {
+    }
+
+    private final Path             file;
+    private final JsonParser       parser;
+    private final BinaryPartReader binary;
+    private final char[]           secretChars = new char[SecretGenerator.SECRET_LENGTH];
+    private       BinaryPartReader.Block block;
+    private       int              blockPosition;
+    private       long             id;
+    private       int              secretLength;
+    private       long             recordsRead;
+    private       boolean          finished;
+
+    private PartReader(Path file, JsonParser parser, BinaryPartReader binary) {
+        this.file = file;
+        this.parser = parser;
+        this.binary = binary;
+    }
+
+    /**
+     * パートのファイルを開きます。ファイル名から形式と圧縮形式を判断します。
+     *
+     * @param file パートのファイル
+     * @return リーダー
+     * @throws IOException 入出力例外、またはJSONの先頭が{@code {"items": [}でない場合
+     */
+    public static PartReader open(Path file) throws IOException {
+        if (file.getFileName().toString().contains(RecordEncoder.Format.BINARY.extension())) {
+            return new PartReader(file, null, BinaryPartReader.open(file));
+        }
+        InputStream in = CompressionCodec.openDecompressed(file);
+        JsonParser parser = null;
+        try {
+            parser = jsonFactory.createParser(in);
+            PartReader reader = new PartReader(file, parser, null);
+            reader.readJsonHeader();
+            return reader;
+        } catch (IOException e) {
+            if (parser != null) {
+                parser.close();
+            }
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 出力ディレクトリにあるパートのファイルを、パート番号の順に返します。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @return パートのファイル
+     * @throws IOException 入出力例外、または同じパート番号のファイルが複数ある場合
+     */
+    public static List<Path> partFiles(Path outputDir) throws IOException {
+        return partFiles(outputDir, null);
+    }
+
+    /**
+     * 出力ディレクトリにある、指定の拡張子のパートのファイルをパート番号の順に返します。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @param suffix    {@code .json.xz}などの拡張子。{@code null}の場合はすべての形式
+     * @return パートのファイル
+     * @throws IOException 入出力例外、または同じパート番号のファイルが複数ある場合
+     */
+    public static List<Path> partFiles(Path outputDir, String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(outputDir, "output_part*")) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (PART_FILE.matcher(name).matches() && (suffix == null || name.endsWith(suffix))) {
+                    files.add(entry);
+                }
+            }
+        }
+        files.sort(Comparator.comparingInt(PartReader::partIndex));
+        for (int i = 1; i < files.size(); i++) {
+            if (partIndex(files.get(i)) == partIndex(files.get(i - 1))) {
+                throw new IOException("パート" + partIndex(files.get(i)) + "に複数のファイルがあります: "
+                                      + files.get(i - 1).getFileName() + ", " + files.get(i).getFileName());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * パートのファイル名からパート番号を返します。
+     *
+     * @param file パートのファイル
+     * @return パート番号。パートのファイル名でない場合は{@code -1}
+     */
+    public static int partIndex(Path file) {
+        Matcher matcher = PART_FILE.matcher(file.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * 1つのパートのレコードを順に返す{@link Stream}を生成します。
+     * ストリームを閉じるとファイルも閉じられます。
+     *
+     * <p>読み出し中の入出力例外とファイルの不正は{@link UncheckedIOException}として送出されます。
+     *
+     * @param file パートのファイル
+     * @return レコードのストリーム
+     * @throws IOException ファイルを開けない場合
+     */
+    public static Stream<Item> stream(Path file) throws IOException {
+        PartReader reader = open(file);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(
+                        reader.iterator(),
+                        Spliterator.ORDERED | Spliterator.NONNULL),
+                false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * 出力ディレクトリにある全パートのレコードを返す{@link Stream}を生成します。
+     *
+     * <p>{@code parallel}が{@code true}の場合はパート単位で並列に読み出します。
+     * 1つのパートは1スレッドが先頭から順に読むため、同時に展開するパートの数は並列度までです。
+     * この場合、パートをまたいだレコードの順序は保証されません（{@code forEachOrdered}を除く）。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @param parallel  パート単位で並列に読み出す場合は{@code true}
+     * @return レコードのストリーム
+     * @throws IOException ディレクトリを読めない場合
+     * @see #partFiles(Path)
+     */
+    public static Stream<Item> streamParts(Path outputDir, boolean parallel) throws IOException {
+        List<Path> files = partFiles(outputDir);
+        Stream<Path> parts = parallel ? files.parallelStream() : files.stream();
+        return parts.flatMap(file -> {
+            try {
+                return stream(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 次のレコードへ進みます。
+     *
+     * @return レコードがあれば{@code true}、パートの終わりに達した場合は{@code false}
+     * @throws IOException 入出力例外、またはファイルが不正な場合
+     */
+    public boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+        boolean found;
+        try {
+            found = parser != null ? nextJson() : nextBinary();
+        } catch (JsonProcessingException e) {
+            throw invalid(e.getOriginalMessage(), e);
+        } catch (IOException e) {
+            if (parser != null) {
+                throw e;
+            }
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+        if (found) {
+            recordsRead++;
+        } else {
+            finished = true;
+        }
+        return found;
+    }
+
+    /**
+     * 現在のレコードのIDを返します。
+     *
+     * @return ID
+     */
+    public long id() {
+        return id;
+    }
+
+    /**
+     * 現在のレコードの{@code secret}を返します。
+     *
+     * @return {@code secret}
+     */
+    public String secret() {
+        if (parser != null) {
+            return new String(secretChars, 0, secretLength);
+        }
+        return block.secret(blockPosition - 1);
+    }
+
+    /**
+     * 現在のレコードの{@code secret}がUUIDの文字列表現（小文字16進、8-4-4-4-12）であれば{@code true}を返します。
+     * {@link String}は生成しません。バイナリ形式ではUUIDの16バイトを格納しているため常に{@code true}です。
+     *
+     * @return 形式が正しい場合は{@code true}
+     */
+    public boolean secretWellFormed() {
+        if (parser == null) {
+            return true;
+        }
+        if (secretLength != SecretGenerator.SECRET_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < SecretGenerator.SECRET_LENGTH; i++) {
+            char c = secretChars[i];
+            boolean valid = i == 8 || i == 13 || i == 18 || i == 23
+                            ? c == '-'
+                            : (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+            if (! valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * これまでに読み出したレコード数を返します。
+     *
+     * @return レコード数
+     */
+    public long recordsRead() {
+        return recordsRead;
+    }
+
+    /**
+     * 残りのレコードを{@link Item}として返すイテレーターを生成します。
+     * 読み出し中の入出力例外は{@link UncheckedIOException}として送出されます。
+     *
+     * @return イテレーター
+     */
+    public Iterator<Item> iterator() {
+        return new Iterator<>() {
+            private Item nextItem;
+
+            @Override
+            public boolean hasNext() {
+                if (nextItem == null) {
+                    try {
+                        if (PartReader.this.next()) {
+                            nextItem = new Item(id, secret());
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return nextItem != null;
+            }
+
+            @Override
+            public Item next() {
+                if (! hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Item item = nextItem;
+                nextItem = null;
+                return item;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (parser != null) {
+            parser.close();
+        } else {
+            binary.close();
+        }
+    }
+
+    /**
+     * {@code items}の配列の先頭まで読み進めます。{@code items}より前にある他のフィールドは読み飛ばします。
+     */
+    private void readJsonHeader() throws IOException {
+        expect(parser.nextToken(), JsonToken.START_OBJECT, "パートの先頭");
+        for (JsonToken token; (token = parser.nextToken()) == JsonToken.FIELD_NAME; ) {
+            String name = parser.currentName();
+            token = parser.nextToken();
+            if ("items".equals(name)) {
+                expect(token, JsonToken.START_ARRAY, "items");
+                return;
+            }
+            parser.skipChildren();
+        }
+        throw invalid("itemsがありません");
+    }
+
+    private boolean nextJson() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            readJsonTrailer();
+            return false;
+        }
+        expect(token, JsonToken.START_OBJECT, "レコード");
+        boolean hasId = false;
+        boolean hasSecret = false;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            token = parser.nextToken();
+            switch (name) {
+                case "id" -> {
+                    expect(token, JsonToken.VALUE_NUMBER_INT, "id");
+                    id = parser.getLongValue();
+                    hasId = true;
+                }
+                case "secret" -> {
+                    expect(token, JsonToken.VALUE_STRING, "secret");
+                    // 長さが異なる場合は形式の検証で不正と判断できればよいので、先頭だけを写す
+                    secretLength = parser.getTextLength();
+                    System.arraycopy(
+                            parser.getTextCharacters(),
+                            parser.getTextOffset(),
+                            secretChars,
+                            0,
+                            Math.min(secretLength, secretChars.length));
+                    hasSecret = true;
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        expect(token, JsonToken.END_OBJECT, "レコードの終わり");
+        if (! hasId || ! hasSecret) {
+            throw invalid("レコード" + (recordsRead + 1) + "にidまたはsecretがありません");
+        }
+        return true;
+    }
+
+    /**
+     * {@code items}の配列の後、ファイルの終わりまでを読みます。
+     */
+    private void readJsonTrailer() throws IOException {
+        for (JsonToken token; (token = parser.nextToken()) != JsonToken.END_OBJECT; ) {
+            expect(token, JsonToken.FIELD_NAME, "パートの終わり");
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        if (parser.nextToken() != null) {
+            throw invalid("パートの後に余分なデータがあります");
+        }
+    }
+
+    private boolean nextBinary() throws IOException {
+        if (block == null || blockPosition == block.count()) {
+            block = binary.nextBlock();
+            blockPosition = 0;
+            if (block == null) {
+                return false;
+            }
+        }
+        id = block.ids()[blockPosition++];
+        return true;
+    }
+
+    private void expect(JsonToken actual, JsonToken expected, String what) throws IOException {
+        if (actual != expected) {
+            throw invalid(what + "が不正です: " + actual);
+        }
+    }
+
+    private IOException invalid(String message) {
+        return invalid(message, null);
+    }
+
+    private IOException invalid(String message, Throwable cause) {
+        return new IOException(
+                file + ": " + message + " (" + parser.currentLocation().offsetDescription() + ")",
+                cause);
+    }
+}
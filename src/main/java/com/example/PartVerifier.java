@@ -0,0 +1,455 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongToIntFunction;
+
+/**
+ * 出力したパートを入力ファイルと突き合わせて検証する
+ *
+ * <p>各パートを{@link PartReader}で先頭から読み、件数、IDの昇順、{@code secret}の形式を確認します。
+ * パートは並列に読み出し、レコードごとのオブジェクトは生成しないため、ほぼ展開の速度で検証できます。
+ *
+ * <p>入力との突き合わせでは、IDごとのハッシュの和（順序に依存しない多重集合のチェックサム）と件数を、
+ * パートごとに入力側の対応する行と比較します。
+ * <ul>
+ *     <li>{@code sort.mode=chunk}では、パートNは入力の{@code (N - 1) × chunkSize}行目からの{@code chunkSize}行です。
+ *         {@code chunk.rows=auto}ではパートごとに行数が異なるため、{@link RunJournal}に記録された行オフセットで区切ります</li>
+ *     <li>{@code sort.mode=external}では、パートのIDの範囲に入る入力の行がそのパートに対応します。
+ *         パートの範囲は重なってはならず、どの範囲にも入らない入力の行は欠落として扱います</li>
+ *     <li>{@code sort.mode=bitmap}では、入力の2回目以降に現れたIDを{@link IdBitmap}で除いたうえで、
+ *         {@code external}と同じように突き合わせます。パート内の重複もエラーです</li>
+ * </ul>
+ * 一致すれば、パートの欠番（連続するIDの間で抜けているID）は入力にもともと存在しないIDです。
+ */
+public final class PartVerifier {
+    private PartVerifier() {
+    }
+
+    /**
+     * 1パートの検証結果
+     *
+     * @param partIndex  パート番号
+     * @param file       パートのファイル
+     * @param bytes      ファイルサイズ（バイト）
+     * @param records    レコード数
+     * @param minId      最小のID
+     * @param maxId      最大のID
+     * @param disorders  直前のIDより小さいIDの数
+     * @param duplicates 直前のIDと同じIDの数
+     * @param missingIds 連続するIDの間で抜けているIDの数。{@code external}では直前のパートとの間も含みます
+     * @param badSecrets 形式が不正な{@code secret}の数
+     * @param checksum   IDのハッシュの和
+     * @param failure    途中で読み出せなくなった場合はその理由。最後まで読めた場合は{@code null}
+     */
+    public record PartResult(
+            int partIndex,
+            Path file,
+            long bytes,
+            long records,
+            long minId,
+            long maxId,
+            long disorders,
+            long duplicates,
+            long missingIds,
+            long badSecrets,
+            long checksum,
+            String failure) {
+    }
+
+    /**
+     * 検証結果
+     *
+     * @param parts        パートごとの結果（パート番号順）
+     * @param inputRows    入力の行数
+     * @param errors       見つかった不整合
+     * @param elapsedNanos 検証にかかった時間（ナノ秒）
+     */
+    public record Report(List<PartResult> parts, long inputRows, List<String> errors, long elapsedNanos) {
+        /**
+         * 不整合がなければ{@code true}を返します。
+         *
+         * @return 検証に成功した場合は{@code true}
+         */
+        public boolean ok() {
+            return errors.isEmpty();
+        }
+
+        /**
+         * 全パートのレコード数の合計を返します。
+         *
+         * @return レコード数
+         */
+        public long records() {
+            return parts.stream().mapToLong(PartResult::records).sum();
+        }
+
+        /**
+         * パートごとの結果と不整合を標準出力に表示します。
+         */
+        public void print() {
+            for (PartResult part : parts) {
+                System.out.printf("パート%d: %s %,d件 ID %d〜%d 欠番 %,d 重複 %,d%n",
+                        part.partIndex(), part.file().getFileName(), part.records(),
+                        part.minId(), part.maxId(), part.missingIds(), part.duplicates());
+            }
+            for (String error : errors) {
+                System.out.println("エラー: " + error);
+            }
+            double seconds = elapsedNanos / 1e9;
+            long bytes = parts.stream().mapToLong(PartResult::bytes).sum();
+            System.out.printf("%s: %dパート, %,d件 / 入力 %,d行 (%.1f秒, %.1fMB/s)%n",
+                    ok() ? "検証に成功しました" : "検証に失敗しました（" + errors.size() + "件のエラー）",
+                    parts.size(), records(), inputRows, seconds, bytes / 1024.0 / 1024.0 / Math.max(seconds, 1e-9));
+        }
+    }
+
+    /**
+     * パートを検証します。
+     *
+     * @param files     パートのファイル（パート番号順）
+     * @param input     入力ファイル
+     * @param chunkSize 1パートあたりの行数（{@code sort.mode=chunk}で使用します）
+     * @param sortMode  パートを出力したときのソート方式
+     * @param threads   パートを並列に読み出すスレッド数
+     * @return 検証結果
+     * @throws IOException 入出力例外、またはパートのファイルが壊れている場合
+     */
+    public static Report verify(
+            List<Path> files,
+            Path input,
+            int chunkSize,
+            RunConfig.SortMode sortMode,
+            int threads) throws IOException {
+        return verify(files, input, Long.MAX_VALUE, row -> (int) (row / chunkSize), sortMode, threads);
+    }
+
+    /**
+     * パートごとに行数が異なる出力や、入力の先頭の一部だけを処理した出力を検証します。
+     *
+     * @param files       パートのファイル（パート番号順）
+     * @param input       入力ファイル
+     * @param inputBytes  パートに出力した入力の先頭からのバイト数。これより後の行は突き合わせません
+     * @param partOffsets パート番号 - 1の位置に、パートの最初の行の入力内での行オフセットを入れた昇順の配列
+     *                    （{@code sort.mode=chunk}で使用します。{@link AppendState#partOffsets()}を参照）
+     * @param sortMode    パートを出力したときのソート方式
+     * @param threads     パートを並列に読み出すスレッド数
+     * @return 検証結果
+     * @throws IOException 入出力例外、またはパートのファイルが壊れている場合
+     */
+    public static Report verify(
+            List<Path> files,
+            Path input,
+            long inputBytes,
+            long[] partOffsets,
+            RunConfig.SortMode sortMode,
+            int threads) throws IOException {
+        return verify(files, input, inputBytes, row -> {
+            int i = Arrays.binarySearch(partOffsets, row);
+            // 同じオフセットが並ぶ（空のパートがある）場合は最後のパートに入れる
+            while (i >= 0 && i + 1 < partOffsets.length && partOffsets[i + 1] == row) {
+                i++;
+            }
+            return i >= 0 ? i : -i - 2;
+        }, sortMode, threads);
+    }
+
+    /**
+     * 入力の行オフセットから{@code sort.mode=chunk}のパートの位置（パート番号 - 1）を求める関数で検証します。
+     */
+    private static Report verify(
+            List<Path> files,
+            Path input,
+            long inputBytes,
+            LongToIntFunction chunkOf,
+            RunConfig.SortMode sortMode,
+            int threads) throws IOException {
+        long startTime = System.nanoTime();
+        List<String> errors = new ArrayList<>();
+        List<PartResult> parts = scanParts(files, threads);
+        checkParts(parts, sortMode, errors);
+
+        // 入力側のパートごとの件数とチェックサム。chunkではパート番号 - 1、external・bitmapではpartsの位置で引く
+        Map<Integer, long[]> expected = new HashMap<>();
+        long[] minIds = parts.stream().mapToLong(PartResult::minId).toArray();
+        long[] rows = new long[1];
+        long[] unassigned = new long[2];
+        // bitmapでは出力されない2回目以降のIDを除く
+        try (IdBitmap seen = sortMode == RunConfig.SortMode.BITMAP
+                             ? new IdBitmap(0, Runtime.getRuntime().maxMemory())
+                             : null;
+             MappedLineParser parser = new MappedLineParser(input, threads, 8 * 1024 * 1024)) {
+            parser.parse(0, inputBytes, (values, count, startOffset, endOffset) -> {
+                for (int i = 0; i < count; i++) {
+                    long id = values[i];
+                    if (seen != null && ! seen.add(id)) {
+                        rows[0]++;
+                        continue;
+                    }
+                    int bucket = sortMode == RunConfig.SortMode.CHUNK
+                                 ? chunkOf.applyAsInt(rows[0])
+                                 : externalBucket(parts, minIds, id);
+                    rows[0]++;
+                    if (bucket < 0) {
+                        if (unassigned[0]++ == 0) {
+                            unassigned[1] = id;
+                        }
+                        continue;
+                    }
+                    long[] sums = expected.computeIfAbsent(bucket, b -> new long[2]);
+                    sums[0]++;
+                    sums[1] += hash(id);
+                }
+            });
+        }
+        if (unassigned[0] > 0) {
+            errors.add(String.format("どのパートの範囲にも入らないIDが入力に%,d件あります（最初: %d）",
+                    unassigned[0], unassigned[1]));
+        }
+
+        for (int i = 0; i < parts.size(); i++) {
+            PartResult part = parts.get(i);
+            int bucket = sortMode == RunConfig.SortMode.CHUNK ? part.partIndex() - 1 : i;
+            long[] sums = expected.remove(bucket);
+            if (part.failure() != null) {
+                continue;
+            }
+            if (sums == null) {
+                errors.add("パート" + part.partIndex() + "に対応する入力の行がありません");
+            } else if (sums[0] != part.records()) {
+                errors.add(String.format("パート%dの件数が入力と一致しません: %,d件 / 入力 %,d件",
+                        part.partIndex(), part.records(), sums[0]));
+            } else if (sums[1] != part.checksum()) {
+                errors.add("パート" + part.partIndex() + "のIDが入力と一致しません");
+            }
+        }
+        expected.keySet().stream().sorted().forEach(bucket -> errors.add(String.format(
+                "入力の%,d行に対応するパート%dがありません", expected.get(bucket)[0], bucket + 1)));
+
+        return new Report(parts, rows[0], errors, System.nanoTime() - startTime);
+    }
+
+    /**
+     * パートを並列に読み出して集計します。
+     */
+    private static List<PartResult> scanParts(List<Path> files, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<PartResult>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(executor.submit(() -> scanPart(file)));
+            }
+            List<PartResult> parts = new ArrayList<>();
+            for (Future<PartResult> future : futures) {
+                parts.add(await(future));
+            }
+            return parts;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 1パートを先頭から読み、件数とIDの並び、{@code secret}の形式を集計します。
+     */
+    static PartResult scanPart(Path file) throws IOException {
+        long records = 0;
+        long minId = Long.MAX_VALUE;
+        long maxId = Long.MIN_VALUE;
+        long previous = 0;
+        long disorders = 0;
+        long duplicates = 0;
+        long missingIds = 0;
+        long badSecrets = 0;
+        long checksum = 0;
+        String failure = null;
+        try (PartReader reader = PartReader.open(file)) {
+            while (reader.next()) {
+                long id = reader.id();
+                if (records > 0) {
+                    if (id < previous) {
+                        disorders++;
+                    } else if (id == previous) {
+                        duplicates++;
+                    } else {
+                        missingIds += id - previous - 1;
+                    }
+                }
+                if (! reader.secretWellFormed()) {
+                    badSecrets++;
+                }
+                minId = Math.min(minId, id);
+                maxId = Math.max(maxId, id);
+                checksum += hash(id);
+                previous = id;
+                records++;
+            }
+        } catch (IOException e) {
+            // 壊れたパートも他のパートと合わせて報告する
+            failure = e.getMessage();
+        }
+        return new PartResult(
+                PartReader.partIndex(file),
+                file,
+                Files.size(file),
+                records,
+                minId,
+                maxId,
+                disorders,
+                duplicates,
+                missingIds,
+                badSecrets,
+                checksum,
+                failure);
+    }
+
+    /**
+     * 入力を見ずに分かるパートの不整合を調べます。{@code external}と{@code bitmap}ではパート間の欠番を加えた結果に置き換えます。
+     */
+    private static void checkParts(List<PartResult> parts, RunConfig.SortMode sortMode, List<String> errors) {
+        for (int i = 0; i < parts.size(); i++) {
+            PartResult part = parts.get(i);
+            if (part.partIndex() != i + 1) {
+                errors.add("パート" + (i + 1) + "のファイルがありません");
+                break;
+            }
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            PartResult part = parts.get(i);
+            if (part.failure() != null) {
+                errors.add(String.format("パート%dを%,d件目の後で読み出せません: %s",
+                        part.partIndex(), part.records(), part.failure()));
+            }
+            if (part.records() == 0) {
+                errors.add("パート" + part.partIndex() + "にレコードがありません");
+                continue;
+            }
+            if (part.disorders() > 0) {
+                errors.add(String.format("パート%dのIDが昇順ではありません（%,d箇所）", part.partIndex(), part.disorders()));
+            }
+            if (part.badSecrets() > 0) {
+                errors.add(String.format("パート%dのsecretの形式が不正です（%,d件）", part.partIndex(), part.badSecrets()));
+            }
+            if (sortMode == RunConfig.SortMode.BITMAP && part.duplicates() > 0) {
+                errors.add(String.format("パート%dに重複したIDがあります（%,d件）", part.partIndex(), part.duplicates()));
+            }
+            if (sortMode != RunConfig.SortMode.CHUNK && i > 0 && parts.get(i - 1).records() > 0) {
+                PartResult previous = parts.get(i - 1);
+                if (part.minId() <= previous.maxId()) {
+                    errors.add("パート" + previous.partIndex() + "とパート" + part.partIndex() + "のIDの範囲が重なっています");
+                } else {
+                    parts.set(i, new PartResult(
+                            part.partIndex(), part.file(), part.bytes(), part.records(), part.minId(), part.maxId(),
+                            part.disorders(), part.duplicates(), part.missingIds() + part.minId() - previous.maxId() - 1,
+                            part.badSecrets(), part.checksum(), part.failure()));
+                }
+            }
+        }
+    }
+
+    /**
+     * IDが範囲に入るパートの位置を返します。どの範囲にも入らない場合は{@code -1}です。
+     */
+    private static int externalBucket(List<PartResult> parts, long[] minIds, long id) {
+        int position = Arrays.binarySearch(minIds, id);
+        if (position < 0) {
+            position = -position - 2;
+        }
+        return position >= 0 && id <= parts.get(position).maxId() ? position : -1;
+    }
+
+    /**
+     * IDを64ビットに拡散します（SplitMix64の最終化関数）。和を取っても偏らないようにするためです。
+     */
+    static long hash(long id) {
+        long z = id * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static PartResult await(Future<PartResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("パートの読み出しに失敗しました: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("パートの検証中に中断されました", e);
+        }
+    }
+
+    /**
+     * 出力ディレクトリのパートを検証するコマンドです。
+     *
+     * <pre>
+     * java -cp target/java-test-1.0-SNAPSHOT.jar com.example.PartVerifier [出力ディレクトリ] [入力ファイル]
+     * </pre>
+     *
+     * <p>パートの形式と{@code sort.mode}は出力ディレクトリの{@link RunJournal}から読み取ります。
+     * ジャーナルがない場合はすべての形式のパートを対象にし、{@code -Dsort.mode}の設定を使います。
+     * {@link AppendState}の状態ファイルがあれば、記録された処理済みの範囲とパートごとの行オフセットで突き合わせます。
+     * 不整合があれば終了コード1で終了します。
+     *
+     * @param args 出力ディレクトリ（既定: {@code output}）、入力ファイル（既定: {@code file.txt}）
+     * @throws IOException 入出力例外
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 2) {
+            System.err.println("使い方: PartVerifier [出力ディレクトリ] [入力ファイル]");
+            System.exit(2);
+        }
+        Path outputDir = Path.of(args.length > 0 ? args[0] : "output");
+        Path input = Path.of(args.length > 1 ? args[1] : "file.txt");
+        RunConfig config = RunConfig.fromSystemProperties();
+
+        String suffix = null;
+        int chunkSize = config.chunkAuto() ? App.CHUNK_SIZE : config.chunkRows();
+        long inputBytes = Long.MAX_VALUE;
+        long[] partOffsets = null;
+        RunConfig.SortMode sortMode = config.sortMode();
+        Map<String, String> fingerprint = RunJournal.readFingerprint(outputDir);
+        if (fingerprint != null) {
+            suffix = RecordEncoder.Format.valueOf(fingerprint.get("outputFormat")).extension()
+                     + CompressionCodec.Type.valueOf(fingerprint.get("compressCodec")).extension();
+            if ("auto".equals(fingerprint.get("chunkSize"))) {
+                partOffsets = RunJournal.readPartOffsets(outputDir);
+            } else {
+                chunkSize = Integer.parseInt(fingerprint.get("chunkSize"));
+            }
+            sortMode = RunConfig.SortMode.valueOf(fingerprint.get("sortMode"));
+        }
+        AppendState state = AppendState.read(outputDir);
+        if (state != null) {
+            inputBytes = state.inputBytes();
+            partOffsets = state.partOffsets();
+        }
+        System.out.printf("%sのパート（%s）を%sと突き合わせます (sort.mode=%s)%n",
+                outputDir, suffix != null ? "*" + suffix : "すべての形式", input,
+                sortMode.name().toLowerCase(Locale.ROOT));
+
+        List<Path> files = PartReader.partFiles(outputDir, suffix);
+        Report report = partOffsets != null
+                        ? verify(files, input, inputBytes, partOffsets, sortMode, config.inputThreads())
+                        : verify(files, input, chunkSize, sortMode, config.inputThreads());
+        report.print();
+        if (! report.ok()) {
+            System.exit(1);
+        }
+    }
+}
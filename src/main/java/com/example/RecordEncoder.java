@@ -0,0 +1,91 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ソート済みのIDと{@code secret}を1パート分のファイル形式で書き出すエンコーダー
+ *
+ * <p>出力サイズは{@link #encodedSize(long[], int)}で事前に正確に求められるため、
+ * 呼び出し元はファイルをそのサイズでメモリマップして書き込めます。
+ */
+public interface RecordEncoder {
+    /**
+     * パートのファイル形式
+     */
+    enum Format {
+        /** {@link JsonRecordEncoder}による{@code {"items": [...]}}形式のJSON */
+        JSON(".json"),
+        /** {@link BinaryRecordEncoder}によるブロック単位のバイナリ形式 */
+        BINARY(".bin");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * パートのファイルに付ける拡張子を返します。
+         *
+         * @return {@code .json}などの拡張子
+         */
+        public String extension() {
+            return extension;
+        }
+    }
+
+    /**
+     * ファイル形式を返します。
+     *
+     * @return ファイル形式
+     */
+    Format format();
+
+    /**
+     * 出力される正確なバイト数を返します。
+     *
+     * @param ids   ID
+     * @param count 有効なIDの数
+     * @return バイト数
+     */
+    long encodedSize(long[] ids, int count);
+
+    /**
+     * IDの配列を出力します。
+     *
+     * @param ids     ソート済みのID
+     * @param count   有効なIDの数
+     * @param secrets レコードごとの{@code secret}の生成元
+     * @param out     出力先。閉じません
+     * @throws IOException 入出力例外
+     */
+    void encode(long[] ids, int count, SecretGenerator secrets, OutputStream out) throws IOException;
+
+    /**
+     * 出力の途中から読み始められる位置（シークポイント）を、出力の先頭から順に通知します。
+     * {@link SparseIdIndex}がIDから出力内の位置を引くために使います。
+     *
+     * @param ids      ソート済みのID
+     * @param count    有効なIDの数
+     * @param consumer シークポイントの通知先
+     * @throws IOException 通知先が失敗した場合
+     */
+    void seekPoints(long[] ids, int count, SeekPointConsumer consumer) throws IOException;
+
+    /**
+     * シークポイントの通知先
+     */
+    @FunctionalInterface
+    interface SeekPointConsumer {
+        /**
+         * シークポイントを受け取ります。
+         *
+         * @param offset     出力の先頭からのバイト位置
+         * @param fromRecord その位置から始まる最初のレコードの番号
+         * @param records    次のシークポイントまでのレコード数
+         * @throws IOException 入出力例外
+         */
+        void accept(long offset, int fromRecord, int records) throws IOException;
+    }
+}
@@ -0,0 +1,839 @@
+package com.example;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * 実行時設定
+ *
+ * <p>システムプロパティ（{@code -Dキー=値}）から読み込みます。指定がない項目は既定値を使用します。
+ *
+ * <ul>
+ *     <li>{@code chunk.rows} - 1チャンク（{@code sort.mode=chunk}の1パート）の行数。既定は{@code 1000000}。
+ *         {@code auto}の場合は{@link ChunkSizer}がヒープの大きさとGCの状況から決める</li>
+ *     <li>{@code chunk.memory} - {@code chunk.rows=auto}でチャンクに使うメモリ量。既定は最大ヒープの1/4</li>
+ *     <li>{@code sort.mode} - {@code chunk}（既定、チャンク内のみソート）、
+ *         {@code external}（全パートを通した外部マージソート）または
+ *         {@code bitmap}（{@link IdBitmap}で重複を除いて全体をソート）</li>
+ *     <li>{@code sort.memory} - 外部ソートで使用するメモリ量、またはビットマップの大きさの上限（例: {@code 256m}, {@code 1g}）。
+ *         既定は最大ヒープの1/4</li>
+ *     <li>{@code sort.tmpdir} - 外部ソートのランファイルを置くディレクトリ。既定は{@code output}</li>
+ *     <li>{@code pipeline.mode} - {@code files}（既定、JSONファイルを書き出してから圧縮）、
+ *         {@code streaming}（JSONを書き出さずに直接圧縮）または
+ *         {@code staged}（入出力を仮想スレッド、エンコードと圧縮をプラットフォームスレッドで実行）。
+ *         {@code staged}ではパートを常に{@code output.writer=async}で書き込む</li>
+ *     <li>{@code compress.mode} - {@code file}（既定、ファイル単位で並列圧縮）または
+ *         {@code block}（1ファイルをブロックに分けて並列圧縮）。{@code block}は{@code pipeline.mode=staged}と同時に使用できない</li>
+ *     <li>{@code compress.block.size} - ブロック並列圧縮のブロックサイズ。既定は{@code 32m}</li>
+ *     <li>{@code compress.memory} - 同時に実行する圧縮タスクのメモリ見積もりの上限。既定は最大ヒープの1/2</li>
+ *     <li>{@code compress.codec} - {@code xz}（既定）、{@code gzip}または{@code store}（圧縮しない）</li>
+ *     <li>{@code compress.level} - 圧縮レベル（{@code 0}〜{@code 9}）。既定は{@code xz}が{@code 4}、{@code gzip}が{@code 6}</li>
+ *     <li>{@code compress.tune} - {@code off}（既定）または{@code auto}（サンプルを圧縮してXZの設定を自動で選ぶ）</li>
+ *     <li>{@code compress.tune.time} - 自動調整の目標とする圧縮全体の所要時間（秒）</li>
+ *     <li>{@code compress.tune.ratio} - 自動調整の目標とする最低限の圧縮率（圧縮前 / 圧縮後）</li>
+ *     <li>{@code compress.tune.sample} - 自動調整で圧縮するサンプルのサイズ。既定は{@code 4m}</li>
+ *     <li>{@code input.parser} - {@code mapped}（既定、メモリマップで並列解析）または
+ *         {@code reader}（{@link java.io.BufferedReader}で1行ずつ解析）</li>
+ *     <li>{@code input.threads} - 入力解析のスレッド数。既定は利用可能なプロセッサ数</li>
+ *     <li>{@code json.layout} - {@code pretty}（既定、インデント付き）または{@code compact}（空白なし）</li>
+ *     <li>{@code output.writer} - パートの書き込み方。{@code mapped}（既定、メモリマップ）または
+ *         {@code async}（{@link WriteBehindOutputStream}で書き込みスレッドに任せる）</li>
+ *     <li>{@code output.buffers} - {@link WriteBehindOutputStream}が1ファイルに使うバッファの数。既定は{@code 4}（最小{@code 2}）</li>
+ *     <li>{@code output.sync} - 書き込んだデータのディスクへの反映。{@code none}（既定、OSに任せる）、
+ *         {@code part}（ファイルを閉じるときに反映）または{@code periodic}（一定間隔で反映）</li>
+ *     <li>{@code output.sync.interval} - {@code periodic}で反映する間隔（秒）。既定は{@code 1}</li>
+ *     <li>{@code index.enabled} - {@code true}（既定）の場合、パートごとにIDから{@code secret}を引く
+ *         {@link SparseIdIndex}を書き出す</li>
+ *     <li>{@code index.block.size} - インデックスを書き出す場合に、単一ストリームのXZを区切るブロックサイズ。既定は{@code 256k}</li>
+ *     <li>{@code output.format} - パートのファイル形式。{@code json}（既定）または
+ *         {@code binary}（{@link BinaryRecordEncoder}のブロック単位のバイナリ形式）</li>
+ *     <li>{@code secret.mode} - {@code secure}（既定、{@link java.security.SecureRandom}）、
+ *         {@code fast}（{@link java.util.SplittableRandom}）または{@code seeded}（シード固定で再現可能）</li>
+ *     <li>{@code secret.seed} - {@code seeded}で使うシード。既定は{@code 0}</li>
+ *     <li>{@code generate.rows} - 生成する{@code file.txt}の行数。既定は{@code 100000000}</li>
+ *     <li>{@code generate.distribution} - {@code sequential}（既定、昇順）、{@code shuffled}（重複なしのランダム順）
+ *         または{@code random}（重複あり）</li>
+ *     <li>{@code generate.seed} - {@code shuffled}と{@code random}で使うシード。既定は{@code 0}</li>
+ *     <li>{@code generate.threads} - 生成のスレッド数。既定は利用可能なプロセッサ数</li>
+ *     <li>{@code run.mode} - {@code full}（既定、入力全体を処理）または
+ *         {@code append}（{@link AppendState}に記録された位置より後に追記された行だけを処理）。
+ *         {@code append}は{@code sort.mode=chunk}でのみ使用できる</li>
+ *     <li>{@code run.resume} - {@code true}（既定）の場合、前回の実行が途中で終了していれば
+ *         {@link RunJournal}で圧縮済みと記録されたパートを飛ばして再開する</li>
+ *     <li>{@code shard.workers} - {@code 1}以上の場合、入力を改行で区切ったバイト範囲に分け、{@link ShardCoordinator}が
+ *         その数のワーカーJVMで処理して出力を統合する。既定は{@code 0}（分けない）。{@code sort.mode=chunk}かつ
+ *         {@code run.mode=full}でのみ使用できる</li>
+ *     <li>{@code shard.retries} - 失敗したワーカーを起動し直す回数。既定は{@code 2}</li>
+ *     <li>{@code shard.jvm.options} - ワーカーのJVMに加えるオプション（空白区切り）。既定では最大ヒープとプロセッサ数を
+ *         ワーカーの数で分ける</li>
+ *     <li>{@code shard.range} - ワーカーが処理する入力のバイト範囲（{@code 開始-終了}）。{@link ShardCoordinator}が設定する</li>
+ *     <li>{@code verify.enabled} - {@code true}の場合、処理の後に{@link PartVerifier}で出力したパートを入力と突き合わせる。
+ *         既定は{@code false}</li>
+ *     <li>{@code metrics.interval} - 進捗を表示する間隔（秒）。既定は{@code 5}、{@code 0}で表示しない</li>
+ *     <li>{@code metrics.report} - 実行レポート（JSON）の出力先。既定は{@code output/run-report.json}</li>
+ * </ul>
+ */
+public final class RunConfig {
+    /**
+     * パートのソート方式
+     */
+    public enum SortMode {
+        /** 各チャンク内でのみソートする */
+        CHUNK,
+        /** 外部マージソートで全体をソートし、パートごとに連続したID範囲を割り当てる */
+        EXTERNAL,
+        /** IDをビットマップに立てて重複を除き、ビットマップの走査で全体をソートする */
+        BITMAP
+    }
+
+    /**
+     * JSON生成と圧縮のつなぎ方
+     */
+    public enum PipelineMode {
+        /** 全パートのJSONファイルを書き出してから圧縮する */
+        FILES,
+        /** JSONを有界キュー経由で直接圧縮し、非圧縮ファイルを書き出さない */
+        STREAMING,
+        /** 入出力を仮想スレッドで、エンコードと圧縮をプラットフォームスレッドのプールで実行する（{@link StageScope}） */
+        STAGED
+    }
+
+    /**
+     * 圧縮の並列化の単位
+     */
+    public enum CompressMode {
+        /** ファイルごとに1スレッドで圧縮し、複数ファイルを並列に処理する */
+        FILE,
+        /** 1ファイルを固定サイズのブロックに分け、ブロックを並列に圧縮する */
+        BLOCK
+    }
+
+    /**
+     * 圧縮設定の自動調整
+     */
+    public enum CompressTune {
+        /** {@code compress.level}の設定をそのまま使う */
+        OFF,
+        /** サンプルを候補の設定で圧縮し、{@link CompressionTuner}で選んだ設定を使う */
+        AUTO
+    }
+
+    /**
+     * パートのファイルの書き込み方
+     */
+    public enum OutputWriter {
+        /** 出力サイズでファイルをメモリマップして書き込む */
+        MAPPED,
+        /** {@link WriteBehindOutputStream}のバッファに書き込み、ファイルへの書き出しは専用のスレッドに任せる */
+        ASYNC
+    }
+
+    /**
+     * 書き込んだデータをディスクに反映する方針
+     */
+    public enum OutputSync {
+        /** 反映しない（OSの書き戻しに任せる） */
+        NONE,
+        /** ファイルを閉じるときに1回反映する */
+        PART,
+        /** 書き込み中に一定間隔で反映する */
+        PERIODIC
+    }
+
+    /**
+     * 入力のどこまでを処理するか
+     */
+    public enum RunMode {
+        /** 入力全体を処理し、パートを1番から出力し直す */
+        FULL,
+        /** 前回の実行より後に追記された行だけを処理し、既存のパートの次の番号から出力する */
+        APPEND
+    }
+
+    /**
+     * 入力ファイルの解析方式
+     */
+    public enum InputParser {
+        /** {@link java.io.BufferedReader#readLine()}で1行ずつ解析する */
+        READER,
+        /** {@link MappedLineParser}でメモリマップした範囲を並列に解析する */
+        MAPPED
+    }
+
+    private final int                       chunkRows; // autoの場合は0
+    private final long                      chunkMemoryBytes;
+    private final SortMode                  sortMode;
+    private final long                      sortMemoryBytes;
+    private final Path                      sortTempDir;
+    private final PipelineMode              pipelineMode;
+    private final CompressMode              compressMode;
+    private final int                       compressBlockSize;
+    private final long                      compressMemoryBytes;
+    private final CompressionCodec.Type     compressCodec;
+    private final int                       compressLevel;
+    private final CompressTune              compressTune;
+    private final double                    compressTuneSeconds;
+    private final double                    compressTuneRatio;
+    private final int                       compressTuneSampleBytes;
+    private final InputParser               inputParser;
+    private final int                       inputThreads;
+    private final JsonRecordEncoder.Layout  jsonLayout;
+    private final RecordEncoder.Format      outputFormat;
+    private final OutputWriter              outputWriter;
+    private final int                       outputBuffers;
+    private final OutputSync                outputSync;
+    private final long                      outputSyncIntervalNanos;
+    private final boolean                   indexEnabled;
+    private final long                      indexBlockSize;
+    private final SecretGenerator.Mode      secretMode;
+    private final long                      secretSeed;
+    private final long                      generateRows;
+    private final FileGenerate.Distribution generateDistribution;
+    private final long                      generateSeed;
+    private final int                       generateThreads;
+    private final RunMode                   runMode;
+    private final boolean                   resume;
+    private final int                       shardWorkers;
+    private final int                       shardRetries;
+    private final String                    shardJvmOptions;
+    private final long                      shardStartByte; // ワーカーでない場合は-1
+    private final long                      shardEndByte; // ワーカーでない場合は-1
+    private final boolean                   verifyEnabled;
+    private final long                      metricsIntervalMillis;
+    private final Path                      metricsReport;
+
+    private RunConfig(Properties properties) {
+        String chunkRows = properties.getProperty("chunk.rows", String.valueOf(App.CHUNK_SIZE)).trim();
+        this.chunkRows = chunkRows.equalsIgnoreCase("auto")
+                         ? 0
+                         : (int) Math.min(Integer.MAX_VALUE - 8, parseCount(chunkRows, App.CHUNK_SIZE));
+        this.chunkMemoryBytes = parseSize(
+                properties.getProperty("chunk.memory"),
+                Runtime.getRuntime().maxMemory() / 4);
+        this.sortMode = parseEnum(SortMode.class, properties.getProperty("sort.mode"), SortMode.CHUNK);
+        this.sortMemoryBytes = parseSize(
+                properties.getProperty("sort.memory"),
+                Runtime.getRuntime().maxMemory() / 4);
+        this.sortTempDir = Path.of(properties.getProperty("sort.tmpdir", "output"));
+        this.pipelineMode = parseEnum(
+                PipelineMode.class,
+                properties.getProperty("pipeline.mode"),
+                PipelineMode.FILES);
+        this.compressMode = parseEnum(
+                CompressMode.class,
+                properties.getProperty("compress.mode"),
+                CompressMode.FILE);
+        if (pipelineMode == PipelineMode.STAGED && compressMode == CompressMode.BLOCK) {
+            // 段階別実行ではパートごとに1スレッドで圧縮するため、ブロック並列圧縮のプールを持たない
+            throw new IllegalArgumentException("compress.mode=blockはpipeline.mode=stagedと同時に使用できません");
+        }
+        this.compressBlockSize = Math.clamp(
+                parseSize(properties.getProperty("compress.block.size"), 32L * 1024 * 1024),
+                64 * 1024,
+                1024 * 1024 * 1024);
+        this.compressMemoryBytes = parseSize(
+                properties.getProperty("compress.memory"),
+                Runtime.getRuntime().maxMemory() / 2);
+        this.compressCodec = parseEnum(
+                CompressionCodec.Type.class,
+                properties.getProperty("compress.codec"),
+                CompressionCodec.Type.XZ);
+        this.compressLevel = parseLevel(
+                properties.getProperty("compress.level"),
+                compressCodec == CompressionCodec.Type.GZIP ? 6 : 4);
+        this.compressTune = parseEnum(CompressTune.class, properties.getProperty("compress.tune"), CompressTune.OFF);
+        this.compressTuneSeconds = Double.parseDouble(properties.getProperty("compress.tune.time", "0"));
+        this.compressTuneRatio = Double.parseDouble(properties.getProperty("compress.tune.ratio", "0"));
+        this.compressTuneSampleBytes = Math.clamp(
+                parseSize(properties.getProperty("compress.tune.sample"), 4L * 1024 * 1024),
+                64 * 1024,
+                256 * 1024 * 1024);
+        if (compressTune == CompressTune.AUTO && compressTuneSeconds <= 0 && compressTuneRatio <= 0) {
+            throw new IllegalArgumentException(
+                    "compress.tune=autoではcompress.tune.timeまたはcompress.tune.ratioを指定してください");
+        }
+        this.inputParser = parseEnum(
+                InputParser.class,
+                properties.getProperty("input.parser"),
+                InputParser.MAPPED);
+        this.inputThreads = Math.max(1, Integer.parseInt(properties.getProperty(
+                "input.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        this.jsonLayout = parseEnum(
+                JsonRecordEncoder.Layout.class,
+                properties.getProperty("json.layout"),
+                JsonRecordEncoder.Layout.PRETTY);
+        this.outputFormat = parseEnum(
+                RecordEncoder.Format.class,
+                properties.getProperty("output.format"),
+                RecordEncoder.Format.JSON);
+        this.outputWriter = parseEnum(OutputWriter.class, properties.getProperty("output.writer"), OutputWriter.MAPPED);
+        this.outputBuffers = Math.max(2, Integer.parseInt(properties.getProperty("output.buffers", "4")));
+        this.outputSync = parseEnum(OutputSync.class, properties.getProperty("output.sync"), OutputSync.NONE);
+        this.outputSyncIntervalNanos = Math.max(1, (long) (Double.parseDouble(
+                properties.getProperty("output.sync.interval", "1")) * 1e9));
+        this.indexEnabled = Boolean.parseBoolean(properties.getProperty("index.enabled", "true"));
+        this.indexBlockSize = Math.max(
+                64L * 1024,
+                parseSize(properties.getProperty("index.block.size"), 256L * 1024));
+        this.secretMode = parseEnum(
+                SecretGenerator.Mode.class,
+                properties.getProperty("secret.mode"),
+                SecretGenerator.Mode.SECURE);
+        this.secretSeed = Long.parseLong(properties.getProperty("secret.seed", "0"));
+        this.generateRows = parseCount(properties.getProperty("generate.rows"), 100_000_000L);
+        this.generateDistribution = parseEnum(
+                FileGenerate.Distribution.class,
+                properties.getProperty("generate.distribution"),
+                FileGenerate.Distribution.SEQUENTIAL);
+        this.generateSeed = Long.parseLong(properties.getProperty("generate.seed", "0"));
+        this.generateThreads = Math.max(1, Integer.parseInt(properties.getProperty(
+                "generate.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        this.runMode = parseEnum(RunMode.class, properties.getProperty("run.mode"), RunMode.FULL);
+        if (runMode == RunMode.APPEND && sortMode != SortMode.CHUNK) {
+            // 全体をソートする方式では、追記された行が既存のパートのID範囲に入りうる
+            throw new IllegalArgumentException("run.mode=appendはsort.mode=chunkでのみ使用できます");
+        }
+        this.resume = Boolean.parseBoolean(properties.getProperty("run.resume", "true"));
+        this.shardWorkers = Math.max(0, Integer.parseInt(properties.getProperty("shard.workers", "0")));
+        if (shardWorkers > 0 && sortMode != SortMode.CHUNK) {
+            // 全体をソートする方式では、ワーカーをまたいでID範囲を揃える必要がある
+            throw new IllegalArgumentException("shard.workersはsort.mode=chunkでのみ使用できます");
+        }
+        if (shardWorkers > 0 && runMode != RunMode.FULL) {
+            throw new IllegalArgumentException("shard.workersはrun.mode=appendと同時に使用できません");
+        }
+        this.shardRetries = Math.max(0, Integer.parseInt(properties.getProperty("shard.retries", "2")));
+        this.shardJvmOptions = properties.getProperty("shard.jvm.options", "");
+        String shardRange = properties.getProperty("shard.range");
+        if (shardRange != null) {
+            String[] bounds = shardRange.trim().split("-", 2);
+            if (bounds.length != 2) {
+                throw new IllegalArgumentException("shard.rangeは開始-終了の形式で指定してください: " + shardRange);
+            }
+            this.shardStartByte = Long.parseLong(bounds[0]);
+            this.shardEndByte = Long.parseLong(bounds[1]);
+            if (shardStartByte < 0 || shardEndByte < shardStartByte) {
+                throw new IllegalArgumentException("shard.rangeが不正です: " + shardRange);
+            }
+        } else {
+            this.shardStartByte = -1;
+            this.shardEndByte = -1;
+        }
+        this.verifyEnabled = Boolean.parseBoolean(properties.getProperty("verify.enabled", "false"));
+        this.metricsIntervalMillis = Math.max(0, (long) (Double.parseDouble(
+                properties.getProperty("metrics.interval", "5")) * 1000));
+        this.metricsReport = Path.of(properties.getProperty("metrics.report", "output/run-report.json"));
+    }
+
+    /**
+     * システムプロパティから設定を読み込みます。
+     *
+     * @return 実行時設定
+     */
+    public static RunConfig fromSystemProperties() {
+        return new RunConfig(System.getProperties());
+    }
+
+    /**
+     * 指定されたプロパティから設定を読み込みます。
+     *
+     * @param properties 設定値
+     * @return 実行時設定
+     */
+    public static RunConfig from(Properties properties) {
+        return new RunConfig(properties);
+    }
+
+    /**
+     * 1チャンク（1パート）の行数を返します。
+     *
+     * @return 行数。{@code chunk.rows=auto}の場合は{@code 0}
+     */
+    public int chunkRows() {
+        return chunkRows;
+    }
+
+    /**
+     * チャンクの行数をヒープの状況から自動で決めるかどうかを返します。
+     *
+     * @return {@code chunk.rows=auto}の場合は{@code true}
+     */
+    public boolean chunkAuto() {
+        return chunkRows == 0;
+    }
+
+    /**
+     * {@code chunk.rows=auto}で同時に保持するチャンクに使うメモリの予算を返します。
+     *
+     * @return バイト数
+     */
+    public long chunkMemoryBytes() {
+        return chunkMemoryBytes;
+    }
+
+    /**
+     * ソートの方式を返します。
+     *
+     * @return ソートの方式
+     */
+    public SortMode sortMode() {
+        return sortMode;
+    }
+
+    /**
+     * 外部ソートで使用するメモリ量、またはビットマップの大きさの上限を返します。
+     *
+     * @return バイト数
+     */
+    public long sortMemoryBytes() {
+        return sortMemoryBytes;
+    }
+
+    /**
+     * 外部ソートのランファイルを置くディレクトリを返します。
+     *
+     * @return ディレクトリ
+     */
+    public Path sortTempDir() {
+        return sortTempDir;
+    }
+
+    /**
+     * パートの生成と圧縮の進め方を返します。
+     *
+     * @return 進め方
+     */
+    public PipelineMode pipelineMode() {
+        return pipelineMode;
+    }
+
+    /**
+     * 圧縮の並列化の単位を返します。
+     *
+     * @return 並列化の単位
+     */
+    public CompressMode compressMode() {
+        return compressMode;
+    }
+
+    /**
+     * ブロック並列圧縮のブロックサイズを返します。
+     *
+     * @return バイト数
+     */
+    public int compressBlockSize() {
+        return compressBlockSize;
+    }
+
+    /**
+     * 同時に実行する圧縮タスクのメモリ見積もりの上限を返します。
+     *
+     * @return バイト数
+     */
+    public long compressMemoryBytes() {
+        return compressMemoryBytes;
+    }
+
+    /**
+     * 圧縮形式を返します。
+     *
+     * @return 圧縮形式
+     */
+    public CompressionCodec.Type compressCodec() {
+        return compressCodec;
+    }
+
+    /**
+     * 圧縮レベルを返します。
+     *
+     * @return {@code 0}〜{@code 9}の圧縮レベル
+     */
+    public int compressLevel() {
+        return compressLevel;
+    }
+
+    /**
+     * XZの設定を自動で選ぶかどうかを返します。
+     *
+     * @return 自動調整の方式
+     */
+    public CompressTune compressTune() {
+        return compressTune;
+    }
+
+    /**
+     * 自動調整の目標とする圧縮全体の所要時間を返します。
+     *
+     * @return 秒数。{@code 0}以下の場合は目標なし
+     */
+    public double compressTuneSeconds() {
+        return compressTuneSeconds;
+    }
+
+    /**
+     * 自動調整の目標とする最低限の圧縮率を返します。
+     *
+     * @return 圧縮前 / 圧縮後。{@code 0}以下の場合は目標なし
+     */
+    public double compressTuneRatio() {
+        return compressTuneRatio;
+    }
+
+    /**
+     * 自動調整で圧縮するサンプルのサイズを返します。
+     *
+     * @return バイト数
+     */
+    public int compressTuneSampleBytes() {
+        return compressTuneSampleBytes;
+    }
+
+    /**
+     * 入力の解析方法を返します。
+     *
+     * @return 解析方法
+     */
+    public InputParser inputParser() {
+        return inputParser;
+    }
+
+    /**
+     * 入力解析のスレッド数を返します。
+     *
+     * @return スレッド数
+     */
+    public int inputThreads() {
+        return inputThreads;
+    }
+
+    /**
+     * JSONの書式を返します。
+     *
+     * @return 書式
+     */
+    public JsonRecordEncoder.Layout jsonLayout() {
+        return jsonLayout;
+    }
+
+    /**
+     * パートのファイル形式を返します。
+     *
+     * @return ファイル形式
+     */
+    public RecordEncoder.Format outputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * パートの書き込み方を返します。
+     *
+     * @return 書き込み方
+     */
+    public OutputWriter outputWriter() {
+        return outputWriter;
+    }
+
+    /**
+     * {@link WriteBehindOutputStream}が1ファイルに使うバッファの数を返します。
+     *
+     * @return バッファの数
+     */
+    public int outputBuffers() {
+        return outputBuffers;
+    }
+
+    /**
+     * 書き込んだデータをディスクに反映する方針を返します。
+     *
+     * @return 反映する方針
+     */
+    public OutputSync outputSync() {
+        return outputSync;
+    }
+
+    /**
+     * {@code output.sync=periodic}で反映する間隔を返します。
+     *
+     * @return ナノ秒
+     */
+    public long outputSyncIntervalNanos() {
+        return outputSyncIntervalNanos;
+    }
+
+    /**
+     * パートごとに{@link SparseIdIndex}を書き出すかどうかを返します。
+     *
+     * @return 書き出す場合は{@code true}
+     */
+    public boolean indexEnabled() {
+        return indexEnabled;
+    }
+
+    /**
+     * インデックスを書き出す場合に、単一ストリームのXZを区切るブロックサイズを返します。
+     *
+     * @return バイト数
+     */
+    public long indexBlockSize() {
+        return indexBlockSize;
+    }
+
+    /**
+     * {@code secret}の乱数の生成方式を返します。
+     *
+     * @return 生成方式
+     */
+    public SecretGenerator.Mode secretMode() {
+        return secretMode;
+    }
+
+    /**
+     * {@code secret.mode=seeded}で使うシードを返します。
+     *
+     * @return シード
+     */
+    public long secretSeed() {
+        return secretSeed;
+    }
+
+    /**
+     * 生成する{@code file.txt}の行数を返します。
+     *
+     * @return 行数
+     */
+    public long generateRows() {
+        return generateRows;
+    }
+
+    /**
+     * 生成する{@code file.txt}の値の並びを返します。
+     *
+     * @return 値の並び
+     */
+    public FileGenerate.Distribution generateDistribution() {
+        return generateDistribution;
+    }
+
+    /**
+     * {@code file.txt}の生成に使うシードを返します。
+     *
+     * @return シード
+     */
+    public long generateSeed() {
+        return generateSeed;
+    }
+
+    /**
+     * {@code file.txt}の生成のスレッド数を返します。
+     *
+     * @return スレッド数
+     */
+    public int generateThreads() {
+        return generateThreads;
+    }
+
+    /**
+     * 入力のどこまでを処理するかを返します。
+     *
+     * @return 処理する範囲
+     */
+    public RunMode runMode() {
+        return runMode;
+    }
+
+    /**
+     * 前回の途中で終了した実行を再開するかどうかを返します。
+     *
+     * @return 再開する場合は{@code true}
+     */
+    public boolean resume() {
+        return resume;
+    }
+
+    /**
+     * 入力を分けて処理させるワーカーJVMの数を返します。
+     *
+     * @return ワーカーの数。分けない場合は{@code 0}
+     */
+    public int shardWorkers() {
+        return shardWorkers;
+    }
+
+    /**
+     * 失敗したワーカーを起動し直す回数を返します。
+     *
+     * @return 回数
+     */
+    public int shardRetries() {
+        return shardRetries;
+    }
+
+    /**
+     * ワーカーのJVMに加えるオプションを返します。
+     *
+     * @return 空白区切りのオプション
+     */
+    public String shardJvmOptions() {
+        return shardJvmOptions;
+    }
+
+    /**
+     * この実行が{@link ShardCoordinator}に起動されたワーカーかどうかを返します。
+     *
+     * @return {@code shard.range}が指定されている場合は{@code true}
+     */
+    public boolean shardWorker() {
+        return shardEndByte >= 0;
+    }
+
+    /**
+     * ワーカーが処理する入力の開始位置を返します。
+     *
+     * @return バイト位置。ワーカーでない場合は{@code -1}
+     */
+    public long shardStartByte() {
+        return shardStartByte;
+    }
+
+    /**
+     * ワーカーが処理する入力の終了位置（この位置を含まない）を返します。
+     *
+     * @return バイト位置。ワーカーでない場合は{@code -1}
+     */
+    public long shardEndByte() {
+        return shardEndByte;
+    }
+
+    /**
+     * 処理の後に出力を検証するかどうかを返します。
+     *
+     * @return 検証する場合は{@code true}
+     */
+    public boolean verifyEnabled() {
+        return verifyEnabled;
+    }
+
+    /**
+     * 進捗を表示する間隔を返します。
+     *
+     * @return ミリ秒。{@code 0}の場合は表示しない
+     */
+    public long metricsIntervalMillis() {
+        return metricsIntervalMillis;
+    }
+
+    /**
+     * 実行レポートの出力先を返します。
+     *
+     * @return ファイルのパス
+     */
+    public Path metricsReport() {
+        return metricsReport;
+    }
+
+    /**
+     * {@code 512k}, {@code 256m}, {@code 2g}のような単位付きのサイズを解析します。
+     *
+     * @param value        解析する文字列。{@code null}の場合は既定値を返します
+     * @param defaultValue 既定値
+     * @return バイト数
+     * @throws IllegalArgumentException 形式が不正な場合
+     */
+    static long parseSize(String value, long defaultValue) {
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        String v = value.trim().toLowerCase(Locale.ROOT);
+        long unit = switch (v.charAt(v.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1L;
+        };
+        if (unit != 1L) {
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            return Long.parseLong(v) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("サイズの形式が不正です: " + value, e);
+        }
+    }
+
+    /**
+     * {@code 100_000_000}や{@code 1e9}のような件数を解析します。
+     *
+     * @param value        解析する文字列。{@code null}の場合は既定値を返します
+     * @param defaultValue 既定値
+     * @return 件数
+     * @throws IllegalArgumentException 形式が不正な場合、または1未満の場合
+     */
+    static long parseCount(String value, long defaultValue) {
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        String v = value.trim().replace("_", "").replace(",", "").toLowerCase(Locale.ROOT);
+        long count;
+        try {
+            int e = v.indexOf('e');
+            if (e >= 0) {
+                count = Long.parseLong(v.substring(0, e));
+                for (int i = Integer.parseInt(v.substring(e + 1)); i > 0; i--) {
+                    count = Math.multiplyExact(count, 10);
+                }
+            } else {
+                count = Long.parseLong(v);
+            }
+        } catch (NumberFormatException | ArithmeticException ex) {
+            throw new IllegalArgumentException("件数の形式が不正です: " + value, ex);
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("件数は1以上で指定してください: " + value);
+        }
+        return count;
+    }
+
+    /**
+     * {@code 0}〜{@code 9}の圧縮レベルを解析します。
+     *
+     * @param value        解析する文字列。{@code null}の場合は既定値を返します
+     * @param defaultValue 既定値
+     * @return 圧縮レベル
+     * @throws IllegalArgumentException 形式が不正な場合、または範囲外の場合
+     */
+    static int parseLevel(String value, int defaultValue) {
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        int level;
+        try {
+            level = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("圧縮レベルの形式が不正です: " + value, e);
+        }
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("圧縮レベルは0から9で指定してください: " + value);
+        }
+        return level;
+    }
+
+    /**
+     * 大文字小文字を区別せずに列挙型の値を解析します。
+     *
+     * @param type         列挙型
+     * @param value        解析する文字列。{@code null}の場合は既定値を返します
+     * @param defaultValue 既定値
+     * @param <E>          列挙型
+     * @return 列挙値
+     * @throws IllegalArgumentException 該当する値がない場合
+     */
+    static <E extends Enum<E>> E parseEnum(Class<E> type, String value, E defaultValue) {
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Enum.valueOf(type, value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,430 @@
+package com.example;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * パートごとの進行状況を記録する実行ジャーナル
+ *
+ * <p>出力ディレクトリの{@code run-journal.jsonl}に、1行1件のJSONで追記します。
+ * 先頭行は実行条件（入力ファイルと出力形式）を表す{@code start}で、その後にパートごとの
+ * {@code written}（JSONファイルを書き出した）と{@code compressed}（圧縮ファイルを確定した）が続きます。
+ * 各行には入力の行オフセット、行数、IDの範囲、ファイル名とサイズが含まれます。
+ * 1行書くたびに{@link FileChannel#force(boolean)}するため、JVMが途中で終了しても記録済みの行は失われません。
+ *
+ * <p>出力ファイルは一時ファイルに書いてから{@link #commit(Path, Path, boolean)}で確定します。
+ * 確定前にディスクへ反映するかどうかは呼び出し側が{@link RunConfig#outputSync()}に従って決めます。
+ * {@code none}では反映しないため、電源断の後は記録済みのファイルの内容が失われていることがあります。
+ * 再開時は、実行条件が一致し、記録されたサイズの圧縮ファイルが存在するパートだけを完了済みとして扱います。
+ * 書きかけのファイルはジャーナルに記録されないため、完了済みと誤認されることはありません。
+ *
+ * <p>パートの区切りが実行ごとに変わりうる場合（{@code chunk.rows=auto}）に備えて、再開時は前回記録されたパートの
+ * 行オフセットと行数を{@link #previousPart(int)}で返します。
+ */
+public final class RunJournal implements AutoCloseable {
+    /** ジャーナルのファイル名 */
+    public static final String FILE_NAME = "run-journal.jsonl";
+
+    /** 一時ファイルの拡張子 */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    /**
+     * パートの内容
+     *
+     * @param partIndex   パート番号
+     * @param inputOffset 最初の行の入力内での行オフセット（0始まり）。外部ソートではソート後の順位
+     * @param rows        行数
+     * @param minId       最小のID
+     * @param maxId       最大のID
+     */
+    public record Part(int partIndex, long inputOffset, long rows, long minId, long maxId) {
+    }
+
+    /**
+     * ジャーナルの1行
+     */
+    private record Entry(
+            String stage,
+            Integer part,
+            Long inputOffset,
+            Long rows,
+            Long minId,
+            Long maxId,
+            String file,
+            Long bytes,
+            Map<String, String> fingerprint) {
+
+        static Entry of(String stage, Part part, String file, long bytes) {
+            return new Entry(stage, part.partIndex(), part.inputOffset(), part.rows(), part.minId(), part.maxId(),
+                             file, bytes, null);
+        }
+
+        boolean describesPart() {
+            return ("written".equals(stage) || "compressed".equals(stage)) && part != null && inputOffset != null;
+        }
+
+        Part toPart() {
+            return new Part(part, inputOffset, rows, minId, maxId);
+        }
+    }
+
+    private final FileChannel                 channel;
+    private final Map<Integer, Entry>         committed;
+    private final NavigableMap<Integer, Part> previousParts;
+    private final Map<Integer, Part>          parts         = new ConcurrentHashMap<>();
+    private final Map<Path, Integer>          partsBySource = new ConcurrentHashMap<>();
+    private final boolean                     resumed;
+
+    private RunJournal(
+            FileChannel channel,
+            Map<Integer, Entry> committed,
+            NavigableMap<Integer, Part> previousParts,
+            boolean resumed) {
+        this.channel = channel;
+        this.committed = committed;
+        this.previousParts = previousParts;
+        this.resumed = resumed;
+    }
+
+    /**
+     * ジャーナルを開きます。
+     *
+     * <p>{@code resume}が{@code true}で、既存のジャーナルが同じ実行条件の未完了の実行であれば、その続きとして開きます。
+     * それ以外の場合は新しいジャーナルを作成します。どちらの場合も、出力ディレクトリに残った一時ファイルは削除します。
+     *
+     * @param outputDir   出力ディレクトリ
+     * @param fingerprint 実行条件
+     * @param resume      前回の続きから再開する場合は{@code true}
+     * @return ジャーナル
+     * @throws IOException 入出力例外
+     */
+    public static RunJournal open(Path outputDir, Map<String, String> fingerprint, boolean resume) throws IOException {
+        Files.createDirectories(outputDir);
+        deleteTempFiles(outputDir);
+
+        Path file = outputDir.resolve(FILE_NAME);
+        if (resume && Files.exists(file)) {
+            RunJournal journal = resume(file, fingerprint);
+            if (journal != null) {
+                return journal;
+            }
+        }
+
+        FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        RunJournal journal = new RunJournal(channel, new HashMap<>(), new TreeMap<>(), false);
+        journal.append(new Entry("start", null, null, null, null, null, null, null, fingerprint));
+        return journal;
+    }
+
+    /**
+     * 既存のジャーナルを読み込みます。途中で途切れた最後の行は切り捨てます。
+     *
+     * @return 再開できない場合は{@code null}
+     */
+    private static RunJournal resume(Path file, Map<String, String> fingerprint) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        Map<Integer, Entry> committed = new HashMap<>();
+        NavigableMap<Integer, Part> previousParts = new TreeMap<>();
+        int validLength = 0;
+        boolean started = false;
+        for (int start = 0, end; (end = indexOf(content, (byte) '\n', start)) >= 0; start = end + 1) {
+            Entry entry;
+            try {
+                entry = objectMapper.readValue(content, start, end - start, Entry.class);
+            } catch (IOException e) {
+                break;
+            }
+            if (! started) {
+                if (! "start".equals(entry.stage()) || ! fingerprint.equals(entry.fingerprint())) {
+                    return null;
+                }
+                started = true;
+            } else if ("complete".equals(entry.stage())) {
+                return null;
+            } else {
+                if (entry.describesPart()) {
+                    previousParts.put(entry.part(), entry.toPart());
+                }
+                if ("compressed".equals(entry.stage()) && outputExists(entry)) {
+                    committed.put(entry.part(), entry);
+                }
+            }
+            validLength = end + 1;
+        }
+        if (! started) {
+            return null;
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        return new RunJournal(channel, committed, previousParts, true);
+    }
+
+    /**
+     * 出力ディレクトリのジャーナルから、最後に開始した実行の実行条件を読み込みます。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @return 実行条件。ジャーナルがないか先頭行を読めない場合は{@code null}
+     * @throws IOException 入出力例外
+     */
+    public static Map<String, String> readFingerprint(Path outputDir) throws IOException {
+        Path file = outputDir.resolve(FILE_NAME);
+        if (! Files.exists(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            Entry entry = objectMapper.readValue(line, Entry.class);
+            return "start".equals(entry.stage()) ? entry.fingerprint() : null;
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 出力ディレクトリのジャーナルから、パートごとの最初の行の入力内での行オフセットを読み込みます。
+     * 記録のないパートには、次に記録のあるパートのオフセット（入力の行が対応しない空のパート）を入れます。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @return パート番号 - 1の位置に行オフセットを入れた昇順の配列。ジャーナルがない場合は{@code null}
+     * @throws IOException 入出力例外
+     */
+    public static long[] readPartOffsets(Path outputDir) throws IOException {
+        Path file = outputDir.resolve(FILE_NAME);
+        if (! Files.exists(file)) {
+            return null;
+        }
+        NavigableMap<Integer, Long> offsets = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry;
+                try {
+                    entry = objectMapper.readValue(line, Entry.class);
+                } catch (JsonProcessingException e) {
+                    break;
+                }
+                if (entry.describesPart()) {
+                    offsets.put(entry.part(), entry.inputOffset());
+                }
+            }
+        }
+        long[] result = new long[offsets.isEmpty() ? 0 : offsets.lastKey()];
+        for (int i = result.length; i >= 1; i--) {
+            Long offset = offsets.get(i);
+            result[i - 1] = offset != null ? offset : result[i];
+        }
+        return result;
+    }
+
+    private static boolean outputExists(Entry entry) {
+        try {
+            Path output = Path.of(entry.file());
+            return Files.exists(output) && Files.size(output) == entry.bytes();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 前回の実行の続きとして開いた場合は{@code true}を返します。
+     *
+     * @return 再開した場合は{@code true}
+     */
+    public boolean resumed() {
+        return resumed;
+    }
+
+    /**
+     * 圧縮済みとして確定しているパートの数を返します。
+     *
+     * @return パート数
+     */
+    public int committedCount() {
+        return committed.size();
+    }
+
+    /**
+     * パートが前回の実行で圧縮済みとして確定していれば{@code true}を返します。
+     *
+     * @param partIndex パート番号
+     * @return 確定している場合は{@code true}
+     */
+    public boolean isCommitted(int partIndex) {
+        return committed.containsKey(partIndex);
+    }
+
+    /**
+     * 前回の実行で記録されたパートのうち、番号が{@code partIndex}以上で最も小さいものを返します。
+     * 再開時に、パートの区切りを前回の実行と揃えるために使います。
+     *
+     * @param partIndex パート番号
+     * @return パートの内容。該当するパートがない場合は{@code null}
+     */
+    public Part previousPart(int partIndex) {
+        Map.Entry<Integer, Part> entry = previousParts.ceilingEntry(partIndex);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    /**
+     * 処理を始めるパートの内容を登録します。ジャーナルには書き込みません。
+     *
+     * @param part   パートの内容
+     * @param source パートのJSONファイル（パイプライン圧縮では書き出されない名前）
+     */
+    public void beginPart(Part part, Path source) {
+        parts.put(part.partIndex(), part);
+        partsBySource.put(source, part.partIndex());
+    }
+
+    /**
+     * パートのJSONファイルを書き出したことを記録します。
+     *
+     * @param partIndex パート番号
+     * @param file      JSONファイル
+     * @throws IOException 入出力例外
+     */
+    public void recordWritten(int partIndex, Path file) throws IOException {
+        append(Entry.of("written", part(partIndex), file.toString(), Files.size(file)));
+    }
+
+    /**
+     * パートの圧縮ファイルを確定したことを記録します。
+     *
+     * @param partIndex パート番号
+     * @param file      圧縮ファイル
+     * @throws IOException 入出力例外
+     */
+    public void recordCompressed(int partIndex, Path file) throws IOException {
+        append(Entry.of("compressed", part(partIndex), file.toString(), Files.size(file)));
+    }
+
+    /**
+     * JSONファイルを圧縮したファイルを確定したことを記録します。
+     *
+     * @param source 圧縮元のJSONファイル
+     * @param file   圧縮ファイル
+     * @throws IOException 入出力例外
+     */
+    public void recordCompressed(Path source, Path file) throws IOException {
+        Integer partIndex = partsBySource.get(source);
+        if (partIndex == null) {
+            throw new IOException("ジャーナルに登録されていないファイルです: " + source);
+        }
+        recordCompressed(partIndex, file);
+    }
+
+    /**
+     * 全パートの処理が完了したことを記録します。次回の実行は最初からやり直します。
+     *
+     * @throws IOException 入出力例外
+     */
+    public void complete() throws IOException {
+        append(new Entry("complete", null, null, null, null, null, null, null, null));
+    }
+
+    private Part part(int partIndex) throws IOException {
+        Part part = parts.get(partIndex);
+        if (part == null) {
+            throw new IOException("ジャーナルに登録されていないパートです: " + partIndex);
+        }
+        return part;
+    }
+
+    private synchronized void append(Entry entry) throws IOException {
+        byte[] line = (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 一時ファイルを目的のファイル名にアトミックに置き換えます。
+     *
+     * @param temp   一時ファイル
+     * @param target 目的のファイル
+     * @param force  置き換える前に一時ファイルの内容をディスクに反映する場合は{@code true}。
+     *               {@code output.sync=none}の場合や、書き込み側が閉じるときに反映済みの場合は{@code false}
+     * @throws IOException 入出力例外
+     */
+    public static void commit(Path temp, Path target, boolean force) throws IOException {
+        if (force) {
+            force(temp);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * ファイルの内容とメタデータをディスクに反映します。
+     *
+     * @param file ファイル
+     * @throws IOException 入出力例外
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 出力ファイルに対応する一時ファイルのパスを返します。
+     *
+     * @param target 出力ファイル
+     * @return 一時ファイル
+     */
+    public static Path tempFor(Path target) {
+        return target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    }
+
+    private static void deleteTempFiles(Path outputDir) throws IOException {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(outputDir, "*" + TEMP_SUFFIX)) {
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static int indexOf(byte[] content, byte value, int from) {
+        for (int i = from; i < content.length; i++) {
+            if (content[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,334 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 処理段階ごとの計測値
+ *
+ * <p>段階ごとに処理件数とバイト数のカウンター、1操作あたりの所要時間のヒストグラムを持ちます。
+ * カウンターは{@link LongAdder}なので、複数スレッドから頻繁に加算しても競合しません。
+ * 進捗の表示は{@link #startReporter(long)}で起動するデーモンスレッドが一定間隔で行うため、
+ * 処理ループの中では表示しません。
+ *
+ * <p>処理の最後に{@link #writeReport(Path, Map)}でJSON形式のレポートを書き出します。
+ * 計測値以外の情報（圧縮設定の選択結果など）は{@link #detail(String, Object)}でレポートに追加できます。
+ * また、チャンクと圧縮ファイルごとにJFRイベント（{@link ChunkEvent}, {@link CompressedFileEvent}）を記録します。
+ */
+public final class RunMetrics {
+    // ヒストグラムの区間は2のべき乗ナノ秒ごと
+    private static final int BUCKETS = 64;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 処理段階
+     */
+    public enum Stage {
+        /** 入力の解析 */
+        PARSE,
+        /** チャンクのソート、外部ソートのマージ */
+        SORT,
+        /** JSONの生成 */
+        ENCODE,
+        /** XZ圧縮 */
+        COMPRESS,
+        /** 書き込みスレッドによるファイルへの書き出し */
+        WRITE,
+        /** 書き込みスレッドの書き出しを待った時間 */
+        IO_WAIT,
+        /** 処理中のパート数の上限、圧縮のスケジューラー、パイプの背圧で待った時間 */
+        QUEUE_WAIT
+    }
+
+    private final Map<Stage, StageMetrics> stages     = new EnumMap<>(Stage.class);
+    private final Map<String, Object>      details    = new ConcurrentHashMap<>();
+    private final long                     startNanos = System.nanoTime();
+    private final Instant                  startedAt  = Instant.now();
+    private       ScheduledExecutorService reporter;
+
+    /**
+     * 計測を開始します。経過時間はこの時点から数えます。
+     */
+    public RunMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageMetrics());
+        }
+    }
+
+    /**
+     * 処理件数とバイト数を加算します。処理の途中で少しずつ加算できます。
+     *
+     * @param stage 処理段階
+     * @param items 件数
+     * @param bytes バイト数
+     */
+    public void add(Stage stage, long items, long bytes) {
+        StageMetrics metrics = stages.get(stage);
+        if (items != 0) {
+            metrics.items.add(items);
+        }
+        if (bytes != 0) {
+            metrics.bytes.add(bytes);
+        }
+    }
+
+    /**
+     * 1操作の所要時間を記録します。
+     *
+     * @param stage 処理段階
+     * @param nanos 所要時間（ナノ秒）
+     */
+    public void recordLatency(Stage stage, long nanos) {
+        StageMetrics metrics = stages.get(stage);
+        long value = Math.max(0, nanos);
+        metrics.operations.increment();
+        metrics.totalNanos.add(value);
+        metrics.maxNanos.accumulate(value);
+        metrics.histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(value | 1));
+    }
+
+    /**
+     * 実行レポートに記録する項目を設定します。同じキーの項目は置き換えます。
+     *
+     * @param key   キー
+     * @param value JSONに変換できる値
+     */
+    public void detail(String key, Object value) {
+        details.put(key, value);
+    }
+
+    /**
+     * 一定間隔で進捗を表示するデーモンスレッドを起動します。
+     *
+     * @param intervalMillis 表示間隔（ミリ秒）。0以下の場合は起動しません
+     */
+    public synchronized void startReporter(long intervalMillis) {
+        if (intervalMillis <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ProgressPrinter printer = new ProgressPrinter();
+        reporter.scheduleAtFixedRate(printer, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 進捗表示のスレッドを停止します。
+     */
+    public synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * 計測結果をJSONレポートとして書き出します。一時ファイルに書いてから置き換えます。
+     *
+     * @param path  出力先
+     * @param extra レポートに追加する項目
+     * @throws IOException 入出力例外
+     */
+    public void writeReport(Path path, Map<String, Object> extra) throws IOException {
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("startedAt", startedAt.toString());
+        report.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        Map<String, Object> stageReports = new LinkedHashMap<>();
+        for (Map.Entry<Stage, StageMetrics> entry : stages.entrySet()) {
+            stageReports.put(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue().toReport(elapsedNanos));
+        }
+        report.put("stages", stageReports);
+        report.putAll(extra);
+        report.putAll(details);
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), report);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 段階ごとの計測値
+     */
+    private static final class StageMetrics {
+        private final LongAdder       items      = new LongAdder();
+        private final LongAdder       bytes      = new LongAdder();
+        private final LongAdder       operations = new LongAdder();
+        private final LongAdder       totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos   = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histogram  = new AtomicLongArray(BUCKETS);
+
+        Map<String, Object> toReport(long elapsedNanos) {
+            long total = totalNanos.sum();
+            long count = operations.sum();
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("items", items.sum());
+            report.put("bytes", bytes.sum());
+            report.put("operations", count);
+            report.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(total));
+            report.put("meanMillis", count == 0 ? 0.0 : total / 1e6 / count);
+            report.put("p50Millis", percentileMillis(0.50));
+            report.put("p90Millis", percentileMillis(0.90));
+            report.put("p99Millis", percentileMillis(0.99));
+            report.put("maxMillis", maxNanos.get() / 1e6);
+            // 段階の所要時間あたりと、実行全体の経過時間あたりの2種類のスループット
+            report.put("itemsPerSecond", perSecond(items.sum(), total));
+            report.put("bytesPerSecond", perSecond(bytes.sum(), total));
+            report.put("wallBytesPerSecond", perSecond(bytes.sum(), elapsedNanos));
+            return report;
+        }
+
+        /**
+         * ヒストグラムから百分位数を求めます。区間の上限を返すため、実際の値以上の近似値になります。
+         */
+        private double percentileMillis(double quantile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += histogram.get(i);
+            }
+            if (count == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(count * quantile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return Math.min(Math.pow(2, i + 1), maxNanos.get()) / 1e6;
+                }
+            }
+            return maxNanos.get() / 1e6;
+        }
+
+        private static double perSecond(long amount, long nanos) {
+            return nanos == 0 ? 0.0 : amount * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * 前回の表示からの増分で速度を求めて進捗を表示する
+     */
+    private final class ProgressPrinter implements Runnable {
+        private final long[] lastItems = new long[Stage.values().length];
+        private final long[] lastBytes = new long[Stage.values().length];
+        private       long   lastNanos = startNanos;
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+            lastNanos = now;
+
+            StringBuilder line = new StringBuilder("進捗: 経過 ")
+                    .append(TimeUnit.NANOSECONDS.toSeconds(now - startNanos)).append("秒");
+            for (Stage stage : new Stage[]{Stage.PARSE, Stage.SORT, Stage.ENCODE, Stage.COMPRESS}) {
+                StageMetrics metrics = stages.get(stage);
+                long items = metrics.items.sum();
+                long bytes = metrics.bytes.sum();
+                int i = stage.ordinal();
+                if (stage == Stage.COMPRESS) {
+                    line.append(String.format(", %s %,dファイル %.1fMB (%.1fMB/秒)",
+                            label(stage),
+                            items,
+                            bytes / 1048576.0,
+                            (bytes - lastBytes[i]) / 1048576.0 / seconds));
+                } else {
+                    line.append(String.format(", %s %,d行 (%,.0f行/秒)",
+                            label(stage),
+                            items,
+                            (items - lastItems[i]) / seconds));
+                }
+                lastItems[i] = items;
+                lastBytes[i] = bytes;
+            }
+            System.out.println(line);
+        }
+
+        private static String label(Stage stage) {
+            return switch (stage) {
+                case PARSE -> "解析";
+                case SORT -> "ソート";
+                case ENCODE -> "エンコード";
+                case COMPRESS -> "圧縮";
+                case WRITE -> "書き込み";
+                case IO_WAIT -> "入出力待ち";
+                case QUEUE_WAIT -> "キュー待ち";
+            };
+        }
+    }
+
+    /**
+     * 1チャンク（1パート）の処理を表すJFRイベント
+     */
+    @Name("com.example.Chunk")
+    @Label("Chunk")
+    @Category("java-test")
+    @Description("1チャンクのソートとパートの出力")
+    public static final class ChunkEvent extends Event {
+        @Label("Part Index")
+        public int partIndex;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Min ID")
+        public long minId;
+
+        @Label("Max ID")
+        public long maxId;
+
+        @Label("Output File")
+        public String fileName;
+    }
+
+    /**
+     * 1ファイルの圧縮を表すJFRイベント
+     */
+    @Name("com.example.CompressedFile")
+    @Label("Compressed File")
+    @Category("java-test")
+    @Description("1ファイルのXZ圧縮")
+    public static final class CompressedFileEvent extends Event {
+        @Label("Output File")
+        public String fileName;
+
+        @Label("Input Bytes")
+        @DataAmount
+        public long inputBytes;
+
+        @Label("Output Bytes")
+        @DataAmount
+        public long outputBytes;
+    }
+}
@@ -0,0 +1,234 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.SplittableRandom;
+
+/**
+ * レコードの{@code secret}を生成するジェネレーター
+ *
+ * <p>{@code secret}は{@link java.util.UUID#randomUUID()}と同じバージョン4のUUIDの文字列表現
+ * （小文字16進、8-4-4-4-12の36バイト）で、呼び出し元のバッファに直接書き込まれます。
+ * {@link java.util.UUID}や{@link String}は生成しません。
+ *
+ * <p>インスタンスはスレッドセーフではありません。パートごとに{@link #create(Mode, long, int)}で生成し、
+ * そのパートをエンコードするスレッドだけで使用してください。
+ */
+public abstract class SecretGenerator {
+    /** {@code secret}の長さ（バイト） */
+    public static final int SECRET_LENGTH = 36;
+
+    /** {@link #nextRaw(byte[], int)}で書き込む{@code secret}の長さ（バイト） */
+    public static final int RAW_LENGTH = 16;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // FASTモードの各ジェネレーターはここから分割した乱数列を使う
+    private static final SplittableRandom FAST_ROOT = new SplittableRandom();
+
+    /**
+     * 乱数の生成方式
+     */
+    public enum Mode {
+        /** {@link SecureRandom}からまとめて取り出した乱数を使う。{@code UUID.randomUUID()}と同等の強度 */
+        SECURE,
+        /** {@link SplittableRandom}を使う高速な方式。暗号論的な強度はない */
+        FAST,
+        /** シードとパート番号から決まる乱数列を使う。ベンチマークの再現用 */
+        SEEDED
+    }
+
+    /**
+     * ジェネレーターを生成します。
+     *
+     * @param mode      乱数の生成方式
+     * @param seed      {@link Mode#SEEDED}で使うシード
+     * @param partIndex パート番号。{@link Mode#SEEDED}ではパートごとに異なる乱数列になります
+     * @return ジェネレーター
+     */
+    public static SecretGenerator create(Mode mode, long seed, int partIndex) {
+        return switch (mode) {
+            case SECURE -> new Secure();
+            case FAST -> new Fast(splitFastRoot());
+            case SEEDED -> new Fast(new SplittableRandom(mix(seed, partIndex)));
+        };
+    }
+
+    /**
+     * {@link #nextRaw(byte[], int)}で書き出した{@code secret}を先頭から順に返すジェネレーターを生成します。
+     * バイナリ形式のパートをJSONに変換するときに使います。
+     *
+     * @param raw    {@link #RAW_LENGTH}バイトずつ並んだ{@code secret}
+     * @param offset 最初の{@code secret}の位置
+     * @return ジェネレーター
+     */
+    public static SecretGenerator replay(byte[] raw, int offset) {
+        return new Replay(raw, offset);
+    }
+
+    private static synchronized SplittableRandom splitFastRoot() {
+        return FAST_ROOT.split();
+    }
+
+    /**
+     * 次の{@code secret}を書き込みます。
+     *
+     * @param dst 出力先
+     * @param off 書き込み開始位置。{@link #SECRET_LENGTH}バイト分の空きが必要です
+     * @return 書き込み後の位置
+     */
+    public final int nextSecret(byte[] dst, int off) {
+        long msb = versionBits(nextLong());
+        long lsb = variantBits(nextLong());
+        return writeUuid(msb, lsb, dst, off);
+    }
+
+    /**
+     * 次の{@code secret}を文字列にせず、UUIDの128ビット（上位64ビット、下位64ビットの順、ビッグエンディアン）で書き込みます。
+     * 同じ乱数列から{@link #nextSecret(byte[], int)}で書き込む場合と同じUUIDになります。
+     *
+     * @param dst 出力先
+     * @param off 書き込み開始位置。{@link #RAW_LENGTH}バイト分の空きが必要です
+     * @return 書き込み後の位置
+     */
+    public final int nextRaw(byte[] dst, int off) {
+        writeLong(versionBits(nextLong()), dst, off);
+        writeLong(variantBits(nextLong()), dst, off + Long.BYTES);
+        return off + RAW_LENGTH;
+    }
+
+    // UUID.randomUUID()と同じくバージョン4、IETFバリアントのビットを設定する。設定済みの値は変わらない
+    private static long versionBits(long msb) {
+        return (msb & 0xFFFFFFFFFFFF0FFFL) | 0x0000000000004000L;
+    }
+
+    private static long variantBits(long lsb) {
+        return (lsb & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+    }
+
+    private static void writeLong(long value, byte[] dst, int off) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            dst[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * 64ビットの乱数を返します。
+     *
+     * @return 乱数
+     */
+    protected abstract long nextLong();
+
+    /**
+     * {@link java.util.UUID#toString()}と同じ形式で書き込み、書き込み後の位置を返します。
+     */
+    static int writeUuid(long msb, long lsb, byte[] dst, int off) {
+        hex(msb >>> 32, 8, dst, off);
+        dst[off + 8] = '-';
+        hex(msb >>> 16, 4, dst, off + 9);
+        dst[off + 13] = '-';
+        hex(msb, 4, dst, off + 14);
+        dst[off + 18] = '-';
+        hex(lsb >>> 48, 4, dst, off + 19);
+        dst[off + 23] = '-';
+        hex(lsb, 12, dst, off + 24);
+        return off + SECRET_LENGTH;
+    }
+
+    private static void hex(long value, int digits, byte[] dst, int off) {
+        for (int i = digits - 1; i >= 0; i--) {
+            dst[off + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * 複数のワーカーがそれぞれ1番からパート番号を振る場合に、ワーカーごとのシードを作ります。
+     * パート番号が同じでもワーカーが異なれば異なる乱数列になります。
+     *
+     * @param seed  元のシード
+     * @param shard ワーカーの番号（0始まり）。{@code 0}では元のシードをそのまま返します
+     * @return ワーカーのシード
+     */
+    public static long shardSeed(long seed, int shard) {
+        // パート番号は1以上のため、負の番号で混ぜたシードはどのパートのシードとも重ならない
+        return shard == 0 ? seed : mix(seed, -shard);
+    }
+
+    /**
+     * シードとパート番号から、パートごとに十分に離れたシードを作ります。
+     */
+    private static long mix(long seed, int partIndex) {
+        long z = seed + partIndex * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * {@link SecureRandom}から4KiBずつまとめて乱数を取り出すジェネレーター
+     *
+     * <p>インスタンスごとに{@link SecureRandom}を持つため、スレッド間で競合しません。
+     */
+    private static final class Secure extends SecretGenerator {
+        private static final int BATCH_SIZE = 4096;
+
+        private final SecureRandom random   = new SecureRandom();
+        private final byte[]       batch    = new byte[BATCH_SIZE];
+        private       int          position = BATCH_SIZE;
+
+        @Override
+        protected long nextLong() {
+            if (position == BATCH_SIZE) {
+                random.nextBytes(batch);
+                position = 0;
+            }
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (batch[position++] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 書き出し済みの{@code secret}を順に返すジェネレーター
+     *
+     * <p>保存された値はバージョンとバリアントのビットが設定済みなので、{@link #nextSecret(byte[], int)}は元のUUIDをそのまま返します。
+     */
+    private static final class Replay extends SecretGenerator {
+        private final byte[] raw;
+        private       int    position;
+
+        Replay(byte[] raw, int offset) {
+            this.raw = raw;
+            this.position = offset;
+        }
+
+        @Override
+        protected long nextLong() {
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (raw[position++] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * {@link SplittableRandom}を使うジェネレーター
+     */
+    private static final class Fast extends SecretGenerator {
+        private final SplittableRandom random;
+
+        Fast(SplittableRandom random) {
+            this.random = random;
+        }
+
+        @Override
+        protected long nextLong() {
+            return random.nextLong();
+        }
+    }
+}
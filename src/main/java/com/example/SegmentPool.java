@@ -0,0 +1,111 @@
+package com.example;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 固定サイズのオフヒープバッファ（{@link MemorySegment}）を使い回すプール
+ *
+ * <p>バッファはそれぞれ専用の{@link Arena}で確保し、返却されたものは{@code maxPooled}個まで保持して
+ * 次のパートで再利用します。上限を超えて返却されたバッファと、{@link #close()}の時点で保持しているバッファは、
+ * GCを待たずにその場で解放します。
+ *
+ * <p>{@link java.nio.ByteBuffer#allocateDirect(int)}と異なり、解放の時期が{@code Cleaner}に依存せず、
+ * {@code -XX:MaxDirectMemorySize}の上限にも数えられません。
+ *
+ * <p>スレッドセーフです。確保したスレッドとは別のスレッドで使用・返却できます。
+ */
+public final class SegmentPool implements AutoCloseable {
+    // ページ境界に揃えると、ファイルへの書き込みでカーネルのコピーが揃う
+    private static final long ALIGNMENT = 4096;
+
+    private final long                      segmentSize;
+    private final int                       maxPooled;
+    private final Deque<MemorySegment>      free   = new ArrayDeque<>();
+    private final Map<MemorySegment, Arena> arenas = new IdentityHashMap<>();
+    private       boolean                   closed;
+
+    /**
+     * プールを生成します。
+     *
+     * @param segmentSize バッファ1つのサイズ（バイト）
+     * @param maxPooled   返却後に保持するバッファの数の上限
+     */
+    public SegmentPool(long segmentSize, int maxPooled) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSizeは1以上を指定してください: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.maxPooled = Math.max(0, maxPooled);
+    }
+
+    /**
+     * バッファ1つのサイズを返します。
+     *
+     * @return サイズ（バイト）
+     */
+    public long segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * バッファを取り出します。空きがなければ新しく確保します。内容は不定です。
+     *
+     * @return バッファ
+     */
+    public synchronized MemorySegment acquire() {
+        if (closed) {
+            throw new IllegalStateException("プールは閉じられています");
+        }
+        MemorySegment segment = free.pollFirst();
+        if (segment != null) {
+            return segment;
+        }
+        Arena arena = Arena.ofShared();
+        segment = arena.allocate(segmentSize, ALIGNMENT);
+        arenas.put(segment, arena);
+        return segment;
+    }
+
+    /**
+     * {@link #acquire()}で取り出したバッファを返却します。保持する数を超える場合は解放します。
+     *
+     * @param segment バッファ
+     */
+    public synchronized void release(MemorySegment segment) {
+        Arena arena = arenas.get(segment);
+        if (arena == null) {
+            throw new IllegalArgumentException("このプールのバッファではありません");
+        }
+        if (! closed && free.size() < maxPooled) {
+            free.addFirst(segment);
+            return;
+        }
+        arenas.remove(segment);
+        arena.close();
+    }
+
+    /**
+     * 確保済みのオフヒープメモリの合計を返します。使用中のバッファを含みます。
+     *
+     * @return バイト数
+     */
+    public synchronized long allocatedBytes() {
+        return arenas.size() * segmentSize;
+    }
+
+    /**
+     * 保持しているバッファを解放します。使用中のバッファは返却された時点で解放されます。
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (MemorySegment segment; (segment = free.pollFirst()) != null; ) {
+            arenas.remove(segment).close();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.example;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 入力を改行で区切ったバイト範囲（シャード）に分け、シャードごとに別のJVM（ワーカー）で処理させる調整役
+ *
+ * <p>ワーカーは{@link ProcessBuilder}で起動する{@link App}で、{@code shard.range}で渡された範囲だけを
+ * 通常と同じ読み込み、ソート、書き出し、圧縮の流れで処理します。作業ディレクトリはシャードごとの
+ * {@code output/shards/shard-N}で、入力ファイルへのシンボリックリンクを置き、出力、ジャーナル、実行レポートと
+ * ログ（{@link #LOG_FILE}）はその中に書かれます。パート番号はシャードごとに1から始まるため、
+ * 統合は呼び出し側（{@link App}）が行います。
+ *
+ * <p>ワーカーが0以外の終了コードで終了した場合は、{@code shard.retries}回まで同じシャードを起動し直します。
+ * 再試行のワーカーは{@link RunJournal}で圧縮済みのパートを飛ばして再開します。
+ * 再試行しても失敗したシャードがあれば、残りのワーカーを停止して例外を送出します。
+ *
+ * <p>ワーカーには調整役のJVMオプションとシステムプロパティを引き継ぎます。ただし最大ヒープとプロセッサ数は
+ * ワーカーの数で分け、{@code shard.jvm.options}があれば最後に加えます。
+ * {@code secret.mode=seeded}のシードはシャードごとに{@link SecretGenerator#shardSeed(long, int)}で変えます。
+ *
+ * <p>ワーカーとのやり取りはコマンドライン、終了コードとシャードのディレクトリのファイルだけのため、
+ * 共有ファイルシステムがあれば起動方法を置き換えるだけで複数のノードに分けられます。
+ */
+public final class ShardCoordinator {
+    /** 出力ディレクトリの中の作業ディレクトリ */
+    public static final String WORK_DIR = "shards";
+
+    /** シャードのディレクトリに書かれるワーカーの標準出力と標準エラー出力 */
+    public static final String LOG_FILE = "worker.log";
+
+    // 調整役が決めるため、ワーカーに引き継がないシステムプロパティ
+    private static final Set<String> WORKER_OVERRIDES = Set.of(
+            "shard.workers",
+            "shard.retries",
+            "shard.jvm.options",
+            "shard.range",
+            "secret.seed",
+            "verify.enabled",
+            "metrics.report",
+            "run.mode");
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 1つのワーカーが処理する入力の範囲
+     *
+     * @param index     シャード番号（1始まり）
+     * @param startByte 開始位置（バイト、行頭）
+     * @param endByte   終了位置（バイト、この位置を含まない）
+     */
+    public record Shard(int index, long startByte, long endByte) {
+    }
+
+    /**
+     * 完了したシャードの結果
+     *
+     * @param shard         シャード
+     * @param outputDir     ワーカーの出力ディレクトリ
+     * @param attempts      起動した回数
+     * @param elapsedMillis 最初の起動から完了までの時間（ミリ秒）
+     * @param report        ワーカーの実行レポート。読み込めない場合は空
+     */
+    public record Result(Shard shard, Path outputDir, int attempts, long elapsedMillis, Map<String, Object> report) {
+    }
+
+    private final RunConfig config;
+    private final Path      input;
+    private final Path      workDir;
+
+    /**
+     * 調整役を生成します。
+     *
+     * @param config  実行時設定
+     * @param input   入力ファイル
+     * @param workDir シャードのディレクトリを置く作業ディレクトリ
+     */
+    public ShardCoordinator(RunConfig config, Path input, Path workDir) {
+        this.config = config;
+        this.input = input;
+        this.workDir = workDir;
+    }
+
+    /**
+     * 入力をシャードに分け、すべてのワーカーが完了するまで待ちます。
+     *
+     * @return シャードの順の結果
+     * @throws IOException 入出力例外、または再試行してもワーカーが失敗したシャードがある場合
+     */
+    public List<Result> run() throws IOException {
+        List<Shard> shards;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            shards = split(channel, config.shardWorkers());
+        }
+        List<String> jvmOptions = workerJvmOptions(shards.size());
+        System.out.printf("%d個のワーカーJVMで処理します (再試行: %d回まで, JVMオプション: %s)%n",
+                shards.size(), config.shardRetries(), String.join(" ", jvmOptions));
+
+        Result[] results = new Result[shards.size()];
+        try (StageScope scope = new StageScope(1)) {
+            for (Shard shard : shards) {
+                scope.fork(() -> results[shard.index() - 1] = runShard(shard, jvmOptions));
+            }
+            scope.join();
+        }
+        return List.of(results);
+    }
+
+    /**
+     * 作業ディレクトリを削除します。シンボリックリンクの先の入力ファイルは削除しません。
+     *
+     * @throws IOException 入出力例外
+     */
+    public void deleteWorkDir() throws IOException {
+        if (! Files.exists(workDir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * ファイルを、大きさがほぼ等しく、改行で区切られた範囲に分けます。範囲が空になるシャードは作りません。
+     * 改行で終わっていない最後の行は、通常の実行と同じく次の追記で処理するためどのシャードにも含めません。
+     *
+     * @param channel 入力ファイル
+     * @param count   シャードの数
+     * @return シャード
+     * @throws IOException 入出力例外
+     */
+    static List<Shard> split(FileChannel channel, int count) throws IOException {
+        long size = AppendState.lastLineEnd(channel, 0, channel.size());
+        List<Shard> shards = new ArrayList<>();
+        long start = 0;
+        for (int i = 1; i <= count && start < size; i++) {
+            long end = i == count ? size : nextLineStart(channel, Math.max(start, size / count * i), size);
+            if (end > start) {
+                shards.add(new Shard(shards.size() + 1, start, end));
+            }
+            start = end;
+        }
+        return shards;
+    }
+
+    /**
+     * 指定位置以降で最初の行頭を返します。指定位置が行頭であればその位置です。
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (long from = position - 1; from < size; from += buffer.limit()) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - from));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) < 0) {
+                    throw new IOException("入力ファイルが読み込み中に短くなりました");
+                }
+            }
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * ワーカーのJVMオプションを決めます。
+     *
+     * @param workers 同時に起動するワーカーの数
+     * @return JVMオプションと、引き継ぐシステムプロパティ
+     */
+    private List<String> workerJvmOptions(int workers) {
+        List<String> options = new ArrayList<>();
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-D")) {
+                String key = argument.substring(2).split("=", 2)[0];
+                if (WORKER_OVERRIDES.contains(key)) {
+                    continue;
+                }
+            } else if (argument.startsWith("-Xmx")
+                       || argument.startsWith("-XX:ActiveProcessorCount=")
+                       // デバッガーの待ち受けポートが重なるため
+                       || argument.startsWith("-agentlib:jdwp")) {
+                continue;
+            }
+            options.add(argument);
+        }
+        long heapMegabytes = Runtime.getRuntime().maxMemory() / workers / (1024 * 1024);
+        options.add("-Xmx" + Math.max(64, heapMegabytes) + "m");
+        options.add("-XX:ActiveProcessorCount=" + Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+        options.add("-Dverify.enabled=false");
+        for (String option : config.shardJvmOptions().trim().split("\\s+")) {
+            if (! option.isEmpty()) {
+                options.add(option);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * 1つのシャードのワーカーを起動し、成功するか再試行の上限に達するまで起動し直します。
+     */
+    private Result runShard(Shard shard, List<String> jvmOptions) throws IOException, InterruptedException {
+        Path dir = workDir.resolve("shard-" + shard.index());
+        Files.createDirectories(dir);
+        Path link = dir.resolve(input.getFileName());
+        if (! Files.isSymbolicLink(link) && Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("シャードのディレクトリに入力ファイルへのリンク以外のファイルがあります: " + link);
+        }
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, input.toAbsolutePath());
+
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-Dshard.range=" + shard.startByte() + "-" + shard.endByte());
+        command.add("-Dsecret.seed=" + SecretGenerator.shardSeed(config.secretSeed(), shard.index() - 1));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(App.class.getName());
+
+        Path log = dir.resolve(LOG_FILE);
+        long startTime = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            System.out.printf("シャード%d: ワーカーを起動します (%,d〜%,dバイト, %d回目)%n",
+                    shard.index(), shard.startByte(), shard.endByte(), attempt);
+            Process process = new ProcessBuilder(command)
+                    .directory(dir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile()))
+                    .start();
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } finally {
+                // 他のシャードの失敗で取り消された場合は、ワーカーも止める
+                if (process.isAlive()) {
+                    process.destroyForcibly();
+                }
+            }
+            if (exitCode == 0) {
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                System.out.printf("シャード%d: 完了しました (%.1f秒)%n", shard.index(), elapsedMillis / 1000.0);
+                Path outputDir = dir.resolve("output");
+                return new Result(shard, outputDir, attempt, elapsedMillis, readReport(outputDir));
+            }
+            if (attempt > config.shardRetries()) {
+                throw new IOException(String.format("シャード%dのワーカーが%d回失敗しました (終了コード: %d, ログ: %s)",
+                        shard.index(), attempt, exitCode, log));
+            }
+            System.out.printf("シャード%d: ワーカーが終了コード%dで失敗しました。再試行します (ログ: %s)%n",
+                    shard.index(), exitCode, log);
+        }
+    }
+
+    private static Map<String, Object> readReport(Path outputDir) {
+        try {
+            return objectMapper.readValue(
+                    outputDir.resolve("run-report.json").toFile(),
+                    new TypeReference<Map<String, Object>>() {
+                    });
+        } catch (IOException e) {
+            System.err.println("ワーカーの実行レポートを読み込めませんでした: " + e.getMessage());
+            return Map.of();
+        }
+    }
+}
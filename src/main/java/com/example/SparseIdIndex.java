@@ -0,0 +1,440 @@
+package com.example;
+
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * パートのIDから{@code secret}を引くための疎なインデックス
+ *
+ * <p>パートを書き出すときに、{@link RecordEncoder#seekPoints}が通知する位置ごとに
+ * 「IDの範囲 → XZブロック番号とブロック内の非圧縮オフセット」を1エントリとして記録し、
+ * 圧縮ファイルの隣に{@code output_partN.json.xz.idx}として保存します。
+ * エントリは固定長なので、ファイルをメモリマップしたまま二分探索できます。
+ *
+ * <p>XZでは圧縮時に{@link CompressionCodec#xz(org.tukaani.xz.LZMA2Options, long)}でブロックを区切っておき、
+ * 検索時は{@link SeekableXZInputStream}で該当するブロックだけを展開します。
+ * 圧縮しない形式ではファイル内の位置へ直接移動します。gzipはシークできないため先頭から展開し直します。
+ *
+ * <pre>
+ * ヘッダー（{@value #HEADER_SIZE}バイト）
+ *   magic "IDXS" | version u16 | format u8 | codec u8 | entryCount i32 | 予約 i32
+ *   | blockBytes i64（XZブロックの非圧縮サイズ、0は区切りなし） | records i64 | minId i64 | maxId i64
+ * エントリ（{@value #ENTRY_SIZE}バイト、firstIdの昇順）
+ *   firstId i64 | lastId i64 | block i32 | records i32 | inBlockOffset i64
+ * </pre>
+ *
+ * <p>検索用に開いたインスタンスはスレッドセーフです。同じパートへの検索は直列に処理されます。
+ */
+public final class SparseIdIndex implements AutoCloseable {
+    /** インデックスファイルの拡張子 */
+    public static final String SUFFIX = ".idx";
+
+    static final int HEADER_SIZE = 48;
+    static final int ENTRY_SIZE  = 32;
+
+    private static final byte[] MAGIC      = "IDXS".getBytes(StandardCharsets.US_ASCII);
+    private static final int    VERSION    = 1;
+    private static final byte[] ID_KEY     = "\"id\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SECRET_KEY = "\"secret\"".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * インデックスの1エントリ
+     *
+     * @param firstId       最初のレコードのID
+     * @param lastId        最後のレコードのID
+     * @param block         XZブロック番号。ブロックを区切らない形式では{@code 0}
+     * @param records       レコード数
+     * @param inBlockOffset ブロックの先頭からの非圧縮オフセット
+     */
+    public record Entry(long firstId, long lastId, int block, int records, long inBlockOffset) {
+    }
+
+    private final List<Part> parts;
+
+    private SparseIdIndex(List<Part> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * パートのインデックスを作成し、{@link #sidecarFor(Path)}のファイルに書き出します。
+     *
+     * @param dataFile   インデックスを付けるパートのファイル（圧縮後の名前）
+     * @param encoder    パートを書き出したエンコーダー
+     * @param codec      パートの圧縮形式
+     * @param blockBytes XZブロックの非圧縮サイズ。ブロックを区切らない場合は{@code 0}
+     * @param ids        ソート済みのID
+     * @param count      有効なIDの数
+     * @param force      置き換える前にディスクに反映する場合は{@code true}
+     * @return インデックスファイル
+     * @throws IOException 入出力例外
+     */
+    public static Path write(
+            Path dataFile,
+            RecordEncoder encoder,
+            CompressionCodec.Type codec,
+            long blockBytes,
+            long[] ids,
+            int count,
+            boolean force) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        encoder.seekPoints(ids, count, (offset, from, records) -> entries.add(new Entry(
+                ids[from],
+                ids[from + records - 1],
+                blockBytes > 0 ? (int) (offset / blockBytes) : 0,
+                records,
+                blockBytes > 0 ? offset % blockBytes : offset)));
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+        buffer.put(MAGIC)
+              .putShort((short) VERSION)
+              .put((byte) encoder.format().ordinal())
+              .put((byte) codec.ordinal())
+              .putInt(entries.size())
+              .putInt(0)
+              .putLong(blockBytes)
+              .putLong(count)
+              .putLong(count > 0 ? ids[0] : 0)
+              .putLong(count > 0 ? ids[count - 1] : -1);
+        for (Entry entry : entries) {
+            buffer.putLong(entry.firstId())
+                  .putLong(entry.lastId())
+                  .putInt(entry.block())
+                  .putInt(entry.records())
+                  .putLong(entry.inBlockOffset());
+        }
+        buffer.flip();
+
+        Path sidecar = sidecarFor(dataFile);
+        Path temp = RunJournal.tempFor(sidecar);
+        try (FileChannel channel = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        RunJournal.commit(temp, sidecar, force);
+        return sidecar;
+    }
+
+    /**
+     * パートのファイルに対応するインデックスファイルのパスを返します。
+     *
+     * @param dataFile パートのファイル
+     * @return インデックスファイル
+     */
+    public static Path sidecarFor(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * 出力ディレクトリにある全パートのインデックスをメモリマップして開きます。
+     * インデックスはあるがパートのファイルがないものは無視します。
+     *
+     * @param outputDir 出力ディレクトリ
+     * @return インデックス
+     * @throws IOException インデックスが不正な場合
+     */
+    public static SparseIdIndex open(Path outputDir) throws IOException {
+        List<Part> parts = new ArrayList<>();
+        try (DirectoryStream<Path> sidecars = Files.newDirectoryStream(outputDir, "*" + SUFFIX)) {
+            for (Path sidecar : sidecars) {
+                String name = sidecar.getFileName().toString();
+                Path dataFile = sidecar.resolveSibling(name.substring(0, name.length() - SUFFIX.length()));
+                if (Files.exists(dataFile)) {
+                    parts.add(new Part(sidecar, dataFile));
+                }
+            }
+        } catch (IOException e) {
+            parts.forEach(Part::close);
+            throw e;
+        }
+        parts.sort(Comparator.comparingLong((Part part) -> part.minId).thenComparing(part -> part.dataFile));
+        return new SparseIdIndex(parts);
+    }
+
+    /**
+     * 開いたパートの数を返します。
+     *
+     * @return パート数
+     */
+    public int partCount() {
+        return parts.size();
+    }
+
+    /**
+     * IDの{@code secret}を検索します。同じIDが複数ある場合は、最小IDが小さいパートから順に探して最初に見つかったものを返します。
+     *
+     * @param id ID
+     * @return {@code secret}。見つからない場合は空
+     * @throws IOException パートの読み出しに失敗した場合
+     */
+    public Optional<String> lookup(long id) throws IOException {
+        for (Part part : parts) {
+            if (id >= part.minId && id <= part.maxId) {
+                String secret = part.lookup(id);
+                if (secret != null) {
+                    return Optional.of(secret);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void close() {
+        parts.forEach(Part::close);
+    }
+
+    /**
+     * 1パート分のインデックスと、そのパートを読み出すためのストリーム
+     */
+    private static final class Part {
+        private final Path                  dataFile;
+        private final MappedByteBuffer      map;
+        private final RecordEncoder.Format  format;
+        private final CompressionCodec.Type codec;
+        private final int                   entryCount;
+        private final long                  minId;
+        private final long                  maxId;
+        // XZのブロック索引の読み込みは重いので、パートごとに開いたまま使い回す
+        private       SeekableXZInputStream xz;
+        private       FileChannel           channel;
+
+        Part(Path sidecar, Path dataFile) throws IOException {
+            this.dataFile = dataFile;
+            try (FileChannel file = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+                this.map = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+            byte[] magic = new byte[MAGIC.length];
+            if (map.limit() >= HEADER_SIZE) {
+                map.get(0, magic);
+            }
+            if (! Arrays.equals(magic, MAGIC) || map.getShort(4) != VERSION) {
+                throw new IOException("インデックスが不正です: " + sidecar);
+            }
+            this.format = RecordEncoder.Format.values()[map.get(6)];
+            this.codec = CompressionCodec.Type.values()[map.get(7)];
+            this.entryCount = map.getInt(8);
+            this.minId = map.getLong(32);
+            this.maxId = map.getLong(40);
+            if (map.limit() != HEADER_SIZE + (long) entryCount * ENTRY_SIZE) {
+                throw new IOException("インデックスのサイズが不正です: " + sidecar);
+            }
+        }
+
+        private long firstId(int entry) {
+            return map.getLong(HEADER_SIZE + entry * ENTRY_SIZE);
+        }
+
+        private long lastId(int entry) {
+            return map.getLong(HEADER_SIZE + entry * ENTRY_SIZE + 8);
+        }
+
+        synchronized String lookup(long id) throws IOException {
+            // lastId >= idとなる最初のエントリ。同じIDが次のエントリにまたがる場合もある
+            int low = 0;
+            int high = entryCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (lastId(mid) < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int entry = low; entry < entryCount && firstId(entry) <= id; entry++) {
+                int base = HEADER_SIZE + entry * ENTRY_SIZE;
+                try (InputStream in = openAt(map.getInt(base + 16), map.getLong(base + 24))) {
+                    String secret = format == RecordEncoder.Format.BINARY
+                                    ? scanBinary(in, map.getInt(base + 20), entry, id)
+                                    : scanJson(in, map.getInt(base + 20), id);
+                    if (secret != null) {
+                        return secret;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * ブロック番号とブロック内オフセットの位置から読み出すストリームを返します。
+         * 返されたストリームを閉じても、使い回すストリームは閉じません。
+         */
+        private InputStream openAt(int block, long inBlockOffset) throws IOException {
+            switch (codec) {
+                case XZ -> {
+                    if (xz == null) {
+                        // 検索のたびにブロックの展開用の領域を確保し直さないよう、キャッシュを使う
+                        xz = new SeekableXZInputStream(
+                                new SeekableFileInputStream(dataFile.toFile()),
+                                -1,
+                                true,
+                                BasicArrayCache.getInstance());
+                    }
+                    xz.seekToBlock(block);
+                    xz.seek(xz.position() + inBlockOffset);
+                    return new BufferedInputStream(nonClosing(xz), 8 * 1024);
+                }
+                case STORE -> {
+                    if (channel == null) {
+                        channel = FileChannel.open(dataFile, StandardOpenOption.READ);
+                    }
+                    channel.position(inBlockOffset);
+                    return new BufferedInputStream(nonClosing(Channels.newInputStream(channel)), 8 * 1024);
+                }
+                default -> {
+                    InputStream in = CompressionCodec.openDecompressed(dataFile);
+                    in.skipNBytes(inBlockOffset);
+                    return in;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (xz != null) {
+                    xz.close();
+                }
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                System.err.println("インデックスのパートを閉じられませんでした: " + dataFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * JSONのレコードを先頭から{@code records}件読み、IDが一致するレコードの{@code secret}を返します。
+     */
+    private static String scanJson(InputStream in, int records, long id) throws IOException {
+        for (int r = 0; r < records; r++) {
+            skipPast(in, ID_KEY);
+            long value = readJsonLong(in);
+            skipPast(in, SECRET_KEY);
+            if (value > id) {
+                return null;
+            }
+            if (value == id) {
+                int c;
+                while ((c = in.read()) != '"') {
+                    if (c < 0) {
+                        throw new IOException("secretの途中でファイルが終わっています");
+                    }
+                }
+                return new String(in.readNBytes(SecretGenerator.SECRET_LENGTH), StandardCharsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * バイナリ形式のブロックを1つ読み、IDが一致するレコードの{@code secret}を返します。
+     */
+    private static String scanBinary(InputStream in, int records, int entry, long id) throws IOException {
+        BinaryPartReader.Block block = BinaryPartReader.readBlock(new DataInputStream(in), records, entry);
+        int i = Arrays.binarySearch(block.ids(), 0, block.count(), id);
+        if (i < 0) {
+            return null;
+        }
+        // 同じIDが続く場合は最初のものを返す
+        while (i > 0 && block.ids()[i - 1] == id) {
+            i--;
+        }
+        return block.secret(i);
+    }
+
+    private static void skipPast(InputStream in, byte[] pattern) throws IOException {
+        int matched = 0;
+        while (matched < pattern.length) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("レコードの途中でファイルが終わっています");
+            }
+            matched = c == pattern[matched] ? matched + 1 : (c == pattern[0] ? 1 : 0);
+        }
+    }
+
+    private static long readJsonLong(InputStream in) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c == ':' || c == ' ');
+        boolean negative = c == '-';
+        if (negative) {
+            c = in.read();
+        }
+        if (c < '0' || c > '9') {
+            throw new IOException("idが数値ではありません");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            // Long.MIN_VALUEも扱えるよう、負数のまま桁を積む
+            value = value * 10 - (c - '0');
+            c = in.read();
+        }
+        return negative ? value : -value;
+    }
+
+    private static InputStream nonClosing(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * IDの{@code secret}を検索するコマンドです。
+     *
+     * <pre>
+     * java -cp target/java-test-1.0-SNAPSHOT.jar com.example.SparseIdIndex output ID [ID...]
+     * </pre>
+     *
+     * @param args 出力ディレクトリと検索するID
+     * @throws IOException 入出力例外
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("使い方: SparseIdIndex 出力ディレクトリ ID [ID...]");
+            System.exit(2);
+        }
+        long openStart = System.nanoTime();
+        try (SparseIdIndex index = open(Path.of(args[0]))) {
+            System.out.printf("インデックスを開きました: %dパート (%.1fミリ秒)%n",
+                    index.partCount(), (System.nanoTime() - openStart) / 1e6);
+            for (int i = 1; i < args.length; i++) {
+                long id = Long.parseLong(args[i]);
+                long startTime = System.nanoTime();
+                Optional<String> secret = index.lookup(id);
+                System.out.printf("%d: %s (%.2fミリ秒)%n",
+                        id, secret.orElse("見つかりません"), (System.nanoTime() - startTime) / 1e6);
+            }
+        }
+    }
+}
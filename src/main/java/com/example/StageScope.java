@@ -0,0 +1,170 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 入出力を待つ処理を仮想スレッドで、CPUを使う処理を固定数のプラットフォームスレッドで実行するスコープ
+ *
+ * <p>{@link #fork(Callable)}したタスクはそれぞれ専用の仮想スレッドで動き、ファイルの読み書きや名前の変更、削除を担当します。
+ * エンコードや圧縮のようにCPUを使う処理は、タスクの中から{@link #cpu(Callable)}でプラットフォームスレッドのプールに渡し、
+ * 仮想スレッドはその完了を待ちます。仮想スレッドがシステムコールで待つ間はキャリアスレッドが別の仮想スレッドに移るため、
+ * プラットフォームスレッドはCPUを使う処理だけで埋まります。
+ *
+ * <p>{@code StructuredTaskScope.ShutdownOnFailure}と同じく、いずれかのタスクが失敗すると残りのタスクとCPUの処理を
+ * 割り込みで取り消し、{@link #join()}が最初の失敗を送出します。失敗した後の{@link #fork(Callable)}も直ちにその失敗を送出します。
+ * {@link #close()}はすべてのスレッドの終了を待つため、スコープを抜けた後に動き続けるタスクはありません。
+ * （{@code StructuredTaskScope}はプレビューAPIのため使用していません。）
+ */
+public final class StageScope implements AutoCloseable {
+    private final ExecutorService            io;
+    private final ExecutorService            cpu;
+    private final ThreadFactory              ioThreads;
+    private final List<Future<?>>            tasks   = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * スコープを生成します。
+     *
+     * @param cpuThreads CPUを使う処理のプラットフォームスレッド数
+     */
+    public StageScope(int cpuThreads) {
+        this.ioThreads = Thread.ofVirtual().name("io-", 0).factory();
+        this.io = Executors.newThreadPerTaskExecutor(ioThreads);
+        this.cpu = Executors.newFixedThreadPool(
+                Math.max(1, cpuThreads),
+                Thread.ofPlatform().name("cpu-", 0).factory());
+    }
+
+    /**
+     * 入出力を待つ処理のための仮想スレッドを生成するファクトリーを返します。
+     *
+     * @return スレッドファクトリー
+     */
+    public ThreadFactory ioThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * タスクを新しい仮想スレッドで開始します。
+     *
+     * @param task タスク
+     * @throws IOException すでにいずれかのタスクが失敗している場合
+     */
+    public void fork(Callable<?> task) throws IOException {
+        checkFailure();
+        Future<?> future = io.submit(() -> {
+            try {
+                task.call();
+            } catch (Throwable t) {
+                fail(t);
+            }
+        });
+        synchronized (tasks) {
+            tasks.add(future);
+        }
+        // 追加する前に失敗していた場合は、取り消しから漏れないようにここで取り消す
+        if (failure.get() != null) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * CPUを使う処理をプラットフォームスレッドのプールで実行し、完了を待ちます。
+     * {@link #fork(Callable)}したタスクの中から呼び出します。
+     *
+     * @param work 処理
+     * @param <T>  結果の型
+     * @return 処理の結果
+     * @throws IOException 処理が失敗した場合、または待機中に取り消された場合
+     */
+    public <T> T cpu(Callable<T> work) throws IOException {
+        Future<T> future = cpu.submit(work);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("CPUスレッドでの処理の待機中に取り消されました");
+        }
+    }
+
+    /**
+     * 開始したすべてのタスクの終了を待ちます。
+     *
+     * @throws IOException いずれかのタスクが失敗した場合は最初の失敗
+     */
+    public void join() throws IOException {
+        for (int i = 0; ; i++) {
+            Future<?> future;
+            synchronized (tasks) {
+                if (i >= tasks.size()) {
+                    break;
+                }
+                future = tasks.get(i);
+            }
+            try {
+                future.get();
+            } catch (CancellationException | ExecutionException e) {
+                // 失敗はfailureに記録されている
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+                throw new InterruptedIOException("タスクの終了待ちで中断されました");
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * 失敗していれば残りのタスクを取り消し、すべてのスレッドの終了を待ちます。
+     */
+    @Override
+    public void close() {
+        if (failure.get() != null) {
+            io.shutdownNow();
+            cpu.shutdownNow();
+        }
+        io.close();
+        cpu.close();
+    }
+
+    private void fail(Throwable t) {
+        if (! failure.compareAndSet(null, t)) {
+            return;
+        }
+        List<Future<?>> running;
+        synchronized (tasks) {
+            running = new ArrayList<>(tasks);
+        }
+        for (Future<?> future : running) {
+            future.cancel(true);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw asIOException(t);
+        }
+    }
+
+    private static IOException asIOException(Throwable t) {
+        if (t instanceof IOException e) {
+            return e;
+        }
+        return new IOException("処理中にエラーが発生しました: " + t.getMessage(), t);
+    }
+}
@@ -0,0 +1,383 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSONの生成と圧縮をパイプラインで同時に行う圧縮器
+ *
+ * <p>パートごとに、JSONを生成するエンコードスレッドと圧縮を行う圧縮スレッドを
+ * 有界キューでつなぎます。生成されたJSONのバイト列は直接{@link CompressionCodec}の圧縮ストリームに流れるため、
+ * 非圧縮の{@code output_partN.json}はディスクに書き出されません。
+ *
+ * <p>キュー上のブロックはパートごとに固定数をプールして使い回すため、
+ * 1パートあたりのメモリ使用量は{@code BLOCK_SIZE * BLOCKS_PER_PART}に制限されます。
+ * 同時に処理するパート数は圧縮スレッド数までに制限され、超えた場合は{@link #submit}が待機します。
+ *
+ * <p>圧縮したバイト数と所要時間、パイプの待ち時間は{@link RunMetrics}に記録します。
+ */
+public final class StreamingPartCompressor implements AutoCloseable {
+    private static final int BLOCK_SIZE      = 1024 * 1024;
+    private static final int BLOCKS_PER_PART = 8;
+
+    /**
+     * ソート済みのIDをJSONとして出力するエンコーダー
+     */
+    @FunctionalInterface
+    public interface PartEncoder {
+        /**
+         * IDの配列をJSONとして出力します。
+         *
+         * @param ids       ソート済みのID
+         * @param count     有効なIDの数
+         * @param partIndex パート番号
+         * @param out       出力先
+         * @throws IOException 入出力例外
+         */
+        void encode(long[] ids, int count, int partIndex, OutputStream out) throws IOException;
+    }
+
+    /**
+     * 圧縮ファイルの書き込み先を開く関数
+     */
+    @FunctionalInterface
+    public interface OutputOpener {
+        /**
+         * ファイルを作成し、書き込み用のストリームを返します。
+         *
+         * @param file 作成するファイル
+         * @return 出力ストリーム
+         * @throws IOException 入出力例外
+         */
+        OutputStream open(Path file) throws IOException;
+    }
+
+    /**
+     * 圧縮ファイルの確定を受け取るリスナー
+     */
+    @FunctionalInterface
+    public interface CommitListener {
+        /**
+         * パートの圧縮ファイルが確定したときに、圧縮スレッドで呼び出されます。
+         *
+         * @param partIndex パート番号
+         * @param file      確定した圧縮ファイル
+         * @throws IOException 入出力例外
+         */
+        void committed(int partIndex, Path file) throws IOException;
+    }
+
+    private final PartEncoder      encoder;
+    private final CompressionCodec codec;
+    private final ExecutorService  encodeExecutor;
+    private final ExecutorService  compressExecutor;
+    private final Semaphore        inFlight;
+    private final RunMetrics       metrics;
+    private final CommitListener   listener;
+    private final OutputOpener     opener;
+    private final boolean          forceOnCommit;
+
+    /**
+     * パイプライン圧縮器を生成します。
+     *
+     * @param encoder       JSONエンコーダー
+     * @param codec         圧縮形式
+     * @param threadCount   圧縮スレッド数（同時に処理するパート数）
+     * @param metrics       計測値の記録先
+     * @param listener      圧縮ファイルの確定を受け取るリスナー
+     * @param opener        圧縮ファイルの書き込み先を開く関数
+     * @param forceOnCommit 圧縮ファイルを確定する前にディスクへ反映する場合は{@code true}
+     */
+    public StreamingPartCompressor(
+            PartEncoder encoder,
+            CompressionCodec codec,
+            int threadCount,
+            RunMetrics metrics,
+            CommitListener listener,
+            OutputOpener opener,
+            boolean forceOnCommit) {
+        this.encoder = encoder;
+        this.codec = codec;
+        this.encodeExecutor = Executors.newFixedThreadPool(threadCount);
+        this.compressExecutor = Executors.newFixedThreadPool(threadCount);
+        this.inFlight = new Semaphore(threadCount);
+        this.metrics = metrics;
+        this.listener = listener;
+        this.opener = opener;
+        this.forceOnCommit = forceOnCommit;
+    }
+
+    /**
+     * パートの処理を開始します。
+     *
+     * <p>IDはコピーされるため、呼び出し後に配列を再利用できます。
+     * 処理中のパートが上限に達している場合は空きが出るまで待機します。
+     *
+     * @param ids        ソート済みのID
+     * @param count      有効なIDの数
+     * @param partIndex  パート番号
+     * @param fileName   出力ファイル名
+     * @return 完了時に出力ファイル名を返す{@link Future}
+     * @throws InterruptedIOException 待機中に割り込まれた場合
+     */
+    public Future<String> submit(long[] ids, int count, int partIndex, String fileName) throws InterruptedIOException {
+        try {
+            if (! inFlight.tryAcquire()) {
+                long waitStart = System.nanoTime();
+                inFlight.acquire();
+                metrics.recordLatency(RunMetrics.Stage.QUEUE_WAIT, System.nanoTime() - waitStart);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("パイプライン圧縮の待機中に中断されました");
+        }
+
+        long[] copy = Arrays.copyOf(ids, count);
+        Pipe pipe = new Pipe(metrics);
+        try {
+            encodeExecutor.execute(() -> {
+                PipeOutputStream out = new PipeOutputStream(pipe);
+                try {
+                    encoder.encode(copy, count, partIndex, out);
+                    // 途中で失敗した出力を完結したデータとして扱わないよう、終端は成功時にのみ送る
+                    out.finish();
+                } catch (Throwable t) {
+                    pipe.fail(t);
+                }
+            });
+            return compressExecutor.submit(() -> {
+                try {
+                    compress(pipe, fileName, partIndex);
+                    return fileName;
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * パイプから読み出したJSONを一時ファイルに圧縮し、完了したら出力ファイル名で確定します。
+     */
+    private void compress(Pipe pipe, String fileName, int partIndex) throws IOException {
+        Path tempFile = RunJournal.tempFor(Path.of(fileName));
+        System.out.println("パイプライン圧縮開始: " + fileName);
+        long startTime = System.nanoTime();
+        long totalBytes = 0;
+        RunMetrics.CompressedFileEvent event = new RunMetrics.CompressedFileEvent();
+        event.begin();
+
+        try (OutputStream output = opener.open(tempFile);
+                OutputStream compressedOut = codec.open(output)
+        ) {
+            Block block;
+            while ((block = pipe.take()) != Block.END) {
+                compressedOut.write(block.data(), 0, block.length());
+                totalBytes += block.length();
+                metrics.add(RunMetrics.Stage.COMPRESS, 0, block.length());
+                pipe.recycle(block.data());
+            }
+        } catch (IOException | RuntimeException e) {
+            pipe.abort();
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        RunJournal.commit(tempFile, Path.of(fileName), forceOnCommit);
+        listener.committed(partIndex, Path.of(fileName));
+
+        long elapsedNanos = System.nanoTime() - startTime;
+        metrics.add(RunMetrics.Stage.COMPRESS, 1, 0);
+        metrics.recordLatency(RunMetrics.Stage.COMPRESS, elapsedNanos);
+        event.end();
+        if (event.shouldCommit()) {
+            event.fileName = fileName;
+            event.inputBytes = totalBytes;
+            event.outputBytes = Files.size(Path.of(fileName));
+            event.commit();
+        }
+        System.out.println(fileName + "の生成が完了しました。 (JSON: " + totalBytes / 1024 / 1024 +
+                           "MB, 処理時間: " + TimeUnit.NANOSECONDS.toSeconds(elapsedNanos) + "秒)");
+    }
+
+    /**
+     * 受け付けたパートが全て完了するのを待ち、スレッドを停止します。
+     */
+    @Override
+    public void close() {
+        encodeExecutor.shutdown();
+        compressExecutor.shutdown();
+        try {
+            compressExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            encodeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            encodeExecutor.shutdownNow();
+            compressExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * キューを流れるデータブロック
+     *
+     * @param data   データ
+     * @param length 有効なバイト数
+     * @param error  エンコード中に発生した例外（正常時は{@code null}）
+     */
+    private record Block(byte[] data, int length, Throwable error) {
+        static final Block END = new Block(null, 0, null);
+    }
+
+    /**
+     * エンコードスレッドと圧縮スレッドをつなぐ有界パイプ
+     *
+     * <p>空きブロックのキューが背圧の役割を持ちます。圧縮が遅れると空きブロックが尽き、
+     * エンコードスレッドは空きが戻るまで待機します。
+     */
+    private static final class Pipe {
+        private final BlockingQueue<byte[]> free   = new ArrayBlockingQueue<>(BLOCKS_PER_PART + 1);
+        private final BlockingQueue<Block>  filled = new ArrayBlockingQueue<>(BLOCKS_PER_PART + 2);
+        private final RunMetrics            metrics;
+        private volatile boolean            aborted;
+
+        Pipe(RunMetrics metrics) {
+            this.metrics = metrics;
+            for (int i = 0; i < BLOCKS_PER_PART; i++) {
+                free.add(new byte[BLOCK_SIZE]);
+            }
+        }
+
+        byte[] acquire() throws IOException {
+            // 空きブロックを待つ時間は圧縮側の遅れによる背圧
+            byte[] block = free.poll();
+            if (block == null) {
+                long waitStart = System.nanoTime();
+                block = interruptibly(free::take);
+                metrics.recordLatency(RunMetrics.Stage.QUEUE_WAIT, System.nanoTime() - waitStart);
+            }
+            if (aborted) {
+                throw new IOException("圧縮側でエラーが発生したためエンコードを中止しました");
+            }
+            return block;
+        }
+
+        void publish(byte[] data, int length) throws IOException {
+            Block block = new Block(data, length, null);
+            interruptibly(() -> {
+                filled.put(block);
+                return null;
+            });
+        }
+
+        void finish() throws IOException {
+            interruptibly(() -> {
+                filled.put(Block.END);
+                return null;
+            });
+        }
+
+        void fail(Throwable error) {
+            // 圧縮側が待機していれば起こす。既に中止済みなら誰も読まないので失敗しても構わない
+            filled.offer(new Block(null, 0, error));
+        }
+
+        Block take() throws IOException {
+            Block block = interruptibly(filled::take);
+            if (block.error() != null) {
+                throw new IOException("JSONのエンコードに失敗しました: " + block.error().getMessage(), block.error());
+            }
+            return block;
+        }
+
+        void recycle(byte[] data) {
+            free.offer(data);
+        }
+
+        void abort() {
+            aborted = true;
+            // 空きブロック待ちのエンコードスレッドを起こす
+            free.offer(new byte[0]);
+        }
+
+        private static <T> T interruptibly(InterruptibleAction<T> action) throws IOException {
+            try {
+                return action.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("パイプライン処理が中断されました");
+            }
+        }
+
+        @FunctionalInterface
+        private interface InterruptibleAction<T> {
+            T run() throws InterruptedException;
+        }
+    }
+
+    /**
+     * パイプの空きブロックに書き込み、一杯になったら圧縮側へ渡す{@link OutputStream}
+     *
+     * <p>{@link #close()}では終端を送りません。エンコーダーが例外で終了した場合にも
+     * {@code close()}は呼ばれるため、終端は{@link #finish()}で明示的に送ります。
+     */
+    private static final class PipeOutputStream extends OutputStream {
+        private final Pipe   pipe;
+        private       byte[] current;
+        private       int    position;
+
+        PipeOutputStream(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current == null || position == current.length) {
+                nextBlock();
+            }
+            current[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null || position == current.length) {
+                    nextBlock();
+                }
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(b, off, current, position, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void nextBlock() throws IOException {
+            if (current != null) {
+                pipe.publish(current, position);
+            }
+            current = pipe.acquire();
+            position = 0;
+        }
+
+        void finish() throws IOException {
+            if (current != null && position > 0) {
+                pipe.publish(current, position);
+            }
+            current = null;
+            pipe.finish();
+        }
+    }
+}
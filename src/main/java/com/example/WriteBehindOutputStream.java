@@ -0,0 +1,227 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 書き込みを専用のスレッドに任せる{@link OutputStream}
+ *
+ * <p>{@link SegmentPool}から借りた複数のオフヒープバッファを順に埋め、埋まったバッファを書き込みスレッドに渡して
+ * 次のバッファに書き込みを続けます。書き込みスレッドはバッファ単位の大きな{@link FileChannel#write(ByteBuffer)}を
+ * 順に発行するため、呼び出し側（エンコードや圧縮）がディスクを待つのは、全バッファが書き込み待ちになったときだけです。
+ * 実際に待った時間だけを{@link RunMetrics.Stage#IO_WAIT}に、書き込みスレッドの所要時間は{@link RunMetrics.Stage#WRITE}に記録します。
+ *
+ * <p>ディスクへの反映は{@link RunConfig.OutputSync}に従います。
+ * <ul>
+ *     <li>{@code NONE} - {@link FileChannel#force(boolean)}を呼ばず、OSに任せます</li>
+ *     <li>{@code PART} - {@link #close()}で残りを書き出した後に1回だけ反映します</li>
+ *     <li>{@code PERIODIC} - 書き込みスレッドが、前回の反映から指定間隔が過ぎるたびに反映します。
+ *         ページキャッシュに未反映のデータが溜まりすぎて、OSの書き戻しが一度に集中するのを防ぎます</li>
+ * </ul>
+ *
+ * <p>書き込みスレッドは生成時に渡された{@link ThreadFactory}で作るため、仮想スレッドにもできます。
+ * 書き込みスレッドで発生した例外は、次の{@code write}または{@link #close()}で呼び出し側に送出されます。
+ * 呼び出し側は1スレッドに限ります。
+ */
+public final class WriteBehindOutputStream extends OutputStream {
+    private static final Block END = new Block(null, 0);
+
+    private record Block(MemorySegment segment, int length) {
+    }
+
+    private final FileChannel                  channel;
+    private final SegmentPool                  pool;
+    private final RunConfig.OutputSync         sync;
+    private final long                         syncIntervalNanos;
+    private final RunMetrics                   metrics;
+    private final BlockingQueue<Block>         filled;
+    private final BlockingQueue<MemorySegment> free;
+    private final Thread                       writer;
+    private       MemorySegment                buffer;
+    private       int                          count;
+    private       long                         size;
+    private       boolean                      closed;
+    private volatile Throwable                 failure;
+
+    /**
+     * 出力ストリームを生成し、書き込みスレッドを開始します。
+     *
+     * @param channel           書き込み先。このストリームを閉じると閉じられます
+     * @param pool              バッファを借りるプール
+     * @param buffers           使用するバッファの数（2以上）
+     * @param sync              ディスクへの反映方法
+     * @param syncIntervalNanos {@code PERIODIC}で反映する間隔（ナノ秒）
+     * @param metrics           計測値の記録先
+     * @param writerThreads     書き込みスレッドを生成するファクトリー
+     */
+    public WriteBehindOutputStream(
+            FileChannel channel,
+            SegmentPool pool,
+            int buffers,
+            RunConfig.OutputSync sync,
+            long syncIntervalNanos,
+            RunMetrics metrics,
+            ThreadFactory writerThreads) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("buffersは2以上を指定してください: " + buffers);
+        }
+        this.channel = channel;
+        this.pool = pool;
+        this.sync = sync;
+        this.syncIntervalNanos = syncIntervalNanos;
+        this.metrics = metrics;
+        // 書き込み待ちのバッファと終端を、待たずに入れられる容量にしておく
+        this.filled = new ArrayBlockingQueue<>(buffers + 1);
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.buffer = pool.acquire();
+        for (int i = 1; i < buffers; i++) {
+            free.add(pool.acquire());
+        }
+        this.writer = writerThreads.newThread(this::drain);
+        writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.byteSize()) {
+            handOff();
+        }
+        buffer.set(ValueLayout.JAVA_BYTE, count++, (byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.byteSize()) {
+                handOff();
+            }
+            int n = (int) Math.min(len, buffer.byteSize() - count);
+            MemorySegment.copy(b, off, buffer, ValueLayout.JAVA_BYTE, count, n);
+            count += n;
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * これまでに書き込まれたバイト数を返します。書き込みスレッドが書き出し済みかどうかは問いません。
+     *
+     * @return バイト数
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 埋まったバッファを書き込みスレッドに渡し、空いたバッファを受け取ります。
+     */
+    private void handOff() throws IOException {
+        checkFailure();
+        filled.add(new Block(buffer, count));
+        buffer = free.poll();
+        if (buffer == null) {
+            // 空いたバッファがないときだけ、書き込みスレッドを待った時間として記録する
+            long waitStart = System.nanoTime();
+            try {
+                buffer = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("書き込みスレッドの待機中に中断されました");
+            }
+            metrics.recordLatency(RunMetrics.Stage.IO_WAIT, System.nanoTime() - waitStart);
+        }
+        count = 0;
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException e) {
+            throw new IOException("書き込みに失敗しました: " + e.getMessage(), e);
+        }
+        if (t != null) {
+            throw new IOException("書き込みスレッドで例外が発生しました", t);
+        }
+    }
+
+    /**
+     * 書き込みスレッドの本体です。終端を受け取るまで、渡された順にバッファを書き出します。
+     */
+    private void drain() {
+        long lastSync = System.nanoTime();
+        try {
+            Block block;
+            while ((block = filled.take()) != END) {
+                if (failure == null) {
+                    try {
+                        long startTime = System.nanoTime();
+                        ByteBuffer view = block.segment().asSlice(0, block.length()).asByteBuffer();
+                        while (view.hasRemaining()) {
+                            channel.write(view);
+                        }
+                        if (sync == RunConfig.OutputSync.PERIODIC && startTime - lastSync >= syncIntervalNanos) {
+                            channel.force(false);
+                            lastSync = System.nanoTime();
+                        }
+                        metrics.recordLatency(RunMetrics.Stage.WRITE, System.nanoTime() - startTime);
+                        metrics.add(RunMetrics.Stage.WRITE, 0, block.length());
+                    } catch (Throwable t) {
+                        // 以降のバッファは書き出さずに返し、呼び出し側が待ち続けないようにする
+                        failure = t;
+                    }
+                }
+                free.add(block.segment());
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * 残りを書き出して書き込みスレッドの終了を待ち、チャネルを閉じてバッファをプールに返却します。
+     * {@code PART}の場合はチャネルを閉じる前にディスクへ反映します。
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (channel) {
+            if (buffer != null) {
+                filled.add(new Block(buffer, count));
+                buffer = null;
+            }
+            filled.add(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writer.interrupt();
+                throw new InterruptedIOException("書き込みスレッドの終了待ちで中断されました");
+            }
+            checkFailure();
+            if (sync == RunConfig.OutputSync.PART) {
+                long startTime = System.nanoTime();
+                channel.force(false);
+                metrics.recordLatency(RunMetrics.Stage.WRITE, System.nanoTime() - startTime);
+            }
+        } finally {
+            if (! writer.isAlive()) {
+                for (MemorySegment segment; (segment = free.poll()) != null; ) {
+                    pool.release(segment);
+                }
+            }
+        }
+    }
+}